@@ -0,0 +1,56 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Lance les mesures de performance de la chaîne JVS avec le profileur du GC, qui donne le débit d'allocation
+ * (<tt>gc.alloc.rate.norm</tt> : octets alloués par opération) à côté du débit de chaque mesure. Son usage est le
+ * suivant :
+ * <ul><li>java -jar target/benchmarks.jar Lance toutes les mesures</li>
+ * <li>java -jar target/benchmarks.jar Compiler -p program=large Lance les mesures dont le nom contient "Compiler",
+ * sur le grand programme seulement</li>
+ * <li>java -jar target/benchmarks.jar -rf json -rff resultat.json Garde les résultats pour les comparer à ceux
+ * d'une autre version</li></ul>
+ * Les arguments sont ceux de JMH (<tt>-h</tt> pour les voir).
+ *
+ * @author Philippe VIENNE (PhilippeGeek@gmail.com)
+ * @see Corpus
+ * @since 5.0
+ */
+public class Benchmarks {
+
+    /**
+     * Fonction principale des mesures.
+     *
+     * @param args Les arguments de JMH
+     */
+    public static void main(String... args) throws CommandLineOptionException, RunnerException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.javascool.compiler.Compiler;
+import org.javascool.compiler.JVSTranslator;
+import org.javascool.core.Java2Class;
+import org.javascool.core.Jvs2Java;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesure la compilation du code Java traduit : en mémoire par le {@link Compiler} (ECJ) et sur le disque par
+ * {@link Java2Class} (javac, qui demande un JDK). Le code est traduit une fois pour toutes avant les mesures.
+ *
+ * @author Philippe VIENNE (PhilippeGeek@gmail.com)
+ * @since 5.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompilerBenchmark {
+    @Param({Corpus.SMALL, Corpus.MEDIUM, Corpus.LARGE, Corpus.INCLUDE})
+    public String program;
+
+    private Corpus corpus;
+    private String className;
+    private String javaCode;
+    private File javaFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = new Corpus();
+        JVSTranslator translator = corpus.translator(program);
+        className = translator.getFullClassname();
+        javaCode = translator.getJavaCode();
+        if (!new Compiler(className, javaCode).compile().isEmpty())
+            throw new IllegalStateException("Le programme " + program + " ne compile pas");
+        Jvs2Java jvs2Java = new Jvs2Java();
+        String java = jvs2Java.translate(corpus.get(program));
+        javaFile = new File(corpus.getDirectory(), jvs2Java.getClassName() + ".java");
+        FileUtils.writeStringToFile(javaFile, java, "UTF-8");
+        if (!Java2Class.compile(javaFile.getPath()))
+            throw new IllegalStateException("Le programme " + program + " ne compile pas avec javac");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public List<Diagnostic<? extends JavaFileObject>> compiler() {
+        return new Compiler(className, javaCode).compile();
+    }
+
+    @Benchmark
+    public boolean java2Class() {
+        return Java2Class.compile(javaFile.getPath());
+    }
+}
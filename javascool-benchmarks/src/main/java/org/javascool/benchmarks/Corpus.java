@@ -0,0 +1,158 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.javascool.compiler.DefaultJVSTranslator;
+import org.javascool.compiler.JVSTranslator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Le corpus des programmes JVS mesurés. Il est fixe : les mesures de deux versions portent sur les mêmes codes.
+ * <ul>
+ * <li><tt>small</tt> : un premier programme d'élève</li>
+ * <li><tt>medium</tt> : un exercice d'algorithmique avec quelques fonctions, dont des boucles sans bloc à condition
+ * constante ; {@link CompilerBenchmark} refuse de démarrer s'il ne compile plus une fois traduit</li>
+ * <li><tt>large</tt> : {@value #LARGE_COPIES} copies de <tt>medium</tt> aux fonctions renommées, environ 5000
+ * lignes</li>
+ * <li><tt>include</tt> : un programme qui inclut une bibliothèque de fonctions</li>
+ * </ul>
+ * Les programmes sont écrits dans un répertoire temporaire, où sont cherchés les includes.
+ *
+ * @author Philippe VIENNE (PhilippeGeek@gmail.com)
+ * @since 5.0
+ */
+public final class Corpus {
+    /**
+     * Le nombre de copies de <tt>medium</tt> dans <tt>large</tt>.
+     */
+    public static final int LARGE_COPIES = 50;
+
+    /**
+     * Les noms des programmes du corpus, pour les <tt>@Param</tt> des mesures.
+     */
+    public static final String SMALL = "small", MEDIUM = "medium", LARGE = "large", INCLUDE = "include";
+
+    private final File directory;
+    private final Map<String, String> programs = new LinkedHashMap<String, String>();
+
+    /**
+     * Lit le corpus et l'écrit dans un nouveau répertoire temporaire.
+     *
+     * @throws IOException Si le répertoire ne peut pas être écrit
+     */
+    public Corpus() throws IOException {
+        directory = File.createTempFile("jvs-corpus-", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Impossible de créer le répertoire " + directory);
+        FileUtils.writeStringToFile(new File(directory, "bibliotheque.jvs"), read("bibliotheque"), "UTF-8");
+        String medium = read(MEDIUM);
+        programs.put(SMALL, read(SMALL));
+        programs.put(MEDIUM, medium);
+        programs.put(LARGE, large(medium));
+        programs.put(INCLUDE, read(INCLUDE).replace("%DIR%", directory.getAbsolutePath().replace('\\', '/')));
+        for (Map.Entry<String, String> program : programs.entrySet())
+            FileUtils.writeStringToFile(getFile(program.getKey()), program.getValue(), "UTF-8");
+    }
+
+    /**
+     * Donne le code d'un programme.
+     *
+     * @param name Le nom du programme (ex. "medium")
+     * @return Le code JVS
+     * @throws IllegalArgumentException Si le programme n'est pas dans le corpus
+     */
+    public String get(String name) {
+        String code = programs.get(name);
+        if (code == null)
+            throw new IllegalArgumentException("Le programme " + name + " n'est pas dans le corpus");
+        return code;
+    }
+
+    /**
+     * Crée un translator sur un programme, préparé comme celui du
+     * {@link org.javascool.compiler.ProgletCodeCompiler} de la proglet par défaut : imports de Java's Cool, classe
+     * <tt>Runnable</tt> et includes cherchés dans {@link #getDirectory()}.
+     *
+     * @param name Le nom du programme (ex. "medium")
+     * @return Un translator neuf
+     */
+    public JVSTranslator translator(String name) {
+        JVSTranslator translator = new DefaultJVSTranslator(get(name));
+        translator.setIncludeDirectories(new File[]{directory});
+        translator.addDefaultImports();
+        return translator;
+    }
+
+    /**
+     * Donne le fichier d'un programme.
+     *
+     * @param name Le nom du programme (ex. "medium")
+     * @return Le fichier <tt>.jvs</tt>, dans {@link #getDirectory()}
+     */
+    public File getFile(String name) {
+        return new File(directory, name + ".jvs");
+    }
+
+    /**
+     * Le répertoire où le corpus est écrit, aussi celui des includes.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Efface le répertoire du corpus.
+     */
+    public void delete() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private static String read(String name) throws IOException {
+        InputStream in = Corpus.class.getResourceAsStream("corpus/" + name + ".jvs");
+        if (in == null)
+            throw new IOException("Le programme " + name + " n'est pas dans le corpus");
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Construit le grand programme : chaque copie de <tt>medium</tt> a ses fonctions suffixées par son numéro, et le
+     * <tt>main</tt> appelle les <tt>main</tt> de toutes les copies.
+     */
+    private static String large(String medium) {
+        StringBuilder code = new StringBuilder();
+        StringBuilder main = new StringBuilder("void main() {\n");
+        for (int i = 0; i < LARGE_COPIES; i++) {
+            code.append(medium.replaceAll("\\b(triSelection|dichotomie|estPalindrome|pgcd|binaire|premierDiviseur"
+                    + "|puissanceSuivante|nombreDeChiffres|main)\\b", "$1" + i)).append("\n");
+            main.append("    main").append(i).append("();\n");
+        }
+        return code.append(main).append("}\n").toString();
+    }
+}
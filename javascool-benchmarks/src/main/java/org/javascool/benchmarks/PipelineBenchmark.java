@@ -0,0 +1,93 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmarks;
+
+import org.javascool.compiler.Compiler;
+import org.javascool.compiler.JVSTranslator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesure toute la chaîne, de la traduction du code JVS à la fin de son exécution : ce qu'attend un élève qui clique
+ * sur "Exécuter". La sortie des programmes est jetée pendant les mesures.
+ *
+ * @author Philippe VIENNE (PhilippeGeek@gmail.com)
+ * @since 5.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+    @Param({Corpus.SMALL, Corpus.MEDIUM, Corpus.LARGE, Corpus.INCLUDE})
+    public String program;
+
+    private Corpus corpus;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = new Corpus();
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(out);
+        corpus.delete();
+    }
+
+    @Benchmark
+    public Runnable translateCompileRun() throws Exception {
+        JVSTranslator translator = corpus.translator(program);
+        Compiler compiler = new Compiler(translator.getFullClassname(), translator.getJavaCode());
+        if (!compiler.compile().isEmpty())
+            throw new IllegalStateException("Le programme " + program + " ne compile pas");
+        Runnable program = (Runnable) compiler.getClassLoader().loadClass(translator.getFullClassname()).newInstance();
+        program.run();
+        return program;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmarks;
+
+import org.javascool.core.Jvs2Java;
+import org.javascool.core.SourceIndex;
+import org.javascool.core.Translator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesure les fonctions d'analyse des {@link Translator} de proglet sur le code Java traduit d'un programme. Le code
+ * est scanné à chaque appel : ses scans répondent par son {@link SourceIndex}, dont {@link #index()} mesure le calcul.
+ *
+ * @author Philippe VIENNE (PhilippeGeek@gmail.com)
+ * @since 5.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({Corpus.SMALL, Corpus.MEDIUM, Corpus.LARGE})
+    public String program;
+
+    private String javaCode;
+    private int body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Corpus corpus = new Corpus();
+        try {
+            javaCode = new Jvs2Java().translate(corpus.get(program));
+        } finally {
+            corpus.delete();
+        }
+        body = javaCode.indexOf('{');
+    }
+
+    /**
+     * Découpe tout le code en instructions, comme le fait un Translator qui cherche les siennes.
+     *
+     * @return Le nombre d'instructions
+     */
+    @Benchmark
+    public int scanInstruction() {
+        int count = 0;
+        for (int offset = 0; offset < javaCode.length(); count++) {
+            int[] index = Translator.scanInstruction(javaCode, offset);
+            if (index[0] == -1)
+                break;
+            offset = index[1];
+        }
+        return count;
+    }
+
+    /**
+     * Trouve la fin du corps de la classe, en passant par dessus les blocs, commentaires et chaînes qu'il contient.
+     *
+     * @return L'index de la fin du corps
+     */
+    @Benchmark
+    public int scanConstruct() {
+        return Translator.scanConstruct(javaCode, body, "{", "}", null, true, true)[1];
+    }
+
+    /**
+     * Indexe tout le code, ce que fait le deuxième scan d'un texte.
+     *
+     * @return L'index
+     */
+    @Benchmark
+    public SourceIndex index() {
+        return new SourceIndex(javaCode);
+    }
+}
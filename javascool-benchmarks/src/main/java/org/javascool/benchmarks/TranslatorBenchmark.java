@@ -0,0 +1,81 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmarks;
+
+import org.javascool.compiler.JVSTranslator;
+import org.javascool.core.Jvs2Java;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesure la traduction JVS vers Java, par le traducteur du framework ({@link Jvs2Java}) et par celui du compilateur
+ * ({@link JVSTranslator}). Chaque traduction part d'un translator neuf : les lignes déjà analysées ne sont pas
+ * reprises.
+ *
+ * @author Philippe VIENNE (PhilippeGeek@gmail.com)
+ * @since 5.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranslatorBenchmark {
+    @Param({Corpus.SMALL, Corpus.MEDIUM, Corpus.LARGE, Corpus.INCLUDE})
+    public String program;
+
+    private Corpus corpus;
+    private String code;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = new Corpus();
+        code = corpus.get(program);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public String jvs2Java() {
+        return new Jvs2Java().translate(code);
+    }
+
+    @Benchmark
+    public String jvsTranslator() {
+        return corpus.translator(program).getJavaCode();
+    }
+}
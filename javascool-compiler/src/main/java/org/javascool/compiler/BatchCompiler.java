@@ -0,0 +1,318 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.compiler;
+
+import org.javascool.core.CompileCache;
+import org.javascool.core.JVSDiagnostic;
+
+import javax.tools.Diagnostic;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compilateur de codes JVS par lots. Pour corriger les centaines de copies d'un exercice, plutôt que de passer chaque
+ * copie dans son propre {@link ProgletCodeCompiler}, on donne toutes les copies d'un coup :
+ * <ol>
+ * <li>les copies sont traduites en parallèle sur tous les processeurs ;</li>
+ * <li>les copies déjà compilées (ou identiques entre elles) sont prises dans le {@link CompileCache} ;</li>
+ * <li>les autres sont compilées par paquets, chaque paquet étant une seule passe du compilateur Eclipse, sur un
+ * {@link ForkJoinPool}.</li>
+ * </ol>
+ * Chaque copie a son propre nom de classe et son propre résultat : une erreur dans une copie ne fait jamais échouer
+ * les autres.
+ *
+ * @see CompilerService#compileSeparately(java.util.Map)
+ * @since 5.0
+ */
+public class BatchCompiler {
+    /**
+     * Le nombre de copies compilées ensemble dans une passe du compilateur Eclipse.
+     */
+    private static final int SHARD_SIZE = 32;
+
+    private static ForkJoinPool sharedPool;
+
+    private final CompilerService service;
+    private final CompileCache cache;
+    private final ForkJoinPool pool;
+
+    /**
+     * Crée un compilateur par lots utilisant le service de compilation, le cache et le pool de threads partagés.
+     */
+    public BatchCompiler() {
+        this(CompilerService.getInstance(), CompileCache.getInstance(), getSharedPool());
+    }
+
+    /**
+     * Crée un compilateur par lots.
+     *
+     * @param service Le service qui compile le Java
+     * @param cache   Le cache des compilations
+     * @param pool    Le pool où sont faites les traductions et compilations
+     */
+    public BatchCompiler(CompilerService service, CompileCache cache, ForkJoinPool pool) {
+        if (service == null || cache == null || pool == null)
+            throw new IllegalArgumentException("Le compilateur par lots a besoin d'un service, d'un cache et d'un pool");
+        this.service = service;
+        this.cache = cache;
+        this.pool = pool;
+    }
+
+    private static synchronized ForkJoinPool getSharedPool() {
+        if (sharedPool == null)
+            sharedPool = new ForkJoinPool();
+        return sharedPool;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions pour la compilation
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Compile un lot de copies.
+     *
+     * @param submissions Les copies à compiler
+     * @return Le résultat de chaque copie, indexé par l'identifiant de la copie et dans le même ordre. Une copie dont
+     *         la traduction a échoué a un résultat sans classe avec une erreur.
+     * @throws IllegalArgumentException Si deux copies ont le même identifiant
+     */
+    public Map<String, CompileCache.Entry> compile(List<Submission> submissions) {
+        // Traduction en parallèle
+        List<Callable<Unit>> translations = new ArrayList<Callable<Unit>>(submissions.size());
+        Map<String, Boolean> ids = new HashMap<String, Boolean>();
+        for (final Submission submission : submissions) {
+            if (ids.put(submission.getId(), Boolean.TRUE) != null)
+                throw new IllegalArgumentException("Deux copies ont l'identifiant " + submission.getId());
+            translations.add(new Callable<Unit>() {
+                public Unit call() {
+                    return translate(submission);
+                }
+            });
+        }
+        List<Unit> units = new ArrayList<Unit>(submissions.size());
+        for (Future<Unit> translation : pool.invokeAll(translations)) {
+            try {
+                units.add(translation.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Compilation interrompue", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Erreur lors de la traduction : " + e.getCause(), e.getCause());
+            }
+        }
+
+        // Les copies identiques ne sont compilées qu'une fois
+        List<Unit> toCompile = new ArrayList<Unit>();
+        Map<CompileCache.Key, Unit> byKey = new HashMap<CompileCache.Key, Unit>();
+        for (Unit unit : units) {
+            if (unit.entry != null)
+                continue;
+            Unit same = unit.key == null ? null : byKey.get(unit.key);
+            if (same != null) {
+                same.duplicates.add(unit);
+            } else {
+                if (unit.key != null)
+                    byKey.put(unit.key, unit);
+                toCompile.add(unit);
+            }
+        }
+
+        // Compilation par paquets
+        if (!toCompile.isEmpty())
+            pool.invoke(new Shard(toCompile));
+
+        Map<String, CompileCache.Entry> results = new LinkedHashMap<String, CompileCache.Entry>();
+        for (Unit unit : toCompile) {
+            if (unit.key != null && unit.compiled)
+                cache.put(unit.key, unit.entry);
+            for (Unit duplicate : unit.duplicates)
+                duplicate.entry = unit.entry;
+        }
+        for (Unit unit : units)
+            results.put(unit.submission.getId(), unit.entry);
+        return results;
+    }
+
+    /**
+     * Prépare une copie : création du translator, recherche dans le cache puis traduction.
+     */
+    private Unit translate(Submission submission) {
+        Unit unit = new Unit(submission);
+        try {
+            ProgletCodeCompiler compiler = new ProgletCodeCompiler(submission.getProglet(), submission.getJvsCode());
+            JVSTranslator translator = compiler.prepareTranslator();
+            unit.key = compiler.getCacheKey();
+            // Les proglets d'un Jar sont compilées avec leur propre classpath
+            CompilerService own = compiler.getCompilerService();
+            unit.service = own == CompilerService.getInstance() ? service : own;
+            if (unit.key != null)
+                unit.entry = cache.get(unit.key);
+            if (unit.entry == null) {
+                unit.javaCode = translator.getJavaCode();
+                unit.className = translator.getFullClassname();
+            }
+        } catch (RuntimeException e) {
+            unit.entry = error(null, "Erreur lors de la traduction : " + e.getMessage());
+        }
+        return unit;
+    }
+
+    /**
+     * Compile un paquet de copies en une passe du compilateur. Si le compilateur plante, chaque copie du paquet est
+     * recompilée seule pour isoler la copie fautive.
+     */
+    private void compileShard(List<Unit> shard) {
+        // Une passe du compilateur par service : les proglets d'un Jar ont leur propre classpath
+        Map<CompilerService, Map<String, String>> sources = new LinkedHashMap<CompilerService, Map<String, String>>();
+        List<Unit> alone = new ArrayList<Unit>();
+        for (Unit unit : shard) {
+            Map<String, String> group = sources.get(unit.service);
+            if (group == null) {
+                group = new LinkedHashMap<String, String>();
+                sources.put(unit.service, group);
+            }
+            if (group.containsKey(unit.className)) // Deux classes du même nom ne peuvent pas être compilées ensemble
+                alone.add(unit);
+            else
+                group.put(unit.className, unit.javaCode);
+        }
+        try {
+            Map<CompilerService, Map<String, CompilationOutput>> outputs =
+                    new HashMap<CompilerService, Map<String, CompilationOutput>>();
+            for (Map.Entry<CompilerService, Map<String, String>> group : sources.entrySet())
+                outputs.put(group.getKey(), group.getKey().compileSeparately(group.getValue()));
+            for (Unit unit : shard) {
+                if (alone.contains(unit))
+                    continue;
+                CompilationOutput output = outputs.get(unit.service).get(unit.className);
+                unit.entry = new CompileCache.Entry(output.getClassName(), output.getClasses(),
+                        output.getDiagnostics());
+                unit.compiled = true;
+            }
+        } catch (RuntimeException e) {
+            if (shard.size() == 1) {
+                shard.get(0).entry = error(shard.get(0).className, "Erreur du compilateur : " + e);
+                return;
+            }
+            alone = shard;
+        }
+        for (Unit unit : alone)
+            compileShard(Collections.singletonList(unit));
+    }
+
+    private static CompileCache.Entry error(String className, String message) {
+        return new CompileCache.Entry(className, Collections.<String, byte[]>emptyMap(), Collections.singletonList(
+                new JVSDiagnostic(Diagnostic.Kind.ERROR, null, Diagnostic.NOPOS, Diagnostic.NOPOS, Diagnostic.NOPOS,
+                        Diagnostic.NOPOS, null, message)));
+    }
+
+    /**
+     * Découpe les copies à compiler en paquets de {@link #SHARD_SIZE} au plus.
+     */
+    private class Shard extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Unit> units;
+
+        Shard(List<Unit> units) {
+            this.units = units;
+        }
+
+        @Override
+        protected void compute() {
+            if (units.size() <= SHARD_SIZE) {
+                compileShard(units);
+            } else {
+                int middle = units.size() / 2;
+                invokeAll(new Shard(units.subList(0, middle)), new Shard(units.subList(middle, units.size())));
+            }
+        }
+    }
+
+    /**
+     * Une copie en cours de compilation.
+     */
+    private static class Unit {
+        final Submission submission;
+        CompileCache.Key key;
+        String className;
+        String javaCode;
+        /**
+         * Le service qui compile la copie.
+         */
+        CompilerService service;
+        CompileCache.Entry entry;
+        /**
+         * Vrai si le résultat vient du compilateur et peut donc être gardé dans le cache.
+         */
+        boolean compiled;
+        /**
+         * Les copies identiques à celle-ci, qui recevront le même résultat.
+         */
+        final List<Unit> duplicates = new ArrayList<Unit>();
+
+        Unit(Submission submission) {
+            this.submission = submission;
+        }
+    }
+
+    /**
+     * Une copie à compiler : un code JVS et sa proglet.
+     */
+    public static class Submission {
+        private final String id;
+        private final String proglet;
+        private final String jvsCode;
+
+        /**
+         * Crée une copie.
+         *
+         * @param id      L'identifiant de la copie (ex. le nom de l'élève), unique dans un lot
+         * @param proglet Le nom de code de la proglet, ou null pour la proglet native
+         * @param jvsCode Le code JVS
+         */
+        public Submission(String id, String proglet, String jvsCode) {
+            if (id == null || jvsCode == null)
+                throw new IllegalArgumentException("Une copie a besoin d'un identifiant et d'un code");
+            this.id = id;
+            this.proglet = proglet;
+            this.jvsCode = jvsCode;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getProglet() {
+            return proglet;
+        }
+
+        public String getJvsCode() {
+            return jvsCode;
+        }
+    }
+}
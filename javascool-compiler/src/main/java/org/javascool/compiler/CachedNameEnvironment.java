@@ -0,0 +1,263 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.compiler;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Environnement de noms partagé par toutes les compilations du {@link CompilerService}. Eclipse lui demande les
+ * classes du classpath (framework, Functions des proglets, java.lang.Math ...) : on les lit une seule fois depuis un
+ * ClassLoader puis on garde leur bytecode en cache.
+ * <p/>
+ * Chaque classe lue dans un Jar retient ce Jar. Avant chaque compilation, {@link #refresh()} vérifie la date et la
+ * taille des Jars connus : seules les classes d'un Jar modifié sont oubliées.
+ * <p/>
+ * Cet environnement peut être utilisé par plusieurs compilations en même temps.
+ *
+ * @see CompilerService
+ * @since 5.0
+ */
+class CachedNameEnvironment implements INameEnvironment {
+    /**
+     * Au delà de ce nombre de réponses gardées en cache pour des noms inconnus ou des packages, on vide ce cache. Les noms inconnus viennent
+     * du code des élèves et sont donc en nombre illimité.
+     */
+    private static final int MAX_MISSING = 10000;
+
+    /**
+     * Le ClassLoader où sont cherchées les classes.
+     */
+    private final ClassLoader classLoader;
+    /**
+     * Les classes déjà lues, indexées par leur chemin (ex. java/lang/Math).
+     */
+    private final ConcurrentHashMap<String, ClassEntry> classes = new ConcurrentHashMap<String, ClassEntry>();
+    /**
+     * Les chemins qui ne correspondent à aucune classe.
+     */
+    private final ConcurrentHashMap<String, Boolean> missing = new ConcurrentHashMap<String, Boolean>();
+    /**
+     * Les réponses déjà données à {@link #isPackage(char[][], char[])}.
+     */
+    private final ConcurrentHashMap<String, Boolean> packages = new ConcurrentHashMap<String, Boolean>();
+    /**
+     * L'état (date et taille) de chaque Jar d'où on a lu une classe.
+     */
+    private final ConcurrentHashMap<File, String> jarStamps = new ConcurrentHashMap<File, String>();
+
+    /**
+     * Crée un environnement sur un ClassLoader.
+     *
+     * @param classLoader Le ClassLoader qui donne accès au classpath de compilation
+     */
+    CachedNameEnvironment(ClassLoader classLoader) {
+        if (classLoader == null)
+            throw new IllegalArgumentException("L'environnement de compilation a besoin d'un ClassLoader");
+        this.classLoader = classLoader;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions de l'environnement Eclipse
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+        return findType(join(compoundTypeName, null));
+    }
+
+    public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+        return findType(join(packageName, typeName));
+    }
+
+    /**
+     * Un nom est un package s'il ne désigne pas une classe, comme le fait le compilateur des JSP de Tomcat. Un
+     * ClassLoader ne permet pas de lister les packages de façon fiable.
+     */
+    public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+        String path = join(parentPackageName, packageName);
+        Boolean isPackage = packages.get(path);
+        if (isPackage == null) {
+            isPackage = findClass(path) == null;
+            if (packages.size() > MAX_MISSING)
+                packages.clear();
+            packages.put(path, isPackage);
+        }
+        return isPackage;
+    }
+
+    /**
+     * Ne fait rien : l'environnement survit aux compilations, c'est tout son intérêt.
+     */
+    public void cleanup() {
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Gestion du cache
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Vérifie que les Jars n'ont pas changé depuis qu'on y a lu des classes. Les classes des Jars modifiés sont
+     * oubliées.
+     */
+    void refresh() {
+        for (Map.Entry<File, String> jar : jarStamps.entrySet()) {
+            if (!jar.getValue().equals(stamp(jar.getKey())))
+                invalidate(jar.getKey());
+        }
+    }
+
+    /**
+     * Oublie les classes lues dans un Jar.
+     *
+     * @param jar Le Jar qui a changé
+     */
+    void invalidate(File jar) {
+        File key = jar.getAbsoluteFile();
+        jarStamps.remove(key);
+        for (Iterator<ClassEntry> it = classes.values().iterator(); it.hasNext(); ) {
+            if (key.equals(it.next().jar))
+                it.remove();
+        }
+        // Le Jar peut maintenant contenir des classes ou des packages qu'on ne connaissait pas
+        missing.clear();
+        packages.clear();
+        Logger.getAnonymousLogger().log(Level.FINE, "Le cache de compilation oublie les classes de " + jar);
+    }
+
+    /**
+     * Oublie toutes les classes lues.
+     */
+    void invalidateAll() {
+        jarStamps.clear();
+        classes.clear();
+        missing.clear();
+        packages.clear();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private NameEnvironmentAnswer findType(String path) {
+        ClassEntry entry = findClass(path);
+        if (entry == null)
+            return null;
+        try { // Le lecteur est créé à chaque fois : il n'est pas prévu pour être partagé entre compilations
+            return new NameEnvironmentAnswer(new ClassFileReader(entry.bytes, entry.fileName), null);
+        } catch (Exception e) {
+            Logger.getAnonymousLogger().log(Level.WARNING, "Impossible de lire la classe " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Cherche une classe dans le cache puis dans le ClassLoader.
+     *
+     * @param path Le chemin de la classe sans extension (ex. java/lang/Math)
+     * @return La classe ou null si elle n'existe pas
+     */
+    private ClassEntry findClass(String path) {
+        ClassEntry entry = classes.get(path);
+        if (entry != null || missing.containsKey(path))
+            return entry;
+        URL url = classLoader.getResource(path + ".class");
+        if (url == null) {
+            if (missing.size() > MAX_MISSING)
+                missing.clear();
+            missing.put(path, Boolean.TRUE);
+            return null;
+        }
+        try {
+            File jar = null;
+            if ("jar".equals(url.getProtocol())) {
+                URL jarUrl = ((JarURLConnection) url.openConnection()).getJarFileURL();
+                if ("file".equals(jarUrl.getProtocol()))
+                    jar = new File(jarUrl.toURI()).getAbsoluteFile();
+            }
+            InputStream in = url.openStream();
+            try {
+                entry = new ClassEntry(IOUtils.toByteArray(in), (path + ".class").toCharArray(), jar);
+            } finally {
+                in.close();
+            }
+            if (jar != null && !jarStamps.containsKey(jar))
+                jarStamps.put(jar, stamp(jar));
+            ClassEntry previous = classes.putIfAbsent(path, entry);
+            return previous == null ? entry : previous;
+        } catch (Exception e) {
+            Logger.getAnonymousLogger().log(Level.WARNING, "Impossible de lire la classe " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Donne l'état d'un Jar : sa date de modification et sa taille.
+     */
+    private static String stamp(File jar) {
+        return jar.lastModified() + ":" + jar.length();
+    }
+
+    /**
+     * Construit un chemin de classe ou de package à partir des noms découpés par Eclipse.
+     */
+    private static String join(char[][] names, char[] last) {
+        StringBuilder path = new StringBuilder();
+        if (names != null) {
+            for (char[] name : names) {
+                if (path.length() > 0) path.append('/');
+                path.append(name);
+            }
+        }
+        if (last != null) {
+            if (path.length() > 0) path.append('/');
+            path.append(last);
+        }
+        return path.toString();
+    }
+
+    /**
+     * Une classe du classpath en cache.
+     */
+    private static class ClassEntry {
+        final byte[] bytes;
+        final char[] fileName;
+        /**
+         * Le Jar d'où vient la classe, ou null si elle ne vient pas d'un Jar local.
+         */
+        final File jar;
+
+        ClassEntry(byte[] bytes, char[] fileName, File jar) {
+            this.bytes = bytes;
+            this.fileName = fileName;
+            this.jar = jar;
+        }
+    }
+}
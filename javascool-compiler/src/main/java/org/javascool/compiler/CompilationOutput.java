@@ -0,0 +1,104 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.compiler;
+
+import org.javascool.core.JVSDiagnostic;
+
+import javax.tools.Diagnostic;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Résultat d'une compilation du {@link CompilerService} : le bytecode des classes produites et les erreurs.
+ *
+ * @since 5.0
+ */
+public class CompilationOutput {
+    /**
+     * Le nom complet de la classe principale compilée.
+     */
+    private final String className;
+    /**
+     * Le bytecode des classes, indexé par leur nom complet.
+     */
+    private final Map<String, byte[]> classes;
+    /**
+     * Les erreurs de compilation.
+     */
+    private final List<JVSDiagnostic> diagnostics;
+
+    CompilationOutput(String className, Map<String, byte[]> classes, List<JVSDiagnostic> diagnostics) {
+        this.className = className;
+        this.classes = Collections.unmodifiableMap(classes);
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+    }
+
+    /**
+     * Donne le nom de la classe principale.
+     *
+     * @return Le nom complet de la classe (ex. org.javascool.Main)
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Donne le bytecode des classes produites. Il est vide si la compilation a échoué.
+     *
+     * @return Une table associant le nom complet de chaque classe à son bytecode
+     */
+    public Map<String, byte[]> getClasses() {
+        return classes;
+    }
+
+    /**
+     * Donne les erreurs de la compilation.
+     *
+     * @return La liste des erreurs, vide si tout s'est bien passé
+     */
+    public List<JVSDiagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Indique si la compilation a échoué.
+     *
+     * @return vrai s'il y a au moins une erreur
+     */
+    public boolean hasErrors() {
+        for (JVSDiagnostic diagnostic : diagnostics) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Crée un ClassLoader sur les classes compilées.
+     *
+     * @return Un nouveau ClassLoader définissant les classes depuis leur bytecode
+     * @throws IllegalStateException Si la compilation a échoué
+     */
+    public ClassLoader createClassLoader() {
+        if (hasErrors())
+            throw new IllegalStateException("On ne peut pas créer un ClassLoader sur des sources non-compilés");
+        return new JVSClassLoader(classes);
+    }
+}
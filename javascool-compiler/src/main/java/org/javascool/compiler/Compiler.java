@@ -19,23 +19,30 @@
 package org.javascool.compiler;
 
 import org.apache.commons.io.FileUtils;
-import org.eclipse.jdt.internal.compiler.tool.EclipseCompiler;
 
-import javax.tools.*;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
 import java.io.File;
-import java.nio.charset.Charset;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Compilateur de Classes Java. Cette classe permet de compiler des fichiers Java d'un répertoire puis ensuite d'en
- * disposer dans la JVM par un ClassLoader prévu à cette effet. Ce compilateur est une sur-couche du Apache Commons JCI
- * Eclipse. Ce compilateur necessite pour fonctionner : <ul> <li>Un répertoire de sources</li> <li>Des fichiers à
+ * disposer dans la JVM par un ClassLoader prévu à cette effet. Ce compilateur est une sur-couche du {@link
+ * CompilerService}, qui garde le compilateur Eclipse et le classpath en cache entre deux compilations. Ce compilateur necessite pour fonctionner : <ul> <li>Un répertoire de sources</li> <li>Des fichiers à
  * compiler, cela peut être : <ul> <li>Un tableau de fichiers absolut ou relatifs étant dans les sources : {@link
  * #Compiler(java.io.File, java.io.File...)}</li> <li>Un nom de classe (ex. org.javascool.Main) : {@link
  * #Compiler(java.io.File, String)}</li> <li>Une recherche automatisé des fichiers dans le répertoire source : {@link
- * #Compiler(java.io.File)}</li> </ul> </li> </ul>
+ * #Compiler(java.io.File)}</li> </ul> </li> </ul> Il peut aussi compiler un code Java directement en mémoire, sans
+ * passer par le disque : {@link #Compiler(String, String)}.
+ * <p/>
+ * Les erreurs peuvent être suivies pendant la compilation avec {@link #setDiagnosticListener(DiagnosticListener)}, et
+ * la compilation peut s'arrêter après quelques erreurs avec {@link #setMaxErrors(int)}.
  *
- * @see org.eclipse.jdt.internal.compiler.tool.EclipseCompiler Librairie utilisé pour la compilation
+ * @see CompilerService Service utilisé pour la compilation
  * @see org.apache.commons.io Librairie utilisé pour la recherche et manipulation de fichiers
  */
 public class Compiler {
@@ -48,6 +55,22 @@ public class Compiler {
      * Répertoire contenant les sources
      */
     private File srcDirectory;
+    /**
+     * Sources à compiler en mémoire, indexées par le nom de leur classe. Nul si on compile des fichiers.
+     */
+    private Map<String, String> sourcesInMemory;
+    /**
+     * Reçoit les erreurs au fur et à mesure de la compilation
+     */
+    private DiagnosticListener<? super JavaFileObject> diagnosticListener;
+    /**
+     * Nombre d'erreurs après lequel la compilation d'un source s'arrête, 0 pour tout compiler
+     */
+    private int maxErrors;
+    /**
+     * Le service qui compile, celui de l'application si aucun n'est donné
+     */
+    private CompilerService compilerService;
 
     /**
      * Initialise le compilateur avec un répertoire et une liste de fichiers
@@ -92,6 +115,20 @@ public class Compiler {
                 FileUtils.listFiles(directory, new String[]{"java"}, true));
     }
 
+    /**
+     * Initialise un compilateur travaillant entièrement en mémoire. Le code source n'est jamais écrit sur le disque
+     * et les classes compilées sont chargées directement depuis leur bytecode.
+     *
+     * @param className Le nom complet de la classe (ex. org.javascool.Main)
+     * @param javaCode  Le code Java de la classe
+     */
+    public Compiler(String className, String javaCode) {
+        if (className == null || javaCode == null)
+            throw new IllegalArgumentException("Il faut un nom de classe et un code pour compiler en mémoire");
+        sourcesInMemory = new LinkedHashMap<String, String>();
+        sourcesInMemory.put(className, javaCode);
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////////////////
     /////   Fonctions d'assertion
     //////////////////////////////////////////////////////////////////////////////////////////////////
@@ -157,12 +194,14 @@ public class Compiler {
 
     /**
      * Lance la compilation des fichiers. Va compiler les fichier dans le répertoire des sources. Les .class se
-     * retrouverons donc avec les .java.
+     * retrouverons donc avec les .java. Pour un compilateur en mémoire, rien n'est écrit sur le disque.
      *
      * @return Le résultat de la compilation
      * @see #compile(java.io.File)
      */
     public ArrayList<Diagnostic<? extends JavaFileObject>> compile() {
+        if (sourcesInMemory != null)
+            return compileInMemory();
         return compile(srcDirectory);
     }
 
@@ -171,49 +210,84 @@ public class Compiler {
      *
      * @param binDirectory Répertoire cible pour la compilation. Il doit déjà exister et être un dossier
      * @return Les erreurs de la compilation
+     * @see CompilerService
      */
     public ArrayList<Diagnostic<? extends JavaFileObject>> compile(File binDirectory) {
+        if (sourcesInMemory != null)
+            throw new IllegalStateException("Un compilateur en mémoire n'a pas de fichiers à compiler");
         assertDirectoryExists(binDirectory);
-        final ArrayList<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<Diagnostic<? extends JavaFileObject>>();
 
-        ArrayList<String> sourceFiles = new ArrayList<String>(filesToCompile.length);
-        for (File srcFile : filesToCompile)
-            sourceFiles.add(srcDirectory.toURI().relativize(srcFile.toURI()).getPath());
-        classLoader = new JVSClassLoader(binDirectory);
-
-        JavaCompiler eclipseCompiler;
-        ArrayList<String> options;
-        eclipseCompiler = new EclipseCompiler();
-        options = getCompilerOptions();
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        for (File srcFile : filesToCompile) {
+            String path = srcDirectory.toURI().relativize(srcFile.toURI()).getPath();
+            try {
+                sources.put(path.replaceFirst("\\.java$", "").replace('/', '.'),
+                        FileUtils.readFileToString(srcFile, "UTF-8"));
+            } catch (IOException e) {
+                throw new IllegalStateException("Impossible de lire le fichier " + srcFile, e);
+            }
+        }
+        classLoader = new JVSClassLoader(binDirectory, getCompilerService().getClassLoader());
+        if (sources.isEmpty())
+            return new ArrayList<Diagnostic<? extends JavaFileObject>>();
 
-        DiagnosticListener<? super JavaFileObject> diagnosticListener = new DiagnosticListener<JavaFileObject>() {
-            public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
-                errors.add(diagnostic);
+        CompilationOutput output = getCompilerService().compile(sources, diagnosticListener, maxErrors);
+        for (Map.Entry<String, byte[]> compiledClass : output.getClasses().entrySet()) {
+            try {
+                FileUtils.writeByteArrayToFile(new File(binDirectory,
+                        compiledClass.getKey().replace('.', File.separatorChar) + ".class"), compiledClass.getValue());
+            } catch (IOException e) {
+                throw new IllegalStateException("Impossible d'écrire la classe " + compiledClass.getKey(), e);
             }
-        };
+        }
+        return new ArrayList<Diagnostic<? extends JavaFileObject>>(output.getDiagnostics());
+    }
 
-        StandardJavaFileManager fileManager =
-                eclipseCompiler.getStandardFileManager(diagnosticListener, null, Charset.forName("UTF-8"));
-        Iterable<? extends JavaFileObject> compilationUnits =
-                fileManager.getJavaFileObjects(sourceFiles.toArray(new String[sourceFiles.size()]));
+    /**
+     * Lance la compilation des sources en mémoire. Le bytecode produit reste en mémoire et le ClassLoader obtenu le
+     * définit directement.
+     *
+     * @return Les erreurs de la compilation
+     * @see CompilerService
+     */
+    private ArrayList<Diagnostic<? extends JavaFileObject>> compileInMemory() {
+        CompilationOutput output = getCompilerService().compile(sourcesInMemory, diagnosticListener, maxErrors);
+        classLoader = new JVSClassLoader(output.getClasses(), getCompilerService().getClassLoader());
+        return new ArrayList<Diagnostic<? extends JavaFileObject>>(output.getDiagnostics());
+    }
 
-        eclipseCompiler.getTask(null, fileManager, diagnosticListener, options, null, compilationUnits).call();
+    /**
+     * Donne un écouteur qui recevra chaque erreur dès qu'elle est trouvée, avant la fin de la compilation.
+     *
+     * @param diagnosticListener L'écouteur, ou null pour aucun
+     */
+    public void setDiagnosticListener(DiagnosticListener<? super JavaFileObject> diagnosticListener) {
+        this.diagnosticListener = diagnosticListener;
+    }
 
-        return errors;
+    /**
+     * Limite le nombre d'erreurs : la compilation d'un source s'arrête dès qu'il a autant d'erreurs.
+     *
+     * @param maxErrors Le nombre maximal d'erreurs par source, 0 pour tout compiler
+     */
+    public void setMaxErrors(int maxErrors) {
+        if (maxErrors < 0)
+            throw new IllegalArgumentException("Le nombre maximal d'erreurs ne peut pas être négatif");
+        this.maxErrors = maxErrors;
     }
 
     /**
-     * Génère les options pour le compilateur Eclipse. <a href="http://help.eclipse.org/galileo/index.jsp?topic=/org.eclipse.jdt.doc.isv/guide/jdt_api_compile.htm">
-     * Specs du Compilateur</a>
+     * Donne le service qui compile. Les classes compilées sont chargées avec le classpath de ce service, par exemple
+     * celui du Jar d'une proglet.
      *
-     * @return Le tableau des options
-     */
-    private ArrayList<String> getCompilerOptions() {
-        ArrayList<String> o = new ArrayList<String>();
-        o.add("-nowarn");
-        o.add("-1.6");
-        o.add("-Xemacs");
-        return o;
+     * @param compilerService Le service, ou null pour celui de l'application
+     */
+    public void setCompilerService(CompilerService compilerService) {
+        this.compilerService = compilerService;
+    }
+
+    private CompilerService getCompilerService() {
+        return compilerService == null ? CompilerService.getInstance() : compilerService;
     }
 
     //////////////////////////////////////////////////////////////////////////////////////////////////
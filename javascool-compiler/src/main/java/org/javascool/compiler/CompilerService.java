@@ -0,0 +1,506 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.compiler;
+
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.IErrorHandlingPolicy;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
+import org.javascool.core.JVSDiagnostic;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Service de compilation Java en mémoire qui reste "chaud" entre deux compilations. Contrairement au {@link Compiler}
+ * d'origine, qui recréait un compilateur Eclipse et relisait tous les Jars du classpath à chaque fois, ce service
+ * garde en cache les classes du classpath (framework, Functions des proglets, java.lang.Math ...) : une compilation
+ * ne lit plus que le code de l'élève.
+ * <p/>
+ * Le cache n'est invalidé que lorsqu'un Jar d'où il a lu des classes change sur le disque (ou sur demande avec
+ * {@link #invalidate(java.io.File)}).
+ * <p/>
+ * Le service est partagé : {@link #compile(String)} peut être appelé par plusieurs threads en même temps. Chaque
+ * compilation a son propre compilateur Eclipse (peu coûteux à créer), seul l'environnement de noms est commun.
+ * <p/>
+ * Les erreurs peuvent être reçues au fur et à mesure de la compilation par un {@link DiagnosticListener}, et la
+ * compilation d'un source peut s'arrêter après un nombre d'erreurs donné : pour un élève, la première erreur suffit
+ * souvent.
+ *
+ * @see CachedNameEnvironment
+ * @since 5.0
+ */
+public class CompilerService {
+
+    /**
+     * Les options du compilateur Eclipse, identiques pour toutes les compilations (équivalent de "-1.6 -nowarn").
+     */
+    private static final Map<String, String> SETTINGS;
+
+    static {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_6);
+        settings.put(CompilerOptions.OPTION_Source, CompilerOptions.VERSION_1_6);
+        settings.put(CompilerOptions.OPTION_TargetPlatform, CompilerOptions.VERSION_1_6);
+        settings.put(CompilerOptions.OPTION_Encoding, "UTF-8");
+        settings.put(CompilerOptions.OPTION_LineNumberAttribute, CompilerOptions.GENERATE);
+        settings.put(CompilerOptions.OPTION_SourceFileAttribute, CompilerOptions.GENERATE);
+        settings.put(CompilerOptions.OPTION_LocalVariableAttribute, CompilerOptions.GENERATE);
+        settings.put(CompilerOptions.OPTION_ReportDeprecation, CompilerOptions.IGNORE);
+        SETTINGS = Collections.unmodifiableMap(settings);
+    }
+
+    /**
+     * Trouve le package déclaré par un source Java.
+     */
+    private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+    /**
+     * Trouve la classe publique déclarée par un source Java.
+     */
+    private static final Pattern PUBLIC_CLASS = Pattern.compile(
+            "public\\s+(?:(?:final|abstract|strictfp)\\s+)*(?:class|interface|enum)\\s+(\\w+)");
+
+    private static CompilerService instance;
+
+    /**
+     * L'environnement de noms partagé par toutes les compilations.
+     */
+    private final CachedNameEnvironment environment;
+    /**
+     * Le ClassLoader qui donne le classpath de compilation.
+     */
+    private final ClassLoader classLoader;
+
+    /**
+     * Donne le service partagé. Il compile avec le classpath de l'application.
+     *
+     * @return Le service de compilation
+     */
+    public static synchronized CompilerService getInstance() {
+        if (instance == null)
+            instance = new CompilerService(CompilerService.class.getClassLoader());
+        return instance;
+    }
+
+    /**
+     * Crée un service de compilation sur un classpath particulier.
+     *
+     * @param classLoader Le ClassLoader donnant accès aux classes utilisables par les codes compilés
+     */
+    public CompilerService(ClassLoader classLoader) {
+        environment = new CachedNameEnvironment(classLoader);
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Donne le ClassLoader du classpath de compilation. Les classes compilées doivent être chargées avec lui comme
+     * parent.
+     */
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Donne les options du compilateur, par exemple pour la clé du {@link org.javascool.core.CompileCache}.
+     *
+     * @return Les options, triées par nom
+     */
+    public static String getOptions() {
+        return new TreeMap<String, String>(SETTINGS).toString();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions pour la compilation
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Prépare le service en compilant une classe simple. Les classes de base (java.lang, java.lang.Math ...) sont ainsi
+     * en cache avant la première compilation d'un élève.
+     *
+     * @return Le service lui même
+     */
+    public CompilerService warmUp() {
+        compile("JVSWarmUp", "public class JVSWarmUp implements Runnable {" +
+                " public void run() { System.out.println(\"\" + Math.sqrt(2) + new StringBuilder()); } }");
+        return this;
+    }
+
+    /**
+     * Compile un source Java. Le nom de la classe est déduit de la déclaration de package et de la classe publique.
+     *
+     * @param source Le code Java
+     * @return Le résultat de la compilation
+     * @throws IllegalArgumentException Si le source ne déclare pas de classe publique
+     */
+    public CompilationOutput compile(String source) {
+        if (source == null)
+            throw new IllegalArgumentException("Aucun code à compiler");
+        Matcher publicClass = PUBLIC_CLASS.matcher(source);
+        if (!publicClass.find())
+            throw new IllegalArgumentException("Le code ne déclare pas de classe publique");
+        Matcher packageName = PACKAGE.matcher(source);
+        String className = packageName.find() ? packageName.group(1) + "." + publicClass.group(1)
+                : publicClass.group(1);
+        return compile(className, source);
+    }
+
+    /**
+     * Compile un source Java.
+     *
+     * @param className Le nom complet de la classe déclarée dans le source (ex. org.javascool.Main)
+     * @param source    Le code Java
+     * @return Le résultat de la compilation
+     */
+    public CompilationOutput compile(String className, String source) {
+        if (className == null || source == null)
+            throw new IllegalArgumentException("Il faut un nom de classe et un code pour compiler en mémoire");
+        return compile(Collections.singletonMap(className, source), className, null, 0);
+    }
+
+    /**
+     * Compile plusieurs sources Java ensemble.
+     *
+     * @param sources Les codes Java indexés par le nom complet de leur classe
+     * @return Le résultat de la compilation, dont la classe principale est la première donnée
+     */
+    public CompilationOutput compile(Map<String, String> sources) {
+        return compile(sources, null, 0);
+    }
+
+    /**
+     * Compile plusieurs sources Java ensemble en envoyant les erreurs au fur et à mesure.
+     *
+     * @param sources   Les codes Java indexés par le nom complet de leur classe
+     * @param listener  Reçoit chaque erreur dès qu'elle est trouvée (peut être null)
+     * @param maxErrors Le nombre d'erreurs après lequel la compilation d'un source s'arrête, 0 pour tout compiler
+     * @return Le résultat de la compilation, dont la classe principale est la première donnée
+     */
+    public CompilationOutput compile(Map<String, String> sources, DiagnosticListener<? super JavaFileObject> listener,
+                                     int maxErrors) {
+        if (sources == null || sources.isEmpty())
+            throw new IllegalArgumentException("Aucun code à compiler");
+        return compile(sources, sources.keySet().iterator().next(), listener, maxErrors);
+    }
+
+    /**
+     * Compile un source Java en envoyant les erreurs au fur et à mesure.
+     *
+     * @param className Le nom complet de la classe déclarée dans le source (ex. org.javascool.Main)
+     * @param source    Le code Java
+     * @param listener  Reçoit chaque erreur dès qu'elle est trouvée (peut être null)
+     * @param maxErrors Le nombre d'erreurs après lequel la compilation s'arrête, 0 pour tout compiler
+     * @return Le résultat de la compilation, avec au plus maxErrors erreurs
+     */
+    public CompilationOutput compile(String className, String source, DiagnosticListener<? super JavaFileObject> listener,
+                                     int maxErrors) {
+        if (className == null || source == null)
+            throw new IllegalArgumentException("Il faut un nom de classe et un code pour compiler en mémoire");
+        return compile(Collections.singletonMap(className, source), className, listener, maxErrors);
+    }
+
+    /**
+     * Compile plusieurs sources Java indépendants en une seule passe du compilateur. Chaque source a son propre
+     * résultat : une erreur dans l'un n'empêche pas les autres d'être compilés.
+     *
+     * @param sources Les codes Java indexés par le nom complet de leur classe
+     * @return Le résultat de chaque source, indexé par le nom complet de sa classe et dans le même ordre
+     */
+    public Map<String, CompilationOutput> compileSeparately(Map<String, String> sources) {
+        return compileSeparately(sources, null, 0);
+    }
+
+    /**
+     * Compile plusieurs sources Java indépendants en envoyant les erreurs au fur et à mesure.
+     * <p/>
+     * Le compilateur Eclipse abandonne toute sa passe lorsqu'un source atteint sa limite d'erreurs : les sources qui
+     * n'ont pas encore de résultat sont alors compilés dans une nouvelle passe.
+     *
+     * @param sources   Les codes Java indexés par le nom complet de leur classe
+     * @param listener  Reçoit chaque erreur dès qu'elle est trouvée (peut être null)
+     * @param maxErrors Le nombre d'erreurs après lequel la compilation d'un source s'arrête, 0 pour tout compiler
+     * @return Le résultat de chaque source, indexé par le nom complet de sa classe et dans le même ordre
+     */
+    public Map<String, CompilationOutput> compileSeparately(Map<String, String> sources,
+                                                            DiagnosticListener<? super JavaFileObject> listener,
+                                                            int maxErrors) {
+        if (sources == null || sources.isEmpty())
+            throw new IllegalArgumentException("Aucun code à compiler");
+        environment.refresh();
+
+        // Eclipse efface le tableau des unités pendant la compilation, on les garde donc aussi dans une liste
+        List<MemoryCompilationUnit> units = new ArrayList<MemoryCompilationUnit>(sources.size());
+        Map<String, MemoryCompilationUnit> unitsByFile = new HashMap<String, MemoryCompilationUnit>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            MemoryCompilationUnit unit = new MemoryCompilationUnit(source.getKey(), source.getValue());
+            unitsByFile.put(new String(unit.getFileName()), unit);
+            units.add(unit);
+        }
+
+        List<MemoryCompilationUnit> pending = units;
+        while (!pending.isEmpty()) {
+            compilePass(pending, unitsByFile, listener, maxErrors);
+            List<MemoryCompilationUnit> left = new ArrayList<MemoryCompilationUnit>();
+            for (MemoryCompilationUnit unit : pending) {
+                if (!unit.accepted)
+                    left.add(unit);
+            }
+            if (left.size() == pending.size()) { // Aucun progrès : on ne recommence pas indéfiniment
+                for (MemoryCompilationUnit unit : left)
+                    unit.diagnostics.add(new JVSDiagnostic(Diagnostic.Kind.ERROR, new String(unit.getFileName()),
+                            Diagnostic.NOPOS, Diagnostic.NOPOS, Diagnostic.NOPOS, Diagnostic.NOPOS, null,
+                            "Compilation interrompue"));
+                break;
+            }
+            pending = left;
+        }
+
+        Map<String, CompilationOutput> outputs = new LinkedHashMap<String, CompilationOutput>();
+        for (MemoryCompilationUnit unit : units)
+            outputs.put(unit.className, new CompilationOutput(unit.className, unit.classes, unit.diagnostics));
+        return outputs;
+    }
+
+    /**
+     * Lance une passe du compilateur Eclipse sur des sources.
+     */
+    private void compilePass(List<MemoryCompilationUnit> units, final Map<String, MemoryCompilationUnit> unitsByFile,
+                             DiagnosticListener<? super JavaFileObject> listener, final int maxErrors) {
+        for (MemoryCompilationUnit unit : units)
+            unit.errors = 0;
+        ICompilerRequestor requestor = new ICompilerRequestor() {
+            public void acceptResult(CompilationResult result) {
+                String fileName = new String(result.getFileName());
+                MemoryCompilationUnit unit = unitsByFile.get(fileName);
+                unit.accepted = true;
+                if (result.hasErrors()) {
+                    for (CategorizedProblem problem : result.getErrors())
+                        unit.diagnostics.add(toDiagnostic(fileName, unit.source, problem));
+                    return;
+                }
+                for (ClassFile classFile : result.getClassFiles()) {
+                    StringBuilder name = new StringBuilder();
+                    for (char[] part : classFile.getCompoundName()) {
+                        if (name.length() > 0) name.append('.');
+                        name.append(part);
+                    }
+                    unit.classes.put(name.toString(), classFile.getBytes());
+                }
+            }
+        };
+        final StreamingProblemFactory problemFactory = new StreamingProblemFactory(unitsByFile, listener);
+
+        new org.eclipse.jdt.internal.compiler.Compiler(environment, new IErrorHandlingPolicy() {
+            public boolean proceedOnErrors() {
+                return true;
+            }
+
+            /**
+             * Demandé par Eclipse juste après chaque erreur : on arrête quand le source fautif a atteint sa limite.
+             */
+            public boolean stopOnFirstError() {
+                return maxErrors > 0 && problemFactory.lastUnit != null && problemFactory.lastUnit.errors >= maxErrors;
+            }
+        }, new CompilerOptions(SETTINGS), requestor, problemFactory)
+                .compile(units.toArray(new ICompilationUnit[units.size()]));
+    }
+
+    private CompilationOutput compile(Map<String, String> sources, String mainClassName,
+                                      DiagnosticListener<? super JavaFileObject> listener, int maxErrors) {
+        Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        List<JVSDiagnostic> diagnostics = new ArrayList<JVSDiagnostic>();
+        for (CompilationOutput output : compileSeparately(sources, listener, maxErrors).values()) {
+            classes.putAll(output.getClasses());
+            diagnostics.addAll(output.getDiagnostics());
+        }
+        return new CompilationOutput(mainClassName, classes, diagnostics);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Gestion du cache
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Oublie les classes lues dans un Jar. Les changements de Jar sont normalement détectés tout seuls ; cette
+     * fonction sert lorsque le Jar a été remplacé sans changer de date ni de taille.
+     *
+     * @param jar Le Jar qui a changé
+     */
+    public void invalidate(File jar) {
+        environment.invalidate(jar);
+    }
+
+    /**
+     * Oublie toutes les classes du classpath gardées en cache.
+     */
+    public void invalidateAll() {
+        environment.invalidateAll();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Convertit une erreur Eclipse en diagnostic.
+     */
+    private static JVSDiagnostic toDiagnostic(String fileName, String source, CategorizedProblem problem) {
+        int start = problem.getSourceStart();
+        long column = Diagnostic.NOPOS;
+        if (source != null && start >= 0 && start <= source.length())
+            column = start - source.lastIndexOf('\n', start - 1);
+        return new JVSDiagnostic(problem.isError() ? Diagnostic.Kind.ERROR : Diagnostic.Kind.WARNING, fileName,
+                problem.getSourceLineNumber(), column, start, problem.getSourceEnd(),
+                String.valueOf(problem.getID()), problem.getMessage());
+    }
+
+    /**
+     * Une unité de compilation dont le code est dans une chaîne de caractères.
+     */
+    private static class MemoryCompilationUnit implements ICompilationUnit {
+        private final String className;
+        private final String source;
+        private final char[] contents;
+        private final char[] fileName;
+        private final char[] mainTypeName;
+        private final char[][] packageName;
+        /**
+         * Les classes produites par ce source.
+         */
+        private final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        /**
+         * Les erreurs de ce source.
+         */
+        private final List<JVSDiagnostic> diagnostics = new ArrayList<JVSDiagnostic>();
+        /**
+         * Le nombre d'erreurs trouvées pendant la passe en cours.
+         */
+        private int errors;
+        /**
+         * Vrai quand Eclipse a rendu le résultat de ce source.
+         */
+        private boolean accepted;
+        /**
+         * Les erreurs déjà envoyées, pour ne pas les renvoyer si le source est recompilé.
+         */
+        private final Set<String> reported = new HashSet<String>();
+
+        MemoryCompilationUnit(String className, String source) {
+            this.className = className;
+            this.source = source;
+            contents = source.toCharArray();
+            fileName = (className.replace('.', '/') + ".java").toCharArray();
+            String[] path = className.split("\\.");
+            mainTypeName = path[path.length - 1].toCharArray();
+            packageName = new char[path.length - 1][];
+            for (int i = 0; i < packageName.length; i++)
+                packageName[i] = path[i].toCharArray();
+        }
+
+        public char[] getContents() {
+            return contents;
+        }
+
+        public char[] getMainTypeName() {
+            return mainTypeName;
+        }
+
+        public char[][] getPackageName() {
+            return packageName;
+        }
+
+        public char[] getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Demandé par les versions plus récentes d'Eclipse (3.8 et plus).
+         */
+        public boolean ignoreOptionalProblems() {
+            return false;
+        }
+    }
+
+    /**
+     * Fabrique d'erreurs qui compte les erreurs de chaque source et les envoie dès leur création, sans attendre la fin
+     * de la compilation du source.
+     */
+    private static class StreamingProblemFactory extends DefaultProblemFactory {
+        private final Map<String, MemoryCompilationUnit> unitsByFile;
+        private final DiagnosticListener<? super JavaFileObject> listener;
+        /**
+         * Le source de la dernière erreur créée.
+         */
+        MemoryCompilationUnit lastUnit;
+
+        StreamingProblemFactory(Map<String, MemoryCompilationUnit> unitsByFile,
+                                DiagnosticListener<? super JavaFileObject> listener) {
+            super(Locale.getDefault());
+            this.unitsByFile = unitsByFile;
+            this.listener = listener;
+        }
+
+        public CategorizedProblem createProblem(char[] originatingFileName, int problemId, String[] problemArguments,
+                                                String[] messageArguments, int severity, int startPosition,
+                                                int endPosition, int lineNumber, int columnNumber) {
+            return report(originatingFileName, super.createProblem(originatingFileName, problemId, problemArguments,
+                    messageArguments, severity, startPosition, endPosition, lineNumber, columnNumber));
+        }
+
+        public CategorizedProblem createProblem(char[] originatingFileName, int problemId, String[] problemArguments,
+                                                int elaborationId, String[] messageArguments, int severity,
+                                                int startPosition, int endPosition, int lineNumber,
+                                                int columnNumber) {
+            return report(originatingFileName, super.createProblem(originatingFileName, problemId, problemArguments,
+                    elaborationId, messageArguments, severity, startPosition, endPosition, lineNumber, columnNumber));
+        }
+
+        private CategorizedProblem report(char[] originatingFileName, CategorizedProblem problem) {
+            if (!problem.isError() || originatingFileName == null)
+                return problem;
+            String fileName = new String(originatingFileName);
+            MemoryCompilationUnit unit = unitsByFile.get(fileName);
+            if (unit != null) {
+                unit.errors++;
+                lastUnit = unit;
+            }
+            if (listener != null && (unit == null
+                    || unit.reported.add(problem.getID() + ":" + problem.getSourceStart() + ":" + problem.getMessage())))
+                listener.report(toDiagnostic(fileName, unit == null ? null : unit.source, problem));
+            return problem;
+        }
+    }
+}
@@ -0,0 +1,641 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.compiler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.javascool.core.RunResult;
+import org.javascool.core.RunSupervisor;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Démon de compilation et d'exécution de code JVS. Plutôt que de lancer une JVM par clic, l'interface web envoie ses
+ * demandes à ce serveur HTTP local qui garde le compilateur chaud.
+ * <p/>
+ * Le serveur n'écoute que sur l'adresse locale. Les demandes sont des POST dont le corps est un objet JSON
+ * <tt>{"code": "...", "proglet": "...", "maxErrors": 1}</tt> (la proglet et le nombre maximal d'erreurs sont
+ * optionnels) :
+ * <ul>
+ * <li><tt>POST /compile</tt> répond <tt>{"success": true, "errors": []}</tt>, chaque erreur
+ * ayant une ligne, une colonne et un message ;</li>
+ * <li><tt>POST /run</tt> compile puis exécute le code. S'il y a des erreurs, la réponse est la même que pour
+ * <tt>/compile</tt>. Sinon la sortie du programme est envoyée en texte, par morceaux, au fur et à mesure de
+ * l'exécution. Les champs <tt>timeout</tt>, <tt>cpuTime</tt> (en millisecondes) et <tt>allocatedBytes</tt> donnent
+ * la durée, le temps de calcul et les allocations maximales : un programme qui les dépasse est arrêté par un
+ * {@link RunSupervisor}, et ce qu'il a consommé est ajouté à sa sortie. Le programme et ses classes sont libérés à la
+ * fin de l'exécution ;</li>
+ * <li><tt>GET /status</tt> donne l'état du démon, dont le nombre de chargeurs de classes et de classes encore en
+ * mémoire.</li>
+ * </ul>
+ * Les connexions sont gardées ouvertes entre les demandes (HTTP/1.1 keep-alive).
+ * <p/>
+ * Un autre utilisateur de la machine, ou une page web ouverte dans le navigateur, ne doit pas pouvoir faire exécuter du
+ * code par le démon. Chaque démarrage tire donc un jeton au hasard, écrit dans le fichier {@link #getTokenFile()},
+ * lisible par le seul utilisateur, et affiché au démarrage. Toute demande doit le donner dans l'en-tête
+ * <tt>Authorization: Bearer &lt;jeton&gt;</tt>, sinon elle est refusée (401). Sont aussi refusées (403) les demandes
+ * dont l'en-tête <tt>Host</tt> n'est pas <tt>127.0.0.1:&lt;port&gt;</tt> ou <tt>localhost:&lt;port&gt;</tt>, ce qui
+ * bloque le rebond DNS, et celles qui ont un en-tête <tt>Origin</tt>, envoyé par les navigateurs. Le corps d'un POST
+ * doit être déclaré <tt>application/json</tt> (415 sinon) : un formulaire HTML ne peut pas l'envoyer sans
+ * <tt>Origin</tt>.
+ * <p/>
+ * Pendant l'exécution, {@link System#out} et {@link System#err} sont aiguillés vers la réponse du programme qui les
+ * utilise, y compris depuis les threads qu'il crée. Les autres threads écrivent toujours dans la console.
+ *
+ * @see Main
+ * @since 5.0
+ */
+public class Daemon {
+    /**
+     * Le port utilisé par défaut.
+     */
+    public static final int DEFAULT_PORT = 8765;
+    /**
+     * La durée d'exécution maximale par défaut d'un programme, en millisecondes.
+     */
+    public static final long DEFAULT_TIMEOUT = 30000;
+    /**
+     * Le temps de calcul maximal par défaut d'un programme, en millisecondes.
+     */
+    public static final long DEFAULT_CPU_TIME = 20000;
+    /**
+     * Le nombre maximal par défaut d'octets alloués par un programme.
+     */
+    public static final long DEFAULT_ALLOCATED_BYTES = 2L * 1024 * 1024 * 1024;
+    /**
+     * La taille maximale d'une demande.
+     */
+    private static final int MAX_REQUEST = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * La sortie du programme qui s'exécute dans le thread courant, ou null pour la console.
+     */
+    private static final InheritableThreadLocal<Output> output = new InheritableThreadLocal<Output>();
+    private static PrintStream consoleOut, consoleErr;
+    private static int installed;
+
+    private final int port;
+    private HttpServer server;
+    private ExecutorService executor;
+    private final AtomicLong compilations = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private long startTime;
+    private String token;
+
+    /**
+     * Crée un démon.
+     *
+     * @param port Le port d'écoute, 0 pour en choisir un libre
+     */
+    public Daemon(int port) {
+        if (port < 0 || port > 65535)
+            throw new IllegalArgumentException("Le port " + port + " n'est pas valide");
+        this.port = port;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions du démon
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Prépare le compilateur puis démarre le serveur.
+     *
+     * @return Ce démon
+     * @throws IOException           Si le port ne peut pas être ouvert ou le jeton écrit
+     * @throws IllegalStateException Si le démon est déjà démarré
+     */
+    public synchronized Daemon start() throws IOException {
+        if (server != null)
+            throw new IllegalStateException("Le démon est déjà démarré");
+        CompilerService.getInstance().warmUp();
+        new ProgletCodeCompiler(null, "void main() { System.out.println(1); }").compile();
+        token = createToken();
+        writeToken(getTokenFile(), token);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        server.createContext("/compile", new CompileHandler());
+        server.createContext("/run", new RunHandler());
+        server.createContext("/status", new StatusHandler());
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jvs-daemon-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        installOutputs();
+        server.start();
+        startTime = System.currentTimeMillis();
+        Logger.getAnonymousLogger().log(Level.INFO, "Démon Java's Cool à l'écoute sur http://127.0.0.1:" + getPort() +
+                "/ avec le jeton " + token + " (aussi dans " + getTokenFile() + ")");
+        return this;
+    }
+
+    /**
+     * Arrête le serveur. Les demandes en cours ont une seconde pour se terminer.
+     */
+    public synchronized void stop() {
+        if (server == null)
+            return;
+        server.stop(1);
+        executor.shutdownNow();
+        server = null;
+        uninstallOutputs();
+        if (!getTokenFile().delete())
+            getTokenFile().deleteOnExit();
+    }
+
+    /**
+     * Donne le port d'écoute.
+     *
+     * @return Le port réellement ouvert si le démon est démarré
+     */
+    public synchronized int getPort() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    /**
+     * Donne le jeton que les demandes doivent présenter.
+     *
+     * @return Le jeton tiré au démarrage, ou null si le démon n'est pas démarré
+     */
+    public synchronized String getToken() {
+        return server == null ? null : token;
+    }
+
+    /**
+     * Donne le fichier où est écrit le jeton : <tt>.javascool/daemon.token</tt> dans le répertoire de l'utilisateur.
+     *
+     * @return Le fichier, qui n'existe que tant que le démon est démarré
+     */
+    public static File getTokenFile() {
+        return new File(new File(System.getProperty("user.home"), ".javascool"), "daemon.token");
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Traitement des demandes
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Compile un code et décrit le résultat en JSON.
+     */
+    private JSONObject compile(ProgletCodeCompiler compiler, JSONObject request) throws JSONException {
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = compiler.compile(null,
+                Math.max(0, request.optInt("maxErrors", 0)));
+        compilations.incrementAndGet();
+        JSONArray errors = new JSONArray();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+            if (diagnostic.getKind() != Diagnostic.Kind.ERROR)
+                continue;
+            JSONObject error = new JSONObject();
+            error.put("line", diagnostic.getLineNumber());
+            error.put("column", diagnostic.getColumnNumber());
+            error.put("message", diagnostic.getMessage(Locale.FRENCH));
+            errors.put(error);
+        }
+        JSONObject result = new JSONObject();
+        result.put("success", errors.length() == 0);
+        result.put("errors", errors);
+        return result;
+    }
+
+    /**
+     * Lit la demande et crée le compilateur du code demandé.
+     */
+    private static ProgletCodeCompiler read(JSONObject request) throws JSONException {
+        String proglet = request.optString("proglet", null);
+        return new ProgletCodeCompiler(proglet == null || proglet.isEmpty() ? null : proglet,
+                request.getString("code"));
+    }
+
+    /**
+     * Base des traitements : lecture du corps JSON et réponse en cas d'erreur.
+     */
+    private abstract class JsonHandler implements HttpHandler {
+        private final String method;
+
+        JsonHandler(String method) {
+            this.method = method;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!isLocalHost(exchange.getRequestHeaders().getFirst("Host"))) {
+                    send(exchange, 403, error("Hôte " + exchange.getRequestHeaders().getFirst("Host") + " refusé"));
+                    return;
+                }
+                if (exchange.getRequestHeaders().containsKey("Origin")) {
+                    send(exchange, 403, error("Demande venant d'une page web refusée"));
+                    return;
+                }
+                if (!isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                    exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                    send(exchange, 401, error("Jeton du démon absent ou invalide"));
+                    return;
+                }
+                if (!method.equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", method);
+                    send(exchange, 405, error("Méthode " + exchange.getRequestMethod() + " non supportée"));
+                    return;
+                }
+                if ("POST".equals(method) && !isJson(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                    send(exchange, 415, error("Le corps de la demande doit être en application/json"));
+                    return;
+                }
+                byte[] body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    send(exchange, 413, error("Demande trop grande"));
+                    return;
+                }
+                JSONObject request = body.length == 0 ? new JSONObject() : new JSONObject(new String(body, UTF8));
+                handle(exchange, request);
+            } catch (JSONException e) {
+                send(exchange, 400, error("Demande invalide : " + e.getMessage()));
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+            } catch (RuntimeException e) {
+                Logger.getAnonymousLogger().log(Level.WARNING, "Erreur du démon", e);
+                send(exchange, 500, error("Erreur interne : " + e));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        abstract void handle(HttpExchange exchange, JSONObject request) throws IOException, JSONException;
+    }
+
+    private class CompileHandler extends JsonHandler {
+        CompileHandler() {
+            super("POST");
+        }
+
+        @Override
+        void handle(HttpExchange exchange, JSONObject request) throws IOException, JSONException {
+            send(exchange, 200, compile(read(request), request));
+        }
+    }
+
+    private class RunHandler extends JsonHandler {
+        RunHandler() {
+            super("POST");
+        }
+
+        @Override
+        void handle(HttpExchange exchange, JSONObject request) throws IOException, JSONException {
+            ProgletCodeCompiler compiler = read(request);
+            long timeout = request.optLong("timeout", DEFAULT_TIMEOUT);
+            long cpuTime = request.optLong("cpuTime", DEFAULT_CPU_TIME);
+            long allocatedBytes = request.optLong("allocatedBytes", DEFAULT_ALLOCATED_BYTES);
+            if (timeout < 0 || cpuTime < 0 || allocatedBytes < 0)
+                throw new IllegalArgumentException("Les limites d'exécution ne peuvent pas être négatives");
+            JSONObject result = compile(compiler, request);
+            if (!result.getBoolean("success")) {
+                send(exchange, 200, result);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0); // Réponse envoyée par morceaux
+            final Output out = new Output(exchange.getResponseBody());
+            RunSupervisor supervisor = new RunSupervisor() {
+                @Override
+                protected boolean isCancelled() {
+                    return !out.drain(); // Appelé dans ce thread à chaque mesure ; faux si le client est parti
+                }
+            }.setDeadline(timeout).setCpuBudget(cpuTime).setAllocationBudget(allocatedBytes);
+            running.incrementAndGet();
+            // Le thread du programme, et ceux qu'il crée, héritent de la sortie
+            output.set(out);
+            String trailer = "";
+            try {
+                RunResult run = compiler.run(supervisor);
+                if (run.isLimitExceeded())
+                    trailer = "\n-------------------\n" + run.getMessage() + "\n-------------------\n";
+                Logger.getAnonymousLogger().log(Level.FINE, "Exécution terminée : " + run);
+            } catch (RuntimeException e) {
+                // Les en-têtes sont partis : l'erreur ne peut plus être qu'écrite dans la réponse
+                Logger.getAnonymousLogger().log(Level.WARNING, "Erreur du démon", e);
+                trailer = "\n-------------------\nErreur interne : " + e + "\n-------------------\n";
+            } finally {
+                output.remove();
+                running.decrementAndGet();
+                out.finish(trailer);
+            }
+        }
+    }
+
+    private class StatusHandler extends JsonHandler {
+        StatusHandler() {
+            super("GET");
+        }
+
+        @Override
+        void handle(HttpExchange exchange, JSONObject request) throws IOException, JSONException {
+            JSONObject status = new JSONObject();
+            status.put("uptime", System.currentTimeMillis() - startTime);
+            status.put("compilations", compilations.get());
+            status.put("running", running.get());
+            status.put("loaders", JVSClassLoader.getLiveLoaders());
+            status.put("classes", JVSClassLoader.getLiveClasses());
+            send(exchange, 200, status);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Vérifie que l'en-tête <tt>Host</tt> désigne ce démon par son adresse locale.
+     */
+    private boolean isLocalHost(String host) {
+        if (host == null)
+            return false;
+        host = host.toLowerCase(Locale.ENGLISH);
+        int port = getPort();
+        return host.equals("127.0.0.1:" + port) || host.equals("localhost:" + port);
+    }
+
+    /**
+     * Vérifie le jeton de l'en-tête <tt>Authorization</tt>, en temps constant.
+     */
+    private boolean isAuthorized(String authorization) {
+        String expected = getToken();
+        if (authorization == null || expected == null || !authorization.startsWith("Bearer "))
+            return false;
+        return MessageDigest.isEqual(authorization.substring("Bearer ".length()).trim().getBytes(UTF8),
+                expected.getBytes(UTF8));
+    }
+
+    private static boolean isJson(String contentType) {
+        return contentType != null &&
+                contentType.split(";")[0].trim().toLowerCase(Locale.ENGLISH).equals("application/json");
+    }
+
+    /**
+     * Tire un jeton de 128 bits au hasard, en hexadécimal.
+     */
+    private static String createToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes)
+            token.append(String.format("%02x", b & 0xff));
+        return token.toString();
+    }
+
+    /**
+     * Écrit le jeton dans un fichier recréé à chaque démarrage, lisible et modifiable par le seul utilisateur.
+     */
+    private static void writeToken(File file, String token) throws IOException {
+        Path path = file.toPath();
+        Files.createDirectories(path.getParent());
+        Files.deleteIfExists(path);
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        FileAttribute<?>[] attributes = posix ? new FileAttribute<?>[]{
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+                : new FileAttribute<?>[0];
+        Files.createFile(path, attributes); // Échoue si un autre l'a recréé entre-temps
+        Files.write(path, token.getBytes(UTF8));
+    }
+
+    /**
+     * Lit le corps d'une demande.
+     *
+     * @return Le corps ou null s'il dépasse {@link #MAX_REQUEST}
+     */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (body.size() + read > MAX_REQUEST)
+                return null;
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject error = new JSONObject();
+        try {
+            error.put("success", false);
+            error.put("message", message);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return error;
+    }
+
+    private static void send(HttpExchange exchange, int status, JSONObject json) throws IOException {
+        byte[] body = json.toString().getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Remplace la sortie standard et la sortie d'erreur par des flux qui écrivent dans la sortie du programme courant.
+     */
+    private static synchronized void installOutputs() {
+        if (installed++ > 0)
+            return;
+        consoleOut = System.out;
+        consoleErr = System.err;
+        try {
+            System.setOut(new PrintStream(new RoutingStream(consoleOut), true, "UTF-8"));
+            System.setErr(new PrintStream(new RoutingStream(consoleErr), true, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static synchronized void uninstallOutputs() {
+        if (--installed > 0)
+            return;
+        System.setOut(consoleOut);
+        System.setErr(consoleErr);
+    }
+
+    /**
+     * Flux qui écrit dans la sortie du programme du thread courant, ou dans la console.
+     */
+    private static class RoutingStream extends OutputStream {
+        private final OutputStream console;
+
+        RoutingStream(OutputStream console) {
+            this.console = console;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Output out = output.get();
+            if (out == null)
+                console.write(b, off, len);
+            else
+                out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (output.get() == null)
+                console.flush(); // La sortie d'un programme est vidée par le thread de sa demande
+        }
+    }
+
+    /**
+     * La sortie d'un programme, tampon borné entre ses threads et le corps de la réponse HTTP. Les threads du programme
+     * n'écrivent que dans le tampon, et attendent quand il est plein : un thread interrompu pendant une écriture, comme
+     * quand le programme est arrêté, ne touche donc jamais au canal de la réponse, qui serait fermé avec lui. Seul le
+     * thread de la demande vide le tampon dans la réponse, à chaque mesure du superviseur, puis écrit la fin de la
+     * sortie quand l'exécution est finie. Si le client se déconnecte, la sortie est marquée cassée et l'exécution est
+     * arrêtée. Une fois finie, ce qu'écrivent encore les threads du programme est perdu.
+     */
+    private static class Output {
+        /**
+         * La taille du tampon, en octets.
+         */
+        private static final int CAPACITY = 64 * 1024;
+
+        private final OutputStream response;
+        private final byte[] buffer = new byte[CAPACITY];
+        private int count;
+        private boolean finished;
+        private volatile boolean broken;
+
+        Output(OutputStream response) {
+            this.response = response;
+        }
+
+        /**
+         * Écrit dans le tampon, en attendant qu'il se vide quand il est plein. Appelé par les threads du programme.
+         */
+        synchronized void write(byte[] b, int off, int len) {
+            while (len > 0 && !finished && !broken) {
+                if (count == buffer.length) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt(); // Le programme est arrêté : la suite est perdue
+                        return;
+                    }
+                    continue;
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Vide le tampon dans la réponse. Appelé par le seul thread de la demande.
+         *
+         * @return Faux si le client est parti
+         */
+        boolean drain() {
+            byte[] pending;
+            synchronized (this) {
+                if (broken)
+                    return false;
+                pending = Arrays.copyOf(buffer, count);
+                count = 0;
+                notifyAll();
+            }
+            if (pending.length > 0) {
+                try {
+                    response.write(pending);
+                    response.flush();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        broken = true;
+                        notifyAll();
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Termine la sortie : ce qui reste dans le tampon puis la fin donnée sont écrits, et la réponse fermée.
+         * Appelé par le seul thread de la demande, une fois l'exécution finie.
+         *
+         * @param trailer La fin de la sortie, éventuellement vide
+         */
+        void finish(String trailer) {
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+            if (drain() && !trailer.isEmpty()) {
+                try {
+                    response.write(trailer.getBytes(UTF8));
+                } catch (IOException e) {
+                    broken = true;
+                }
+            }
+            try {
+                response.close();
+            } catch (IOException e) {
+                broken = true;
+            }
+        }
+    }
+}
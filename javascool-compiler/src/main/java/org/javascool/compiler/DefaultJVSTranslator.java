@@ -39,6 +39,16 @@ public class DefaultJVSTranslator extends JVSTranslator {
         super(file);
     }
 
+    /**
+     * Construit une instance du translator sur un code en mémoire.
+     *
+     * @param jvsCode Le code à traduire
+     * @see JVSTranslator#JVSTranslator(String)
+     */
+    public DefaultJVSTranslator(String jvsCode) {
+        super(jvsCode);
+    }
+
     /**
      * Traduit un code pseudo JVS pur vers un JVS. Le Translator Officiel ne fait aucune modification à cette endroit et
      * se charge juste de retourner le code tel qui lui a été fournit. Les modifications du JVS Officiel se trouve au
@@ -18,130 +18,59 @@
 
 package org.javascool.compiler;
 
-import org.apache.commons.io.FileUtils;
-
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Map;
 
 /**
- * Chargeur de Classe pour Java's Cool. Il permet de charger une classe qui n'&eacute;tait pas dans le classpath
- * d'origine.
+ * Chargeur de Classe du compilateur. C'est le chargeur du framework ({@link org.javascool.core.JVSClassLoader}) : les
+ * classes sont lues soit dans un dossier, soit directement depuis leur bytecode en mémoire.
  *
  * @author Philippe VIENNE (PhilippeGeek@gmail.com)
  * @version 5.0
  */
-public class JVSClassLoader extends ClassLoader {
-    /**
-     * Le lieu où travail le ClassLoader
-     */
-    private File location = null;
-    /**
-     * Petit cache pour les classes déjà chargés.
-     */
-    private final Hashtable<String, Class<?>> classes = new Hashtable<String, Class<?>>();
+public class JVSClassLoader extends org.javascool.core.JVSClassLoader {
+
+    static {
+        registerAsParallelCapable();
+    }
 
     /**
-     * Construit un chargeur de classe. Il prend comme ClassLoader parent son propre ClassLoader. Il vérifie aussi
-     * l'existance du dossier où serais les classes à charger.
+     * Construit un chargeur de classe sur un dossier.
      *
      * @param location Le dossier où sont stocké les .class
      */
     public JVSClassLoader(File location) {
-        super(JVSClassLoader.class.getClassLoader());
-        this.location = location;
-        if (location.isFile())
-            throw new IllegalArgumentException("Le chargeur de classe ne peut pas fonctionner dans un fichier," +
-                    " il faut un dossier");
-        if (!location.exists())
-            throw new IllegalArgumentException("Le dossier " + location + " n'existe pas !");
+        super(location);
     }
 
     /**
-     * Charge une classe. Cette fonction prend soit la classe dans le cache local soit va tenter de la charger avec
-     * {@link #findClass(String)}.
+     * Construit un chargeur de classe sur un dossier avec un chargeur parent donné.
      *
-     * @param className Le nom de la classe
-     * @return L'objet représentant une classe Java
-     * @throws ClassNotFoundException Voir {@link #findClass(String)}
-     * @see #findClass(String)
+     * @param location Le dossier où sont stocké les .class
+     * @param parent   Le chargeur parent, par exemple celui du Jar d'une proglet
      */
-    @Override
-    public Class<?> loadClass(String className) throws ClassNotFoundException {
-        if (classes.get(className) != null) // Si on a déjà chargé cette classe, alors elle est dans le cache
-            return classes.get(className);
-        else // Sinon on tente de la charger
-            return findClass(className);
+    public JVSClassLoader(File location, ClassLoader parent) {
+        super(location, parent);
     }
 
     /**
-     * Cherche une classe dans le classpath actuel et dans le répertoire fournit au classloader
+     * Construit un chargeur de classe sur des classes compilées en mémoire.
      *
-     * @param className La classe à charger
-     * @return L'objet représentant une classe en Java
-     * @throws ClassNotFoundException Dans le cas où aucune classe n'as pu être trouvé.
+     * @param classBytes Le bytecode des classes indexé par leur nom complet (ex. org.javascool.Main)
+     * @see CompilationOutput#getClasses()
      */
-    @Override
-    public Class<?> findClass(String className) throws ClassNotFoundException {
-        byte classByte[];
-        Class<?> result;
-
-        result = classes.get(className); // On vérifie qu'elle n'est pas dans le cache
-        if (result != null) {
-            return result;
-        }
-
-        try { // On cherche si c'est une classe système
-            return findSystemClass(className);
-        } catch (Exception e) {
-            Logger.getAnonymousLogger().log(Level.OFF, className + " n'est pas une classe système");
-        }
-
-        try { // Ou qu'elle est dans le chargeur parent
-            return JVSClassLoader.class.getClassLoader().loadClass(className);
-        } catch (Exception e) {
-            Logger.getAnonymousLogger().log(Level.OFF, className + " n'est pas une classe du chargeur parent");
-        }
-
-        try { // On regarde après si elle n'est pas chez nous.
-            // On en crée le pointeur vers le fichier de la classe
-            File clazz = FileUtils.getFile(location, decomposePathForAClass(className));
-            if (!clazz.exists()) { // Si le fichier de la classe n'existe pas, alors on crée une erreur
-                throw new FileNotFoundException("Le fichier : " + clazz.toString() + " n'existe pas");
-            }
-            // On lit le fichier
-            classByte = FileUtils.readFileToByteArray(clazz);
-            // On définit la classe
-            result = defineClass(className, classByte, 0, classByte.length, null);
-            // On la stocke en cache
-            classes.put(className, result);
-            // On retourne le résultat
-            return result;
-        } catch (Exception e) {
-            throw new ClassNotFoundException(e.getMessage(), e);
-        }
-        //
+    public JVSClassLoader(Map<String, byte[]> classBytes) {
+        super(classBytes);
     }
 
     /**
-     * Décompose un nom de classe vers le chemin de la classe. Permet de passer de "org.javascool.compiler.Main" à
-     * ["org","javascool","compiler","Main.class"] qui une représentation du chemin de la classe sous la forme d'un
-     * tableau de chaines.
+     * Construit un chargeur de classe sur des classes compilées en mémoire avec un chargeur parent donné.
      *
-     * @param className Le nom de la classe au format Java
-     * @return Le tableau représentant le chemin.
+     * @param classBytes Le bytecode des classes indexé par leur nom complet (ex. org.javascool.Main)
+     * @param parent     Le chargeur parent, par exemple celui du Jar d'une proglet
+     * @see CompilerService#getClassLoader()
      */
-    private static String[] decomposePathForAClass(String className) {
-        ArrayList<String> path = new ArrayList<String>();
-        for (String s : className.split("\\.")) {
-            if (className.endsWith(s))
-                path.add(s + ".class");
-            else
-                path.add(s);
-        }
-        return path.toArray(new String[path.size()]);
+    public JVSClassLoader(Map<String, byte[]> classBytes, ClassLoader parent) {
+        super(classBytes, parent);
     }
 }
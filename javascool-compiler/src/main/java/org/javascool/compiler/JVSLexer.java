@@ -0,0 +1,256 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Analyseur lexical du JVS. Il découpe un code JVS en lignes et reconnaît en un seul parcours les lignes de
+ * directive (<tt>package</tt>, <tt>import</tt> et <tt>include</tt>) des lignes de code. Il suit les commentaires
+ * et les chaînes de caractères : une directive écrite dans un commentaire n'en est pas une.
+ * <p/>
+ * Une directive occupe toute sa ligne : des blancs, le mot clé, son argument sans point-virgule, un point-virgule et
+ * des blancs jusqu'à la fin de la ligne.
+ *
+ * @see JVSTranslator
+ * @since 5.0
+ */
+final class JVSLexer {
+
+    private JVSLexer() {
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions d'analyse
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Analyse tout un code.
+     *
+     * @param code Le code JVS
+     * @return Les lignes du code, découpées comme par {@link #split(String)}
+     */
+    static List<Segment> lex(String code) {
+        List<Segment> segments = new ArrayList<Segment>();
+        boolean inComment = false;
+        for (String line : split(code)) {
+            Segment segment = line(line, inComment);
+            inComment = segment.endsInComment();
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Analyse une ligne.
+     *
+     * @param line      La ligne, sans son retour à la ligne
+     * @param inComment Vrai si la ligne commence dans un commentaire <tt>/* ... *&#47;</tt>
+     * @return La ligne analysée
+     */
+    static Segment line(String line, boolean inComment) {
+        if (!inComment) {
+            Segment directive = directive(line);
+            if (directive != null)
+                return directive;
+        }
+        return new Segment(Kind.BODY, line, inComment, scan(line, inComment), null, false);
+    }
+
+    /**
+     * Découpe un code en lignes exactement comme <tt>code.split("\n")</tt> : les lignes vides à la fin sont
+     * enlevées.
+     *
+     * @param code Le code à découper
+     * @return Les lignes
+     */
+    static String[] split(String code) {
+        List<String> lines = new ArrayList<String>();
+        int start = 0, end;
+        while ((end = code.indexOf('\n', start)) >= 0) {
+            lines.add(code.substring(start, end));
+            start = end + 1;
+        }
+        if (lines.isEmpty())
+            return new String[]{code};
+        lines.add(code.substring(start));
+        int size = lines.size();
+        while (size > 0 && lines.get(size - 1).isEmpty())
+            size--;
+        return lines.subList(0, size).toArray(new String[size]);
+    }
+
+    /**
+     * Reconnaît une ligne de directive.
+     *
+     * @return La directive ou null si la ligne n'en est pas une
+     */
+    private static Segment directive(String line) {
+        int length = line.length(), i = skipBlanks(line, 0);
+        Kind kind;
+        if (line.startsWith("import", i))
+            kind = Kind.IMPORT;
+        else if (line.startsWith("package", i))
+            kind = Kind.PACKAGE;
+        else if (line.startsWith("include", i))
+            kind = Kind.INCLUDE;
+        else
+            return null;
+        int start = i + kind.keyword.length();
+        if (start < length && Character.isJavaIdentifierPart(line.charAt(start))) // ex. importantValue = 1;
+            return null;
+        int semicolon = line.indexOf(';', start);
+        if (semicolon < 0 || skipBlanks(line, semicolon + 1) < length)
+            return null;
+        String argument = line.substring(start, semicolon).trim();
+        boolean isStatic = false;
+        if (kind == Kind.IMPORT) {
+            if (argument.startsWith("static") && argument.length() > 6 && isBlank(argument.charAt(6))) {
+                isStatic = true;
+                argument = argument.substring(6);
+            }
+            argument = removeBlanks(argument);
+        }
+        return new Segment(kind, line, false, false, argument, isStatic);
+    }
+
+    /**
+     * Suit les commentaires et les chaînes de caractères d'une ligne de code.
+     *
+     * @return Vrai si la ligne se termine dans un commentaire <tt>/* ... *&#47;</tt>
+     */
+    private static boolean scan(String line, boolean inComment) {
+        int length = line.length();
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (inComment) {
+                if (c == '*' && i + 1 < length && line.charAt(i + 1) == '/') {
+                    inComment = false;
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < length) {
+                char next = line.charAt(i + 1);
+                if (next == '/')
+                    return false;
+                if (next == '*') {
+                    inComment = true;
+                    i++;
+                }
+            } else if (c == '"' || c == '\'') {
+                // Une chaîne ne dépasse pas la fin de la ligne
+                for (i++; i < length && line.charAt(i) != c; i++) {
+                    if (line.charAt(i) == '\\')
+                        i++;
+                }
+            }
+        }
+        return inComment;
+    }
+
+    /**
+     * Les blancs des expressions régulières (\s).
+     */
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static int skipBlanks(String line, int i) {
+        while (i < line.length() && isBlank(line.charAt(i)))
+            i++;
+        return i;
+    }
+
+    private static String removeBlanks(String text) {
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            if (!isBlank(text.charAt(i)))
+                builder.append(text.charAt(i));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Les sortes de lignes.
+     */
+    enum Kind {
+        PACKAGE("package"), IMPORT("import"), INCLUDE("include"), BODY("");
+
+        final String keyword;
+
+        Kind(String keyword) {
+            this.keyword = keyword;
+        }
+    }
+
+    /**
+     * Une ligne analysée.
+     */
+    static final class Segment {
+        private final Kind kind;
+        private final String text;
+        private final boolean startsInComment;
+        private final boolean endsInComment;
+        private final String argument;
+        private final boolean isStatic;
+
+        private Segment(Kind kind, String text, boolean startsInComment, boolean endsInComment, String argument,
+                        boolean isStatic) {
+            this.kind = kind;
+            this.text = text;
+            this.startsInComment = startsInComment;
+            this.endsInComment = endsInComment;
+            this.argument = argument;
+            this.isStatic = isStatic;
+        }
+
+        Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * La ligne d'origine.
+         */
+        String getText() {
+            return text;
+        }
+
+        boolean startsInComment() {
+            return startsInComment;
+        }
+
+        boolean endsInComment() {
+            return endsInComment;
+        }
+
+        /**
+         * L'argument d'une directive : le nom du package, de l'include ou de la classe importée (sans blancs).
+         */
+        String getArgument() {
+            return argument;
+        }
+
+        /**
+         * Vrai pour un <tt>import static</tt>.
+         */
+        boolean isStatic() {
+            return isStatic;
+        }
+    }
+}
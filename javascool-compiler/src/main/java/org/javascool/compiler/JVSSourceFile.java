@@ -1,21 +1,28 @@
 package org.javascool.compiler;
 
-import javafx.beans.property.BooleanProperty;
-import javafx.beans.property.SimpleBooleanProperty;
-import javafx.beans.property.SimpleStringProperty;
-import javafx.beans.property.StringProperty;
-import javafx.beans.value.ChangeListener;
-import javafx.beans.value.ObservableValue;
-import org.apache.commons.io.Charsets;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.LogFactory;
+import org.javascool.core.IncludeCache;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Cette classe modélise un fichier de Java's Cool.
@@ -25,7 +32,12 @@ import java.nio.charset.Charset;
  * <p>Cette classe à pour le rôle de retenir des éléments sur un
  * fichier (A-t-il été modifié ? compilé ? Doit-il être sauvegarder ?
  * ...). Mais cette classe ne doit jamais appeler un élément graphique.
- * Cette interaction est géré depuis le javascool-ui.</p>
+ * Cette interaction est géré depuis le javascool-ui, qui peut suivre
+ * l'état du fichier avec un {@link Listener}.</p>
+ * <p>L'enregistrement est atomique : le contenu est écrit dans un fichier
+ * temporaire à côté du fichier, puis renommé. L'empreinte du contenu
+ * enregistré est retenue : enregistrer un contenu qui n'a pas changé ne
+ * touche pas le disque.</p>
  * <p>Pour utiliser cette classe, on peut instancier de la même fâçon
  * qu'un fichier ou alors à partir d'un existant.<br>
  * {@code JVSSourceFile file=new JVSSourceFile((File)file);}<br>
@@ -39,7 +51,7 @@ public class JVSSourceFile extends File {
     /**
      * L'encodage par défaut des fichiers Java's Cool.
      */
-    private static final Charset ENCODING = Charsets.UTF_8;
+    private static final Charset ENCODING = StandardCharsets.UTF_8;
 
     /**
      * Le serialVersion, à quoi sert-il ? on se le demande !
@@ -52,24 +64,29 @@ public class JVSSourceFile extends File {
     private boolean isTMP = false;
 
     /**
-     * Contenu du fichier sur le disque dur.
+     * Contenu actuel du fichier dans le programme.
      */
-    private final StringProperty content = new SimpleStringProperty(this, "content", "");
+    private String content = "";
 
     /**
-     * Permet de retenir si le fichier doit être sauvegarder
+     * L'empreinte SHA-256 du contenu sur le disque dur, null s'il n'est pas connu.
      */
-    private final BooleanProperty saved = new SimpleBooleanProperty(this, "saved", true);
-
-    {
-        content.addListener(new ChangeListener<String>() {
-            @Override
-            public void changed(ObservableValue<? extends String> observableValue, String s, String s2) {
-                if (!s.equals(s2))
-                    saved.setValue(false);
-            }
-        });
-    }
+    private volatile byte[] savedDigest;
+
+    /**
+     * Permet de retenir si le contenu actuel est celui du disque dur.
+     */
+    private boolean saved = true;
+
+    /**
+     * Le nombre de modifications du contenu, pour savoir si le contenu a changé pendant un enregistrement.
+     */
+    private long revision = 0;
+
+    /**
+     * Les objets qui suivent l'état du fichier.
+     */
+    private transient List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
 
     /**
      * Crée un fichier temporaire.
@@ -127,12 +144,18 @@ public class JVSSourceFile extends File {
      * @throws IOException En cas d'erreur lors de l'ouverture du fichier.
      */
     private void loadFromFile() throws IOException {
+        byte[] bytes;
         try {
-            content.setValue(FileUtils.readFileToString(this, JVSSourceFile.ENCODING));
+            bytes = Files.readAllBytes(toPath());
         } catch (IOException e) {
             LogFactory.getLog(JVSSourceFile.class).error("Impossible d'ouvrir le fichier " + this, e);
             throw e;
         }
+        synchronized (this) {
+            content = new String(bytes, ENCODING);
+            savedDigest = digest(bytes);
+        }
+        setSaved(true);
     }
 
     /**
@@ -144,7 +167,15 @@ public class JVSSourceFile extends File {
      * @param content Le contenu actuel du fichier
      */
     public void updateContent(String content) {
-        this.content.setValue(content);
+        boolean changed;
+        synchronized (this) {
+            changed = !this.content.equals(content);
+            this.content = content;
+            if (changed)
+                revision++;
+        }
+        if (changed)
+            setSaved(false);
     }
 
     /**
@@ -155,8 +186,8 @@ public class JVSSourceFile extends File {
      *
      * @return Le contenu du fichier sous forme d'une chaîne de caractères
      */
-    public String getContent() {
-        return this.content.getValue();
+    public synchronized String getContent() {
+        return content;
     }
 
     /**
@@ -175,6 +206,10 @@ public class JVSSourceFile extends File {
 
     /**
      * Enregistre le contenu du fichier sur le disque dur.
+     * <p>Le contenu est écrit dans un fichier temporaire du même répertoire qui
+     * remplace ensuite le fichier d'un coup : en cas de problème, l'ancien
+     * fichier est intact. Si le contenu est celui déjà enregistré et que le
+     * fichier existe, rien n'est écrit.</p>
      * <p><em>NB : Un fichier temporaire ne peut pas être enregistrer. Si tel est le cas pour le fichier actuel,
      * alors la fonction renvera toujours faux.</em></p>
      *
@@ -182,15 +217,76 @@ public class JVSSourceFile extends File {
      */
     public boolean save() {
         if (isTempFile()) return false;
+        byte[] bytes;
+        byte[] digest;
+        long savedRevision;
+        synchronized (this) {
+            bytes = content.getBytes(ENCODING);
+            digest = digest(bytes);
+            savedRevision = revision;
+        }
+        if (Arrays.equals(digest, savedDigest) && isFile()) { // Rien n'a changé
+            setSaved(true);
+            return true;
+        }
+        Path target = getAbsoluteFile().toPath();
+        Path temporary = null;
         try {
-            FileUtils.writeStringToFile(this, content.getValue(), ENCODING);
-            loadFromFile();
-            saved.setValue(true);
+            if (Files.exists(target))
+                target = target.toRealPath(); // Un lien symbolique garde sa cible : c'est elle qui est écrite
+            temporary = Files.createTempFile(target.getParent(), "." + getName(), ".tmp");
+            FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+            copyPermissions(target, temporary);
+            try {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+            boolean upToDate;
+            synchronized (this) {
+                savedDigest = digest;
+                upToDate = revision == savedRevision; // Le contenu a pu changer pendant l'écriture
+            }
+            IncludeCache.getInstance().invalidate(this); // Le fichier est peut-être inclus par d'autres
+            setSaved(upToDate);
             return true;
         } catch (Exception e) {
             LogFactory.getLog(getClass()).error("Erreur lors de la sauvgarde de " + this, e);
-            saved.setValue(false);
+            setSaved(false);
             return false;
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    LogFactory.getLog(getClass()).warn("Impossible d'effacer " + temporary, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Donne au fichier temporaire les droits du fichier qu'il remplace : il est créé en 0600.
+     */
+    private static void copyPermissions(Path target, Path temporary) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(temporary, PosixFileAttributeView.class);
+        if (view == null || !Files.exists(target))
+            return;
+        PosixFileAttributes attributes = Files.readAttributes(target, PosixFileAttributes.class);
+        view.setPermissions(attributes.permissions());
+        try {
+            view.setGroup(attributes.group());
+        } catch (IOException e) {
+            // Seul un membre du groupe peut le donner : le fichier garde alors le groupe par défaut
         }
     }
 
@@ -210,8 +306,39 @@ public class JVSSourceFile extends File {
      *
      * @return vrai si le fichier doit être sauvegardé
      */
-    public boolean hasToSave() {
-        return isTempFile() || saved.get();
+    public synchronized boolean hasToSave() {
+        return isTempFile() || !saved;
+    }
+
+    /**
+     * Ajoute un objet qui sera prévenu quand le fichier devient modifié ou enregistré.
+     *
+     * @param listener L'objet à prévenir
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Retire un objet ajouté par {@link #addListener(Listener)}.
+     *
+     * @param listener L'objet à ne plus prévenir
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Change l'état du fichier et prévient les listeners s'il a changé.
+     */
+    private void setSaved(boolean saved) {
+        synchronized (this) {
+            if (this.saved == saved)
+                return;
+            this.saved = saved;
+        }
+        for (Listener listener : listeners)
+            listener.savedChanged(this, saved);
     }
 
     /**
@@ -227,14 +354,23 @@ public class JVSSourceFile extends File {
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof JVSSourceFile) {
-            return getAbsolutePath().equals(((JVSSourceFile) obj).getAbsolutePath()) &&
-                    content.getValue().equals(((JVSSourceFile) obj).content.getValue()) &&
-                    saved.getValue().equals(((JVSSourceFile) obj).saved.getValue());
+            JVSSourceFile other = (JVSSourceFile) obj;
+            return getAbsolutePath().equals(other.getAbsolutePath()) &&
+                    getContent().equals(other.getContent()) &&
+                    hasToSave() == other.hasToSave();
         } else {
             return false;
         }
     }
 
+    /**
+     * Le code de hachage est celui du chemin, comme pour {@link File}.
+     */
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
     /**
      * Représente sous forme d'une chaine le fichier.
      */
@@ -250,13 +386,47 @@ public class JVSSourceFile extends File {
         if (fileUri.getScheme().equals("file")) return new JVSSourceFile(fileUri);
         try {
             final JVSSourceFile file = new JVSSourceFile();
-            IOUtils.copy(fileUri.toURL().openStream(), new FileOutputStream(file));
+            InputStream in = fileUri.toURL().openStream();
+            try {
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                in.close();
+            }
             file.loadFromFile();
-            file.saved.set(false);
+            file.setSaved(false);
             return file;
         } catch (IOException e) {
             LogFactory.getLog(JVSSourceFile.class).error("Impossible d'ouvrir " + fileUri, e);
             throw e;
         }
     }
+
+    private static byte[] digest(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 n'est pas disponible", e);
+        }
+    }
+
+    /**
+     * Restaure la liste des listeners, qui n'est pas sérialisée.
+     */
+    private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = new CopyOnWriteArrayList<Listener>();
+    }
+
+    /**
+     * Interface pour suivre l'état d'un fichier, par exemple pour marquer son onglet dans l'éditeur.
+     */
+    public interface Listener {
+        /**
+         * Appelée quand le fichier devient modifié ou enregistré.
+         *
+         * @param file  Le fichier
+         * @param saved Vrai si le contenu est celui du disque dur
+         */
+        void savedChanged(JVSSourceFile file, boolean saved);
+    }
 }
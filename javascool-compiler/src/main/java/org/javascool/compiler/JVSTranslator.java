@@ -19,14 +19,26 @@
 package org.javascool.compiler;
 
 import org.apache.commons.io.FileUtils;
+import org.javascool.core.IncludeCache;
+import org.javascool.core.Translator;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Permet de créer à partir d'un code source JVS, un code source Java. Pour personaliser le langage JVS, il suffit
  * d'étendre la classe et de sur-écrire la fonction #translate(String)
+ * <p/>
+ * La traduction n'est pas incrémentale : chaque {@link #getJavaCode()} repasse tout le code dans {@link
+ * #translate(String)}, le découpe en lignes, réassemble le code Java, ajoute les points d'arrêt et l'enveloppe, pour
+ * un coût proportionnel à la taille du code. Seule l'analyse de chaque ligne par {@link JVSLexer} est reprise : un même
+ * translator garde les lignes de sa dernière traduction et, après un {@link #setJvsCode(String)}, n'analyse de nouveau
+ * que celles qui ont changé. Les includes sont traduits une seule fois pour tout le processus grâce à l'{@link
+ * IncludeCache}. Le code Java produit est toujours le même que celui d'une traduction complète.
  *
  * @version 5.0
  */
@@ -40,14 +52,14 @@ public abstract class JVSTranslator {
 
     /**
      * Code Java à inclure avant le code traduit au sein de la nouvelle classe. Les %$COMPILATION_ID$% seront remplacé
-     * par le {@link #INCREMENTAL_ID}.
+     * par le numéro de la traduction, tiré de {@link #INCREMENTAL_ID}.
      */
     protected static final String CODE_BEFORE =
             "" +
                     "  public static final long serialVersionUID = %$COMPILATION_ID$%L;" +
                     "  public void run() {" +
                     "   try{ main(); } catch(Throwable e) { " +
-                    "    if (e.toString().matches(\".*Interrupted.*\"))" +
+                    "    if (e.toString().matches(\".*(Interrupted|Programme arr).*\"))" +
                     "      System.out.println" +
                     "         (\"\\n-------------------\\nProggramme arrêté !\\n-------------------\\n\");" +
                     "    else " +
@@ -59,15 +71,22 @@ public abstract class JVSTranslator {
 
     /**
      * Code Java à inclure après le code traduit au sein de la nouvelle classe. Les %$COMPILATION_ID$% seront remplacé
-     * par le {@link #INCREMENTAL_ID}.
+     * par le numéro de la traduction, tiré de {@link #INCREMENTAL_ID}.
      */
     protected static final String CODE_AFTER = "";
 
     private String className = "JvsToJavaTranslated";
+    /**
+     * Le numéro de cette traduction, donné par {@link #INCREMENTAL_ID}.
+     */
+    private final int compilationId;
 
     {
-        JVSTranslator.INCREMENTAL_ID++;
-        className += JVSTranslator.INCREMENTAL_ID;
+        // Les traducteurs peuvent être créés en parallèle (voir BatchCompiler) : chacun doit avoir son propre numéro
+        synchronized (JVSTranslator.class) {
+            compilationId = ++JVSTranslator.INCREMENTAL_ID;
+        }
+        className += compilationId;
     }
 
     private String jvsCode;
@@ -95,6 +114,14 @@ public abstract class JVSTranslator {
      * Les classes à importer
      */
     private ArrayList<Import> imports = new ArrayList<Import>();
+    /**
+     * Les classes importées par le code JVS et ses includes lors de la dernière traduction
+     */
+    private List<Import> translatedImports = new ArrayList<Import>();
+    /**
+     * Les lignes de la dernière traduction, réutilisées tant qu'elles ne changent pas
+     */
+    private List<Line> lines = new ArrayList<Line>();
 
     /**
      * Construit une instance du translator sur un Fichier.
@@ -112,6 +139,16 @@ public abstract class JVSTranslator {
         });
     }
 
+    /**
+     * Construit une instance du translator sur un code JVS en mémoire. La classe générée garde son nom par défaut et
+     * les includes sont recherchés dans les répertoires par défaut.
+     *
+     * @param jvsCode Le code à traduire
+     */
+    public JVSTranslator(String jvsCode) {
+        this.setJvsCode(jvsCode);
+    }
+
     /**
      * Ajoute une classe à importer.
      *
@@ -166,7 +203,7 @@ public abstract class JVSTranslator {
         /*
       Le code Java généré
      */
-        String javaCode = encapsulateInWrapper(internalTranslate());
+        String javaCode = encapsulateInWrapper(Translator.addCheckpoints(internalTranslate()));
         return javaCode;
     }
 
@@ -180,6 +217,10 @@ public abstract class JVSTranslator {
     /**
      * Traduit le code JVS en Java. Cette fonction traduit le fichier de code JVS en classe Java Anonyme. Les Specs JVS
      * sont définit dans la documentation du package org.javascool.compiler .
+     * <p/>
+     * Tout le code est traduit et réassemblé à chaque appel. Seule l'analyse des lignes identiques au début et à la fin
+     * de la traduction précédente est reprise telle quelle : seules les lignes entre les deux passent dans le {@link
+     * JVSLexer}.
      *
      * @param code Le code pre-JVS à traduire
      * @return Le code de la classe Java.
@@ -187,34 +228,94 @@ public abstract class JVSTranslator {
     private String internalTranslate(String code) {
         if (code == null)
             throw new IllegalArgumentException("Aucun code à traduire");
-        code = translate(code);
-        String text = code.replace((char) 160, ' ');
-        // On analyse rapidement le code de l'utilsateur pour trouver les éventuelles import, package ou include
-        imports.addAll(Import.parseJavaImportDeclaration(text)); // On ajout les imports écrits dans le JVS
+        String[] text = JVSLexer.split(translate(code).replace((char) 160, ' '));
+        int start = 0, end = 0;
+        while (start < text.length && start < lines.size() && text[start].equals(lines.get(start).text))
+            start++;
+        while (end < text.length - start && end < lines.size() - start
+                && text[text.length - 1 - end].equals(lines.get(lines.size() - 1 - end).text))
+            end++;
+        List<Line> updated = new ArrayList<Line>(text.length);
+        updated.addAll(lines.subList(0, start));
+        boolean inComment = start > 0 && lines.get(start - 1).endsInComment;
+        for (int i = start; i < text.length - end; i++) {
+            Line line = new Line(JVSLexer.line(text[i], inComment));
+            inComment = line.endsInComment;
+            updated.add(line);
+        }
+        // Les lignes de la fin sont reprises dès qu'elles commencent de nouveau dans le même état (commentaire ou non)
+        for (int i = lines.size() - end; i < lines.size(); i++) {
+            Line line = lines.get(i);
+            if (line.startsInComment == inComment) {
+                updated.addAll(lines.subList(i, lines.size()));
+                break;
+            }
+            line = new Line(JVSLexer.line(line.text, inComment));
+            inComment = line.endsInComment;
+            updated.add(line);
+        }
+        lines = updated;
+        Translation translation = assemble(lines);
+        packageName = translation.packageName;
+        translatedImports = translation.imports;
+        return translation.code;
+    }
+
+    /**
+     * Construit le code Java à partir de lignes déjà analysées.
+     *
+     * @param lines Les lignes du code JVS
+     * @return Le code traduit, ses imports et son package
+     */
+    private Translation assemble(List<Line> lines) {
+        Translation translation = new Translation();
         StringBuilder javaCode = new StringBuilder();// Cette variable contient le code Java qui sera inclut dans la
         // classe entre les deux wrappers
-        for (String line : text.split("\n")) { // On navigue dans le code ligne par ligne
-            if (line.matches("^\\s*(import|package)[^;]*;\\s*$")) { // Ligne définisant un package ou un import
-                if (line.matches("^\\s*package[^;]*;\\s*$")) { // Si c'est un package
-                    packageName = line.replaceAll("^\\s*package([^;]*);\\s*$", "$1").trim();
-                }
-                javaCode.append("// ").append(line).append("\n");
-            } else if (line.matches("^\\s*include[^;]*;\\s*$")) { // Inclusion d'un autre JVS
-                String name = line.replaceAll("^\\s*include([^;]*);\\s*$", "$1").trim();
-                javaCode.append("/* include ").append(name).append("; */ ");
-                try {
-                    javaCode.append(convertToOneLineCode(
-                            internalTranslate(FileUtils.readFileToString(searchInclude(name)))
-                    ));
-                } catch (Exception e) {
-                    javaCode.append("// Erreur : ").append(e.getMessage());
-                }
-                javaCode.append("\n");
+        List<Import> included = new ArrayList<Import>();
+        for (Line line : lines) {
+            translation.imports.addAll(line.imports);
+            if (line.include != null) {
+                Include include = include(line.include);
+                javaCode.append("/* include ").append(line.include).append("; */ ").append(include.code).append("\n");
+                included.addAll(include.imports);
+                if (include.packageName != null)
+                    translation.packageName = include.packageName;
             } else {
-                javaCode.append(line).append("\n");
+                if (line.packageName != null)
+                    translation.packageName = line.packageName;
+                javaCode.append(line.java);
             }
         }
-        return javaCode.toString();
+        translation.imports.addAll(included);
+        translation.code = javaCode.toString();
+        return translation;
+    }
+
+    /**
+     * Donne la traduction d'un include depuis l'{@link IncludeCache}. Elle est partagée par tous les translators de la
+     * même classe cherchant les includes dans les mêmes répertoires : {@link #translate(String)} ne doit donc dépendre
+     * que du code qu'on lui donne.
+     *
+     * @param name Le nom de l'include
+     * @return La traduction de l'include ou un commentaire d'erreur
+     */
+    private Include include(String name) {
+        try {
+            return IncludeCache.getInstance().get(searchInclude(name),
+                    getClass().getName() + Arrays.toString(includeDirectories),
+                    new IncludeCache.Expander<Include>() {
+                        public Include expand(String content) {
+                            List<Line> lines = new ArrayList<Line>();
+                            for (JVSLexer.Segment segment : JVSLexer.lex(translate(content).replace((char) 160, ' ')))
+                                lines.add(new Line(segment));
+                            Translation translation = assemble(lines);
+                            return new Include(convertToOneLineCode(translation.code), translation.imports,
+                                    translation.packageName);
+                        }
+                    });
+        } catch (Exception e) {
+            return new Include("// Erreur : " + e.getMessage(), Collections.<Import>emptyList(), null);
+        }
     }
 
     /**
@@ -225,19 +326,7 @@ public abstract class JVSTranslator {
      * @throws FileNotFoundException Dans le cas où aucun fichier n'as pu être trouvé pour l'include
      */
     private File searchInclude(String include) throws FileNotFoundException {
-        if (includeDirectories != null) {
-            for (File directory : includeDirectories) {
-                if (FileUtils.getFile(directory, include).exists())
-                    return FileUtils.getFile(directory, include);
-                if (FileUtils.getFile(directory, include + "." + INCLUDE_FILE_EXTENTION).exists())
-                    return FileUtils.getFile(directory, include + "." + INCLUDE_FILE_EXTENTION);
-            }
-        }
-        if (new File(include).exists())
-            return new File(include);
-        if (new File(include + "." + INCLUDE_FILE_EXTENTION).exists())
-            return new File(include + "." + INCLUDE_FILE_EXTENTION);
-        throw new FileNotFoundException("Impossible de trouver un fichier pour l'include : " + include);
+        return IncludeCache.getInstance().resolve(include, includeDirectories, INCLUDE_FILE_EXTENTION);
     }
 
     /**
@@ -272,6 +361,9 @@ public abstract class JVSTranslator {
         for (Import imp : imports) {
             javaCode.append(imp.getImportCode());
         }
+        for (Import imp : translatedImports) {
+            javaCode.append(imp.getImportCode());
+        }
         javaCode.append("public class ").append(className).append(" ");
         if (parentClass != null)
             javaCode.append("extends ").append(parentClass).append(" ");
@@ -284,8 +376,8 @@ public abstract class JVSTranslator {
             }
             javaCode.append(" ");
         }
-        String codeBefore = CODE_BEFORE.replace("%$COMPILATION_ID$%", "" + INCREMENTAL_ID),
-                codeAfter = CODE_AFTER.replace("%$COMPILATION_ID$%", "" + INCREMENTAL_ID);
+        String codeBefore = CODE_BEFORE.replace("%$COMPILATION_ID$%", "" + compilationId),
+                codeAfter = CODE_AFTER.replace("%$COMPILATION_ID$%", "" + compilationId);
         javaCode.append("{").append(codeBefore).append(code).append(codeAfter).append("}");
         javaCode.append("// Compiled With Java's Cool");
         return javaCode.toString();
@@ -342,34 +434,118 @@ public abstract class JVSTranslator {
         this.includeDirectories = includeDirectories;
     }
 
+    /**
+     * Une ligne de code JVS analysée.
+     */
+    private static class Line {
+        /**
+         * La ligne telle que rendue par {@link #translate(String)}
+         */
+        final String text;
+        final boolean startsInComment;
+        final boolean endsInComment;
+        /**
+         * Le code Java de la ligne, ou null pour un include
+         */
+        String java;
+        /**
+         * Le nom de l'include si la ligne en est un
+         */
+        String include;
+        /**
+         * Le package déclaré par la ligne
+         */
+        String packageName;
+        final List<Import> imports = new ArrayList<Import>();
+
+        Line(JVSLexer.Segment segment) {
+            this.text = segment.getText();
+            this.startsInComment = segment.startsInComment();
+            this.endsInComment = segment.endsInComment();
+            switch (segment.getKind()) {
+                case IMPORT: // Ligne définisant un package ou un import
+                    Import imp = Import.parse(segment);
+                    if (imp != null)
+                        imports.add(imp);
+                    java = "// " + text + "\n";
+                    break;
+                case PACKAGE:
+                    packageName = segment.getArgument();
+                    java = "// " + text + "\n";
+                    break;
+                case INCLUDE: // Inclusion d'un autre JVS
+                    include = segment.getArgument();
+                    break;
+                default:
+                    java = text + "\n";
+            }
+        }
+    }
+
+    /**
+     * Le résultat de la traduction d'une suite de lignes.
+     */
+    private static class Translation {
+        String code;
+        final List<Import> imports = new ArrayList<Import>();
+        String packageName;
+    }
+
+    /**
+     * Un include traduit, gardé dans l'{@link IncludeCache}.
+     */
+    private static class Include {
+        /**
+         * Le code traduit sur une ligne, ou le commentaire d'erreur
+         */
+        final String code;
+        final List<Import> imports;
+        final String packageName;
+
+        Include(String code, List<Import> imports, String packageName) {
+            this.code = code;
+            this.imports = imports;
+            this.packageName = packageName;
+        }
+    }
+
     /**
      * Cette classe permet de représenter un import à effectuer dans le code
      */
     public static class Import {
 
         /**
-         * Analyse le code pour détecter des instructions d'import
+         * Analyse le code pour détecter des instructions d'import. Seules les lignes d'import comptent : un import écrit
+         * dans un commentaire ou une chaîne de caractères est ignoré.
          *
          * @param javaCode Le code à analyser
          * @return Les imports présents dans le code
          */
         public static ArrayList<Import> parseJavaImportDeclaration(String javaCode) {
             ArrayList<Import> list = new ArrayList<Import>();
-            String[] instructions = javaCode.split("\n");
-            for (String instruction : instructions) {
-                if (instruction.contains("import ")) {
-                    instruction = instruction.split(";", 2)[0].split("import ", 2)[1];
-                    String[] parts = instruction.split(" ", 2);
-                    try {
-                        list.add(new Import(parts[0].equals("static") ? parts[1] : parts[0], parts[0].equals("static")));
-                    } catch (Exception e) {
-                        System.err.println("Impossible de lire l'instruction : " + instruction);
-                    }
-                }
+            for (JVSLexer.Segment segment : JVSLexer.lex(javaCode)) {
+                Import imp = parse(segment);
+                if (imp != null)
+                    list.add(imp);
             }
             return list;
         }
 
+        /**
+         * Donne l'import d'une ligne analysée.
+         *
+         * @return L'import ou null si la ligne n'est pas un import valide
+         */
+        static Import parse(JVSLexer.Segment segment) {
+            if (segment.getKind() != JVSLexer.Kind.IMPORT)
+                return null;
+            if (segment.getArgument().isEmpty()) {
+                System.err.println("Impossible de lire l'instruction : " + segment.getText());
+                return null;
+            }
+            return new Import(segment.getArgument(), segment.isStatic());
+        }
+
         private String classname;
         private boolean statik;
 
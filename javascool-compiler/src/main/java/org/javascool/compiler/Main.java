@@ -28,7 +28,10 @@ import java.util.ArrayList;
 
 /**
  * Main class to run JVSC. Classe principale pour lancer le JVSC (Java's Cool Compiler). Son usage est le suivant :
- * <ul><li>java -jar jvsc.jar MyFile.jvs Cela va créer un MyFile.class dans le répertoire courant</li></ul> Pour avoir
+ * <ul><li>java -jar jvsc.jar MyFile.jvs Cela va créer un MyFile.class dans le répertoire courant</li>
+ * <li>java -jar jvsc.jar -src MyFile.jvs -watch Cela recompile et relance le programme à chaque modification du
+ * fichier (voir {@link Watcher})</li>
+ * <li>java -jar jvsc.jar -daemon Cela lance le {@link Daemon} de compilation</li></ul> Pour avoir
  * un usage, executez la commande  'java -jar jvsc.jar -h'
  */
 public class Main {
@@ -50,6 +53,10 @@ public class Main {
     public static void main(String... args) {
         try {
             parseArguments(args);
+            if (getCommandLine().hasOption("daemon") && !getCommandLine().hasOption('h')) {
+                new Daemon(Integer.parseInt(getCommandLine().getOptionValue("port", "" + Daemon.DEFAULT_PORT))).start();
+                return;
+            }
             if (getCommandLine().hasOption('h') || (!getCommandLine().hasOption("src") || getCommandLine().getOptionValue("src").isEmpty())) {
                 if (!getCommandLine().hasOption("src") || getCommandLine().getOptionValue("src").isEmpty())
                     System.err.println("Aucun fichier source à compiler");
@@ -57,8 +64,13 @@ public class Main {
                 return;
             }
 
-            File jvsFile = new File("C:\\Users\\PhilippeGeek\\IdeaProjects\\Javascool-Compiler\\test.jvs");
-            ProgletCodeCompiler codeCompiler = new ProgletCodeCompiler(ProgletCodeCompiler.DEFAULT_PROGLET, jvsFile);
+            File jvsFile = new File(getCommandLine().getOptionValue("src"));
+            if (getCommandLine().hasOption("watch")) {
+                new Watcher(jvsFile, getCommandLine().getOptionValue("p", ProgletCodeCompiler.DEFAULT_PROGLET)).watch();
+                return;
+            }
+            ProgletCodeCompiler codeCompiler = new ProgletCodeCompiler(
+                    getCommandLine().getOptionValue("p", ProgletCodeCompiler.DEFAULT_PROGLET), jvsFile);
             ArrayList<Diagnostic<? extends JavaFileObject>> result = codeCompiler.compile();
             for (Diagnostic<? extends JavaFileObject> error : result) {
                 System.out.println("Erreur : " + error.toString());
@@ -109,6 +121,9 @@ public class Main {
             options.addOption("p", "proglet", true, "La proglet à utiliser dans le classpath");
             options.addOption("f", false, "Force la compilation même en cas d'erreur");
             options.addOption("v", "verbose", false, "Affiche tous les message de Logging");
+            options.addOption("w", "watch", false, "Recompile et relance le programme à chaque modification du fichier");
+            options.addOption("d", "daemon", false, "Lance le démon de compilation HTTP au lieu de compiler un fichier");
+            options.addOption("port", true, "Le port du démon (par défaut " + Daemon.DEFAULT_PORT + ")");
             options.addOption("h", "help", false, "Affiche l'aide");
         }
         return options;
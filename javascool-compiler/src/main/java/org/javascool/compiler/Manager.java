@@ -1,8 +1,32 @@
 package org.javascool.compiler;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Classe gestionnaire des proglets.
@@ -13,8 +37,15 @@ import java.util.ServiceLoader;
  * <p>Cela va permettre par exemple de créer un tableau
  * de démarrage avec les différentes proglets.</p>
  * <p/>
- * <p>Une fois les proglets localisés, il utilise un
- * {@link java.util.ArrayList} pour les classer.</p>
+ * <p>Une fois les proglets localisés, elles sont rangées
+ * par identificateur dans une table utilisable par plusieurs
+ * threads en même temps.</p>
+ * <p/>
+ * <p>Des proglets peuvent aussi être chargées, remplacées et
+ * retirées pendant l'exécution depuis des Jars
+ * ({@link #loadJar(java.io.File)}) ou depuis un dossier surveillé
+ * ({@link #watch(java.io.File)}), sans redémarrer le démon de
+ * compilation. Chaque Jar a son propre ClassLoader.</p>
  * <p/>
  * <p>Info : Dans un soucis de simplicité, les méthodes
  * de cette classe sont statiques afin de pouvoir y
@@ -27,11 +58,39 @@ import java.util.ServiceLoader;
 public class Manager {
 
     /**
-     * Variable permettant de connaître les proglets présant sans rescanner tout le classpath.
+     * Le temps sans modification attendu avant de charger un Jar du dossier surveillé, en millisecondes : on ne lit pas
+     * un Jar en cours de copie.
+     */
+    private static final long WATCH_DELAY = 500;
+
+    /**
+     * Variable permettant de connaître les proglets présant sans rescanner tout le classpath, indexées par leur
+     * identificateur.
      * <p><em>Cette variable est volontairment privé car son accès doit se faire par des
      * accesseurs public</em></p>
      */
-    private static final ArrayList<Proglet> proglets = new ArrayList<Proglet>();
+    private static final ConcurrentHashMap<String, Proglet> proglets = new ConcurrentHashMap<String, Proglet>();
+
+    /**
+     * Les Jars de proglets chargés, indexés par leur fichier.
+     */
+    private static final ConcurrentHashMap<File, ProgletJar> jars = new ConcurrentHashMap<File, ProgletJar>();
+
+    /**
+     * Le thread qui surveille le dossier des Jars, null s'il n'y en a pas.
+     */
+    private static Thread watcher;
+
+    /**
+     * Les ClassLoaders des Jars rechargés ou retirés, qui peuvent encore servir aux compilations en cours.
+     */
+    private static final Set<Retired> retired = Collections.newSetFromMap(new ConcurrentHashMap<Retired, Boolean>());
+    private static final ReferenceQueue<URLClassLoader> collected = new ReferenceQueue<URLClassLoader>();
+
+    /**
+     * Les copies qui n'ont pas pu être effacées et sont confiées à {@link File#deleteOnExit()}, chacune une seule fois.
+     */
+    private static final Set<File> undeleted = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
 
     /**
      * Constructeur muet.
@@ -48,13 +107,14 @@ public class Manager {
      * <p>Cette méthode est nouvelle et doit absolument être mise à l'épreuve pour vérifier qu'elle
      * ne peut pas être source de bugs</p>
      *
+     * @param classLoader Le ClassLoader où chercher les proglets
      * @return La listes de Proglets trouvés.
      * @see java.util.ServiceLoader
      * @since 5.0
      */
-    private static ArrayList<Proglet> findProglets() {
+    private static ArrayList<Proglet> findProglets(ClassLoader classLoader) {
         final ArrayList<Proglet> progletsFound = new ArrayList<Proglet>();
-        final ServiceLoader<Proglet> serviceLoader = ServiceLoader.load(Proglet.class);
+        final ServiceLoader<Proglet> serviceLoader = ServiceLoader.load(Proglet.class, classLoader);
         for (Proglet p : new Iterable<Proglet>() {
             public Iterator<Proglet> iterator() {
                 return serviceLoader.iterator();
@@ -74,17 +134,286 @@ public class Manager {
      * @throws IllegalArgumentException Dans le cas où la proglet est déjà présente
      */
     public static void addProglet(final Proglet proglet) throws IllegalArgumentException {
-        if (getProglets().contains(proglet))
+        if (proglets.putIfAbsent(proglet.getIdentifier(), proglet) != null)
             throw new IllegalArgumentException("La proglet " + proglet + " est déclaré deux fois");
-        getProglets().add(proglet);
     }
 
-    private static ArrayList<Proglet> getProglets() {
-        return proglets;
+    /**
+     * Retire une proglet du gestionnaire.
+     *
+     * @param identifier L'identificateur de la proglet
+     * @return La proglet retirée ou null si elle n'était pas présente
+     */
+    public static Proglet removeProglet(String identifier) {
+        return proglets.remove(identifier);
+    }
+
+    /**
+     * Donne une proglet.
+     *
+     * @param identifier L'identificateur de la proglet (ex. "abcdAlgos")
+     * @return La proglet ou null si elle n'est pas présente
+     */
+    public static Proglet getProglet(String identifier) {
+        return identifier == null ? null : proglets.get(identifier);
+    }
+
+    /**
+     * Donne toutes les proglets présentes.
+     *
+     * @return Une vue non modifiable des proglets, qui suit les ajouts et retraits
+     */
+    public static Collection<Proglet> getProglets() {
+        return Collections.unmodifiableCollection(proglets.values());
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions pour les Jars de proglets
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Charge les proglets d'un Jar. Le Jar est copié avant d'être lu : l'original peut être remplacé ou effacé
+     * pendant que ses proglets sont utilisées. Si le Jar était déjà chargé, ses anciennes proglets sont remplacées
+     * par les nouvelles. L'ancien ClassLoader n'est pas fermé : les compilations et exécutions en cours peuvent
+     * encore y charger des classes et des ressources. Sa copie du Jar est effacée quand il n'est plus utilisé. Si le
+     * Jar ne peut pas être lu, les anciennes proglets sont gardées.
+     *
+     * @param jar Le Jar de proglets
+     * @return Les proglets chargées
+     * @throws IOException Si le Jar ne peut pas être copié
+     */
+    public static synchronized List<Proglet> loadJar(File jar) throws IOException {
+        jar = jar.getAbsoluteFile();
+        File copy = File.createTempFile("proglet-", ".jar");
+        Files.copy(jar.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        URLClassLoader classLoader = new URLClassLoader(new URL[]{copy.toURI().toURL()},
+                Manager.class.getClassLoader());
+        ProgletJar loaded = new ProgletJar(copy, classLoader);
+        List<Proglet> found;
+        try {
+            found = findProglets(classLoader);
+        } catch (Throwable e) { // ServiceConfigurationError ou LinkageError d'un Jar mal formé
+            loaded.close();
+            throw new IOException("Impossible de lire les proglets de " + jar, e);
+        }
+        ProgletJar previous = jars.get(jar);
+        List<Proglet> added = new ArrayList<Proglet>();
+        for (Proglet proglet : found) {
+            if (proglet.getClass().getClassLoader() != classLoader) // Service trouvé dans le classpath parent
+                continue;
+            String identifier = proglet.getIdentifier();
+            Proglet current = proglets.get(identifier);
+            if (current != null && (previous == null || !previous.identifiers.contains(identifier))) {
+                Logger.getAnonymousLogger().log(Level.WARNING, "La proglet " + proglet + " de " + jar +
+                        " est déjà déclarée ailleurs, elle est ignorée");
+                continue;
+            }
+            proglets.put(identifier, proglet);
+            loaded.identifiers.add(identifier);
+            added.add(proglet);
+        }
+        jars.put(jar, loaded);
+        if (previous != null) {
+            for (String identifier : previous.identifiers) {
+                if (!loaded.identifiers.contains(identifier))
+                    proglets.remove(identifier);
+            }
+            previous.retire();
+        }
+        return added;
+    }
+
+    /**
+     * Retire les proglets d'un Jar chargé par {@link #loadJar(java.io.File)}. Comme pour un rechargement, son
+     * ClassLoader reste ouvert tant qu'il est utilisé.
+     *
+     * @param jar Le Jar de proglets
+     * @return Vrai si le Jar était chargé
+     */
+    public static synchronized boolean unloadJar(File jar) {
+        ProgletJar loaded = jars.remove(jar.getAbsoluteFile());
+        if (loaded == null)
+            return false;
+        for (String identifier : loaded.identifiers)
+            proglets.remove(identifier);
+        loaded.retire();
+        return true;
+    }
+
+    /**
+     * Efface la copie d'un Jar. Si elle est encore ouverte, elle sera effacée à la sortie de la JVM.
+     */
+    private static void delete(File copy) {
+        if (!copy.delete() && copy.exists() && undeleted.add(copy))
+            copy.deleteOnExit();
+    }
+
+    /**
+     * Efface les copies des Jars dès que leur ClassLoader est ramassé.
+     */
+    private static void startExpunger() {
+        Thread expunger = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Reference<? extends URLClassLoader> reference = collected.remove();
+                        retired.remove(reference);
+                        delete(((Retired) reference).copy);
+                    }
+                } catch (InterruptedException e) {
+                    // Fin de la JVM
+                }
+            }
+        }, "jvs-proglets-expunger");
+        expunger.setDaemon(true);
+        expunger.start();
+    }
+
+    /**
+     * Efface à la sortie de la JVM les copies des Jars encore chargés ou en attente d'être ramassés.
+     */
+    private static void deleteCopiesOnExit() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                for (ProgletJar loaded : jars.values())
+                    loaded.close();
+                for (Retired reference : retired)
+                    delete(reference.copy);
+            }
+        }, "jvs-proglets-cleaner"));
+    }
+
+    /**
+     * Surveille un dossier de Jars de proglets. Les Jars déjà présents sont chargés, puis chaque Jar ajouté, modifié
+     * ou effacé dans le dossier est chargé, rechargé ou retiré. Un seul dossier est surveillé à la fois.
+     *
+     * @param directory Le dossier des Jars
+     * @throws IOException Si le dossier ne peut pas être surveillé
+     */
+    public static synchronized void watch(File directory) throws IOException {
+        if (!directory.isDirectory())
+            throw new IllegalArgumentException("Le dossier " + directory + " n'existe pas !");
+        stopWatching();
+        final Path path = directory.getAbsoluteFile().toPath();
+        final WatchService service = FileSystems.getDefault().newWatchService();
+        path.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        File[] present = directory.listFiles();
+        if (present != null) {
+            for (File jar : present)
+                update(jar);
+        }
+        watcher = new Thread(new Runnable() {
+            public void run() {
+                Set<File> pending = new LinkedHashSet<File>();
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        WatchKey key = pending.isEmpty() ? service.take() :
+                                service.poll(WATCH_DELAY, TimeUnit.MILLISECONDS);
+                        if (key == null) { // Plus rien ne bouge : on traite les Jars modifiés
+                            for (File jar : pending)
+                                update(jar);
+                            pending.clear();
+                            continue;
+                        }
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.context() instanceof Path)
+                                pending.add(path.resolve((Path) event.context()).toFile());
+                        }
+                        if (!key.reset())
+                            break; // Le dossier a disparu
+                    }
+                } catch (InterruptedException e) {
+                    // Fin de la surveillance
+                } finally {
+                    try {
+                        service.close();
+                    } catch (IOException e) {
+                        Logger.getAnonymousLogger().log(Level.WARNING, "Impossible de fermer la surveillance", e);
+                    }
+                }
+            }
+        }, "jvs-proglets-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Arrête la surveillance du dossier de Jars. Les proglets déjà chargées sont gardées.
+     */
+    public static synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Charge, recharge ou retire un Jar du dossier surveillé.
+     */
+    private static void update(File file) {
+        if (!file.getName().endsWith(".jar"))
+            return;
+        try {
+            if (file.isFile())
+                loadJar(file);
+            else
+                unloadJar(file);
+        } catch (IOException e) {
+            Logger.getAnonymousLogger().log(Level.WARNING, "Impossible de charger les proglets de " + file, e);
+        }
+    }
+
+    /**
+     * Un Jar de proglets chargé.
+     */
+    private static class ProgletJar {
+        final File copy;
+        final URLClassLoader classLoader;
+        /**
+         * Les identificateurs des proglets du Jar.
+         */
+        final Set<String> identifiers = new LinkedHashSet<String>();
+
+        ProgletJar(File copy, URLClassLoader classLoader) {
+            this.copy = copy;
+            this.classLoader = classLoader;
+        }
+
+        /**
+         * Abandonne le Jar : sa copie sera effacée quand son ClassLoader ne sera plus utilisé.
+         */
+        void retire() {
+            retired.add(new Retired(classLoader, copy));
+        }
+
+        void close() {
+            try {
+                classLoader.close();
+            } catch (IOException e) {
+                Logger.getAnonymousLogger().log(Level.WARNING, "Impossible de fermer " + copy, e);
+            }
+            delete(copy);
+        }
+    }
+
+    /**
+     * Le ClassLoader d'un Jar abandonné, suivi jusqu'à ce qu'il soit ramassé.
+     */
+    private static class Retired extends PhantomReference<URLClassLoader> {
+        final File copy;
+
+        Retired(URLClassLoader classLoader, File copy) {
+            super(classLoader, collected);
+            this.copy = copy;
+        }
     }
 
     static { // Constructeur pour les données de la classe
-        getProglets().addAll(findProglets()); // On aujoute les proglets du classpath
+        startExpunger();
+        deleteCopiesOnExit();
+        for (Proglet proglet : findProglets(Manager.class.getClassLoader())) // On aujoute les proglets du classpath
+            proglets.putIfAbsent(proglet.getIdentifier(), proglet);
     }
 
 }
@@ -34,13 +34,6 @@ import java.util.HashMap;
  */
 public class Proglet {
 	
-	/**
-	 * Le classLoader de la classe représentant les Proglets.
-	 * <p>Cette variable permet d'acceder de façon plus explicite au ClassLoader sans
-	 * avoir à écrire de longues lignes.</p>
-	 */
-	final static private ClassLoader CLASS_LOADER=Proglet.class.getClassLoader();
-	
 	/**
 	 * Le classLoader de la classe représentant les Proglets.
 	 * <p>Cette variable permet d'acceder de façon plus explicite au ClassLoader sans
@@ -67,6 +60,10 @@ public class Proglet {
 	 * Cela correspond au contenu du proglet.json.
 	 */
 	private JSONObject configuration;
+	/**
+	 * Le profil de la proglet, calculé à la première demande.
+	 */
+	private volatile ProgletProfile profile;
 	
 	/**
 	 * Initialise une proglet à partir de ses données.
@@ -96,9 +93,9 @@ public class Proglet {
 		if(packageProg.contains("."))
 			packageName=packageProg;
 		else
-			packageName="org.javascool.proglets."+packageName;
+			packageName="org.javascool.proglets."+packageProg;
 		// On en déduit le nom de l'identificateur
-		identifier=packageName.split(".")[packageName.split(".").length-1];
+		identifier=packageName.substring(packageName.lastIndexOf('.')+1);
 		configuration=loadConfiguration();
 		if(configuration==null)
 			throw new ClassNotFoundException("La proglet "+this+" n'est pas présente");
@@ -116,7 +113,7 @@ public class Proglet {
 		if(packageName==null)return null;
 		try{
 			// On recherche l'URL de la configuration
-			final URL progletUrl=CLASS_LOADER.getResource(packageName.replace('.', '/')+"/proglet.json");
+			final URL progletUrl=getClassLoader().getResource(packageName.replace('.', '/')+"/proglet.json");
 			if(progletUrl==null) // Si elle n'existe pas alors on retourne une exception
 				throw new Exception();
 			// On lit et retourne la configuration
@@ -127,19 +124,40 @@ public class Proglet {
 		return null; // Dans le cas où aucune librairie n'as pu être chargé
 	}
 	
+	/**
+	 * Le ClassLoader de la proglet.
+	 * <p>C'est celui de la classe qui représente la proglet : celui de son Jar
+	 * lorsqu'elle a été chargée par {@link Manager#loadJar(java.io.File)}.</p>
+	 */
+	public ClassLoader getClassLoader(){
+		return getClass().getClassLoader();
+	}
+	
+	/**
+	 * Donne le profil de la proglet : ses classes et son Translator, cherchés une seule fois.
+	 * 
+	 * @return Le profil, le même pour toute la vie de cet objet.
+	 * @see ProgletProfile
+	 */
+	public ProgletProfile getProfile(){
+		ProgletProfile result=profile;
+		if(result==null){
+			synchronized(this){
+				if(profile==null)
+					profile=new ProgletProfile(identifier, packageName, getClassLoader(), configuration);
+				result=profile;
+			}
+		}
+		return result;
+	}
+	
 	/**
 	 * Permet de déterminer si la Proglet fournit un paquet de fonctions.
 	 * 
 	 * @return vrai dans le cas où une classe Fonctions existe dans le package de la proglet.
 	 */
 	public boolean hasFunctions(){
-		try{
-			CLASS_LOADER.loadClass(packageName+".Functions");
-			return true;
-		} catch(ClassNotFoundException e){
-			LOG.debug("La proglet "+this+" n'as pas de fonctions");
-		}
-		return false;
+		return getProfile().getFunctionsClass()!=null;
 	}
 	
 	/**
@@ -170,11 +188,7 @@ public class Proglet {
 	 * @return La classe du Panel ou null si elle n'existe pas.
 	 */
 	public Class<?> getPanelClass(){
-		try{
-			return CLASS_LOADER.loadClass(packageName+".Panel");
-		} catch(Exception e){
-			return null;
-		}
+		return getProfile().getPanelClass();
 	}
 	
 	/**
@@ -184,13 +198,7 @@ public class Proglet {
 	 * @return vrai dans le cas où une démo existe dans le package de la proglet.
 	 */
 	public boolean hasDemo(){
-		if(!hasPanel())return false;
-		try {
-			getPanelClass().getDeclaredMethod("demoStart");
-			return true;
-		} catch (Exception e) {
-			return false;
-		}
+		return getProfile().hasDemo();
 	}
 	
 	/**
@@ -19,16 +19,22 @@
 package org.javascool.compiler;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import org.javascool.core.CompileCache;
+import org.javascool.core.JVSDiagnostic;
+import org.javascool.core.RunHandle;
+import org.javascool.core.RunResult;
+import org.javascool.core.RunSupervisor;
 
 import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
 import javax.tools.JavaFileObject;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
 
 /**
  * Gestionnaire de compilation pour un code ayant une relation avec une Proglet. Gère d'un bout à l'autre la compilation
@@ -45,36 +51,44 @@ import java.util.logging.Logger;
  */
 public class ProgletCodeCompiler {
 
-    /**
-     * Le répertoire pour les compilations temporaires
-     */
-    private static final File tmpDirectory = new File(FileUtils.getTempDirectory(), "javascool-compiler");
-
-    static {
-        tmpDirectory.mkdirs();
-    }
-
     /**
      * L'identificateur de la proglet native de la version compilé.
      */
     public static final String DEFAULT_PROGLET = "ingrediants";
+    /**
+     * Trouve les lignes include d'un code JVS.
+     */
+    private static final Pattern INCLUDE = Pattern.compile("^\\s*include[^;]*;\\s*$", Pattern.MULTILINE);
     /**
      * L'identificateur de la proglet utilisé.
      */
     private String proglet;
+    /**
+     * Le profil de la proglet utilisée, null pour la proglet native.
+     */
+    private ProgletProfile profile;
     /**
      * Le translator de la proget. Si la proglet n'en déclare pas, alors on prend l'officiel {@link
      * DefaultJVSTranslator}
      */
     private JVSTranslator translator;
     /**
-     * Le compilateur utilisé.
+     * Le ClassLoader sur les classes compilées.
+     */
+    private ClassLoader classLoader;
+    /**
+     * Le nom complet de la classe compilée. Lorsque la compilation vient du cache, c'est celui de la première
+     * compilation de ce code.
      */
-    private Compiler compiler;
+    private String className;
     /**
      * Le fichier à compiler.
      */
     private File jvsFile;
+    /**
+     * Le code JVS à compiler en mémoire, lorsqu'aucun fichier n'est donné.
+     */
+    private String jvsCode;
 
 
     /**
@@ -84,29 +98,24 @@ public class ProgletCodeCompiler {
      */
     protected ProgletCodeCompiler(String progletName) {
         if (isDefaultProglet(progletName)) return; // On ne charge rien si c'est la proglet native
-        assertProgletExists(progletName);
+        profile = ProgletProfile.forProglet(progletName); // Vérifie aussi que la proglet existe
         proglet = progletName;
     }
 
     /**
      * Créer un compilateur pour une proglet avec un code JVS passé en argument. Ce constructeur permet de faire de la
-     * compilation à la volé sans être obligé de passé par un Fichier. Les resources du code seront alors considéré
-     * comme étant dans le répertoire racine de l'utilisateur.
+     * compilation à la volé sans être obligé de passé par un Fichier : la traduction, la compilation et le chargement
+     * des classes se font entièrement en mémoire. Les includes du code seront alors recherchés dans le répertoire
+     * racine de l'utilisateur.
      *
      * @param progletName Le nom de code de la proglet
      * @param code        Le code JVS à compiler
      */
     public ProgletCodeCompiler(String progletName, String code) {
         this(progletName);
-        try {
-            File tmpFolder = new File(tmpDirectory, code.hashCode() + "-compile");
-            tmpFolder.mkdirs();
-            jvsFile = File.createTempFile("JVSCompileSource", ".jvs", tmpFolder);
-            FileUtils.writeStringToFile(jvsFile, code);
-        } catch (IOException e) {
-            throw new IllegalStateException("On ne peut pas créer le fichier temporaire dans "
-                    + new File(tmpDirectory, code.hashCode() + "-compile"));
-        }
+        if (code == null)
+            throw new IllegalArgumentException("Aucun code à compiler");
+        jvsCode = code;
     }
 
     /**
@@ -153,29 +162,31 @@ public class ProgletCodeCompiler {
     }
 
     /**
-     * Vérifie si une proglet est présente dans le Classpath actuelle
+     * Lance la compilation du code.
      *
-     * @param progletName Le nom de la proglet à valider
+     * @return Les erreurs de compilations provenant de Java
      */
-    private static void assertProgletExists(String progletName) {
-        try {
-            IOUtils.toString(ProgletCodeCompiler.class.getClassLoader().getResourceAsStream("org/javascool/proglets/"
-                    + progletName + "/proglet.json"));
-        } catch (Exception e) {
-            throw new IllegalArgumentException("La proglet " + progletName + " n'existe pas dans le Classpath actuel.");
-        }
+    public ArrayList<Diagnostic<? extends JavaFileObject>> compile() {
+        return compile(null, 0);
     }
 
     /**
-     * Lance la compilation du code.
+     * Lance la compilation du code en suivant les erreurs au fur et à mesure.
      *
-     * @return Les erreurs de compilations provenant de Java
+     * @param listener  Reçoit chaque erreur dès qu'elle est trouvée (peut être null)
+     * @param maxErrors Le nombre d'erreurs après lequel la compilation s'arrête, 0 pour tout compiler
+     * @return Les erreurs de compilations provenant de Java, au plus maxErrors
      */
-    public ArrayList<Diagnostic<? extends JavaFileObject>> compile() {
-        translator = getTranslatorForProglet(proglet);
-        setUpTranslator();
+    public ArrayList<Diagnostic<? extends JavaFileObject>> compile(DiagnosticListener<? super JavaFileObject> listener,
+                                                                 int maxErrors) {
+        if (maxErrors < 0)
+            throw new IllegalArgumentException("Le nombre maximal d'erreurs ne peut pas être négatif");
+        prepareTranslator();
 
 
+        if (jvsFile == null) // Compilation en mémoire : rien ne touche le disque
+            return compileInMemory(listener, maxErrors);
+
         translator.getJavaCode(); // On lance un premier Parse
 
         // On établie là où sera le fichier compilé
@@ -197,10 +208,100 @@ public class ProgletCodeCompiler {
             throw new RuntimeException("Impossible d'écrire le fichier Java", e);
         }
 
-        compiler = new Compiler(jvsFile.getParentFile(), translator.getFullClassname());
+        Compiler compiler = new Compiler(jvsFile.getParentFile(), translator.getFullClassname());
+        compiler.setCompilerService(getCompilerService());
+        compiler.setDiagnosticListener(listener);
+        compiler.setMaxErrors(maxErrors);
 
         // On compile le Java et on retourne le résultat
-        return compiler.compile();
+        ArrayList<Diagnostic<? extends JavaFileObject>> errors = compiler.compile();
+        classLoader = compiler.getClassLoader();
+        className = translator.getFullClassname();
+        return errors;
+    }
+
+    /**
+     * Compile le code JVS en mémoire en passant par le {@link CompileCache} : un code déjà compilé (par exemple le
+     * même programme de départ envoyé par toute une classe) n'est ni retraduit ni recompilé. Les codes avec des
+     * includes ne passent pas par le cache car le contenu des fichiers inclus n'entre pas dans la clé.
+     * <p/>
+     * Une compilation arrêtée après maxErrors erreurs n'est pas gardée dans le cache puisqu'elle n'a pas toutes les
+     * erreurs. Si le code est déjà dans le cache, ses erreurs sont envoyées à l'écouteur.
+     *
+     * @return Les erreurs de compilations provenant de Java
+     */
+    private ArrayList<Diagnostic<? extends JavaFileObject>> compileInMemory(
+            final DiagnosticListener<? super JavaFileObject> listener, final int maxErrors) {
+        CompileCache.Key key = getCacheKey();
+        CompileCache.Entry entry;
+        if (key == null) {
+            entry = translateAndCompile(listener, maxErrors);
+        } else if (listener == null && maxErrors == 0) {
+            entry = CompileCache.getInstance().get(key,
+                    new Callable<CompileCache.Entry>() {
+                        public CompileCache.Entry call() {
+                            return translateAndCompile(null, 0);
+                        }
+                    });
+        } else {
+            entry = CompileCache.getInstance().get(key);
+            if (entry == null) {
+                entry = translateAndCompile(listener, maxErrors);
+                if (maxErrors == 0 || !entry.hasErrors())
+                    CompileCache.getInstance().put(key, entry);
+            } else if (listener != null) {
+                for (int i = 0; i < entry.getDiagnostics().size() && (maxErrors == 0 || i < maxErrors); i++)
+                    listener.report(entry.getDiagnostics().get(i));
+            }
+        }
+        classLoader = new JVSClassLoader(entry.getClasses(), getCompilerService().getClassLoader());
+        className = entry.getClassName();
+        List<JVSDiagnostic> diagnostics = entry.getDiagnostics();
+        if (maxErrors > 0 && diagnostics.size() > maxErrors)
+            diagnostics = diagnostics.subList(0, maxErrors);
+        return new ArrayList<Diagnostic<? extends JavaFileObject>>(diagnostics);
+    }
+
+    /**
+     * Traduit le code JVS puis compile le Java obtenu avec le {@link CompilerService}.
+     *
+     * @return Le résultat de la compilation
+     */
+    private CompileCache.Entry translateAndCompile(DiagnosticListener<? super JavaFileObject> listener,
+                                                   int maxErrors) {
+        // La traduction d'abord : c'est elle qui trouve le package éventuellement déclaré, qui entre dans le nom complet
+        String javaCode = translator.getJavaCode();
+        CompilationOutput output = getCompilerService().compile(translator.getFullClassname(), javaCode, listener,
+                maxErrors);
+        return new CompileCache.Entry(output.getClassName(), output.getClasses(), output.getDiagnostics());
+    }
+
+    /**
+     * Crée et configure le translator de la proglet.
+     *
+     * @return Le translator prêt à traduire le code
+     */
+    JVSTranslator prepareTranslator() {
+        translator = getTranslatorForProglet(proglet);
+        setUpTranslator();
+        return translator;
+    }
+
+    /**
+     * Donne la clé du code dans le {@link CompileCache}. Le translator doit être préparé.
+     *
+     * @return La clé, ou null si le code a des includes et ne peut donc pas être gardé dans le cache
+     * @see #prepareTranslator()
+     */
+    CompileCache.Key getCacheKey() {
+        if (jvsCode == null || INCLUDE.matcher(jvsCode).find())
+            return null;
+        if (profile == null)
+            return CompileCache.key(jvsCode, proglet, CompilerService.getOptions(), translator.getClass(),
+                    JVSLexer.class);
+        // Le code compilé dépend aussi des Functions de la proglet, qui changent quand son Jar est rechargé
+        return CompileCache.key(jvsCode, proglet, CompilerService.getOptions(), translator.getClass(),
+                JVSLexer.class, profile.getFunctionsClass());
     }
 
     /**
@@ -208,12 +309,17 @@ public class ProgletCodeCompiler {
      */
     private void setUpTranslator() {
         translator.addDefaultImports(); // On vérifie bien qu'on est dans un monde Java's Cool (Imports, Runnable ...)
-        try {
-            ProgletCodeCompiler.class.getClassLoader().loadClass("org.javascool.proglets." + this.proglet + ".Functions");
-            translator.addImport("org.javascool.proglets." + this.proglet + ".Functions.*", true);
-        } catch (ClassNotFoundException e) {
-            Logger.getAnonymousLogger().log(Level.INFO, "Aucun fonction à ajouter avec la proglet " + this.proglet);
-        } // Dans ce cas on ne fais rien car il n'y a pas de Functions.java
+        if (profile != null) { // Les Functions de la proglet, s'il y en a
+            for (String staticImport : profile.getStaticImports())
+                translator.addImport(staticImport, true);
+        }
+    }
+
+    /**
+     * Donne le service qui compile le code : celui de la proglet, dont le classpath contient ses classes.
+     */
+    CompilerService getCompilerService() {
+        return profile == null ? CompilerService.getInstance() : profile.getCompilerService();
     }
 
     /**
@@ -224,7 +330,9 @@ public class ProgletCodeCompiler {
      * @throws IllegalStateException  Dans le cas où une erreur impromptu survient.
      */
     public Runnable getCompiledRunnable() throws ClassNotFoundException, IllegalStateException {
-        Class<?> compiledClass = compiler.getClassLoader().loadClass(translator.getFullClassname());
+        if (classLoader == null)
+            throw new IllegalStateException("Le code n'a pas encore été compilé");
+        Class<?> compiledClass = classLoader.loadClass(className);
         try {
             return (Runnable) compiledClass.newInstance();
         } catch (ClassCastException e) {
@@ -236,6 +344,71 @@ public class ProgletCodeCompiler {
         }
     }
 
+    /**
+     * Lance le code compilé dans sa propre exécution. Le runnable est créé dans le thread du programme : les threads
+     * lancés par ses initialisations statiques font aussi partie de l'exécution. Le compilateur oublie ensuite ses
+     * classes, l'exécution les libère avec {@link RunHandle#release()}.
+     *
+     * @return L'exécution lancée
+     * @throws IllegalStateException Si le code n'a pas encore été compilé
+     */
+    public RunHandle start() throws IllegalStateException {
+        assertCompiled();
+        RunHandle handle = new RunHandle(classLoader, "jvs-" + className);
+        Runnable program = program(classLoader, className);
+        release();
+        handle.start(program);
+        return handle;
+    }
+
+    /**
+     * Exécute le code compilé sous la surveillance d'un {@link RunSupervisor}, qui l'arrête s'il dépasse une de ses
+     * limites, et attend la fin de l'exécution. L'exécution est ensuite libérée.
+     *
+     * @param supervisor Le superviseur et ses limites
+     * @return Le résultat de l'exécution, avec les ressources consommées
+     * @throws IllegalStateException Si le code n'a pas encore été compilé
+     */
+    public RunResult run(RunSupervisor supervisor) throws IllegalStateException {
+        assertCompiled();
+        RunHandle handle = new RunHandle(classLoader, "jvs-" + className);
+        Runnable program = program(classLoader, className);
+        release();
+        try {
+            return supervisor.run(handle, program);
+        } finally {
+            handle.release();
+        }
+    }
+
+    private void assertCompiled() {
+        if (classLoader == null)
+            throw new IllegalStateException("Le code n'a pas encore été compilé");
+    }
+
+    /**
+     * Crée le programme d'une exécution : le runnable compilé est créé dans le thread du programme.
+     */
+    private static Runnable program(final ClassLoader loader, final String name) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    ((Runnable) loader.loadClass(name).newInstance()).run();
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("La classe compilé ne peut pas être créé comme objet", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Oublie les classes compilées pour qu'elles puissent être déchargées. Il faut recompiler le code pour
+     * l'exécuter à nouveau.
+     */
+    public void release() {
+        classLoader = null;
+    }
+
     /**
      * Cherche si la proglet définit un Translator. Permet d'acceder aux translators des package du Classpath.
      *
@@ -244,17 +417,15 @@ public class ProgletCodeCompiler {
      */
     protected JVSTranslator getTranslatorForProglet(String progletName) {
         if (!isDefaultProglet(progletName)) {
-            try {
-                Class<?> translatorClass = ProgletCodeCompiler.class.getClassLoader()
-                        .loadClass("org.javascool.proglets." + this.proglet + ".Translator");
-                translator = (JVSTranslator) translatorClass.getDeclaredConstructor(File.class).newInstance(jvsFile);
-            } catch (ClassNotFoundException e) {
-                Logger.getAnonymousLogger().log(Level.INFO, "Aucun Translator pour " + progletName);
-            } // Dans ce cas on ne fais rien car il n'y a pas de Functions.java
-            catch (Exception e) {
-                throw new IllegalStateException("Impossible de créer un translator.");
-            }
+            ProgletProfile progletProfile = progletName.equals(proglet) ? profile :
+                    ProgletProfile.forProglet(progletName);
+            JVSTranslator progletTranslator = jvsFile == null ? progletProfile.createTranslator(jvsCode) :
+                    progletProfile.createTranslator(jvsFile);
+            if (progletTranslator != null)
+                return progletTranslator;
         }
+        if (jvsFile == null)
+            return new DefaultJVSTranslator(jvsCode);
         try {
             return new DefaultJVSTranslator(jvsFile);
         } catch (IOException e) {
@@ -0,0 +1,259 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.compiler;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ce que le compilateur doit savoir d'une proglet, calculé une seule fois : sa configuration (<tt>proglet.json</tt>),
+ * ses classes <tt>Functions</tt>, <tt>Panel</tt> et <tt>Translator</tt>, les constructeurs de son Translator et ses
+ * imports statiques. Un profil ne change pas et est partagé par toutes les compilations.
+ * <p/>
+ * Le profil d'une proglet chargée par le {@link Manager} est gardé par sa {@link Proglet} : quand le Jar de la proglet
+ * est rechargé, la nouvelle version a un nouveau profil. Les profils des autres proglets, prises dans le classpath,
+ * sont gardés ici.
+ *
+ * @author Philippe VIENNE (PhilippeGeek@gmail.com)
+ * @since 5.0
+ */
+public final class ProgletProfile {
+    /**
+     * Les profils des proglets du classpath, indexés par identificateur.
+     */
+    private static final ConcurrentHashMap<String, ProgletProfile> profiles =
+            new ConcurrentHashMap<String, ProgletProfile>();
+
+    private final String identifier;
+    private final String packageName;
+    private final ClassLoader classLoader;
+    private final JSONObject configuration;
+    private final Class<?> functionsClass;
+    private final Class<?> panelClass;
+    private final Class<?> translatorClass;
+    private final Constructor<? extends JVSTranslator> codeConstructor;
+    private final Constructor<? extends JVSTranslator> fileConstructor;
+    private final boolean demo;
+    private final List<String> staticImports;
+    private final CompilerService compilerService;
+
+    /**
+     * Calcule le profil d'une proglet.
+     *
+     * @param identifier    L'identificateur de la proglet
+     * @param packageName   Le package de la proglet
+     * @param classLoader   Le ClassLoader où sont les classes de la proglet
+     * @param configuration La configuration de la proglet, ou null pour lire son <tt>proglet.json</tt>
+     * @throws IllegalArgumentException Si la proglet n'a pas de <tt>proglet.json</tt>
+     */
+    ProgletProfile(String identifier, String packageName, ClassLoader classLoader, JSONObject configuration) {
+        this.identifier = identifier;
+        this.packageName = packageName;
+        this.classLoader = classLoader;
+        this.configuration = configuration == null ? loadConfiguration() : configuration;
+        functionsClass = loadClass("Functions");
+        panelClass = loadClass("Panel");
+        translatorClass = loadClass("Translator");
+        codeConstructor = translatorConstructor(String.class);
+        fileConstructor = translatorConstructor(File.class);
+        boolean hasDemo = false;
+        if (panelClass != null) {
+            try {
+                panelClass.getDeclaredMethod("demoStart");
+                hasDemo = true;
+            } catch (Exception e) {
+                hasDemo = false;
+            }
+        }
+        demo = hasDemo;
+        List<String> imports = new ArrayList<String>();
+        if (functionsClass != null)
+            imports.add(functionsClass.getName() + ".*");
+        staticImports = Collections.unmodifiableList(imports);
+        // Les proglets du classpath partagent le service de l'application, celles d'un Jar ont le leur
+        compilerService = classLoader == CompilerService.class.getClassLoader() ? CompilerService.getInstance() :
+                new CompilerService(classLoader);
+    }
+
+    /**
+     * Donne le profil d'une proglet, celle du {@link Manager} si elle y est, sinon celle du classpath.
+     *
+     * @param identifier L'identificateur de la proglet (ex. "abcdAlgos")
+     * @return Le profil de la proglet
+     * @throws IllegalArgumentException Si la proglet n'existe pas
+     */
+    public static ProgletProfile forProglet(String identifier) {
+        Proglet proglet = Manager.getProglet(identifier);
+        if (proglet != null)
+            return proglet.getProfile();
+        ProgletProfile profile = profiles.get(identifier);
+        if (profile == null) {
+            profile = new ProgletProfile(identifier, "org.javascool.proglets." + identifier,
+                    ProgletProfile.class.getClassLoader(), null);
+            ProgletProfile previous = profiles.putIfAbsent(identifier, profile);
+            if (previous != null)
+                profile = previous;
+        }
+        return profile;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions pour créer le translator
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Crée le Translator de la proglet sur un code.
+     *
+     * @param code Le code JVS
+     * @return Le translator ou null si la proglet n'en définit pas
+     * @throws IllegalStateException Si le Translator de la proglet ne peut pas être créé
+     */
+    public JVSTranslator createTranslator(String code) {
+        return newTranslator(codeConstructor, code);
+    }
+
+    /**
+     * Crée le Translator de la proglet sur un fichier.
+     *
+     * @param file Le fichier JVS
+     * @return Le translator ou null si la proglet n'en définit pas
+     * @throws IllegalStateException Si le Translator de la proglet ne peut pas être créé
+     */
+    public JVSTranslator createTranslator(File file) {
+        return newTranslator(fileConstructor, file);
+    }
+
+    private JVSTranslator newTranslator(Constructor<? extends JVSTranslator> constructor, Object argument) {
+        if (translatorClass == null)
+            return null;
+        if (constructor == null)
+            throw new IllegalStateException("Impossible de créer un translator.");
+        try {
+            return constructor.newInstance(argument);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Impossible de créer un translator.", e.getCause());
+        } catch (Exception e) {
+            throw new IllegalStateException("Impossible de créer un translator.", e);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Accesseurs
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Le contenu du <tt>proglet.json</tt>. Il est partagé : il ne doit pas être modifié.
+     */
+    public JSONObject getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * La classe Functions de la proglet, ou null si elle n'en a pas.
+     */
+    public Class<?> getFunctionsClass() {
+        return functionsClass;
+    }
+
+    /**
+     * La classe Panel de la proglet, ou null si elle n'en a pas.
+     */
+    public Class<?> getPanelClass() {
+        return panelClass;
+    }
+
+    /**
+     * Vrai si le Panel de la proglet a une méthode <tt>demoStart</tt>.
+     */
+    public boolean hasDemo() {
+        return demo;
+    }
+
+    /**
+     * Les imports statiques à ajouter aux codes de la proglet (ex. "org.javascool.proglets.codagePixels.Functions.*").
+     */
+    public List<String> getStaticImports() {
+        return staticImports;
+    }
+
+    /**
+     * Le service qui compile les codes de la proglet, avec le classpath de la proglet.
+     */
+    public CompilerService getCompilerService() {
+        return compilerService;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private JSONObject loadConfiguration() {
+        InputStream in = classLoader.getResourceAsStream(packageName.replace('.', '/') + "/proglet.json");
+        if (in == null)
+            throw new IllegalArgumentException("La proglet " + identifier + " n'existe pas dans le Classpath actuel.");
+        try {
+            return new JSONObject(IOUtils.toString(in, "UTF-8"));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("La configuration de la proglet " + identifier + " est illisible", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private Class<?> loadClass(String name) {
+        try {
+            return classLoader.loadClass(packageName + "." + name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    private Constructor<? extends JVSTranslator> translatorConstructor(Class<?> argument) {
+        if (translatorClass == null || !JVSTranslator.class.isAssignableFrom(translatorClass))
+            return null;
+        try {
+            return translatorClass.asSubclass(JVSTranslator.class).getDeclaredConstructor(argument);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
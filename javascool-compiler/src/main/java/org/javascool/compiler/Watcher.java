@@ -0,0 +1,269 @@
+/*
+ * Java's Cool, IDE for French Computer Sciences Students
+ * Copyright (C) 2012  Philippe VIENNE, INRIA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.compiler;
+
+import org.javascool.core.RunHandle;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mode surveillance du compilateur en ligne de commande (<tt>--watch</tt>). Le fichier JVS est compilé et exécuté, puis
+ * à chaque modification du fichier ou d'un fichier JVS des répertoires d'include, il est recompilé et relancé dans un
+ * nouveau ClassLoader. L'exécution précédente, si elle tourne encore, est arrêtée.
+ * <p/>
+ * Un fichier enregistré sans changement (même empreinte SHA-256) ne relance rien. À chaque cycle, le temps entre la
+ * modification et la première sortie du programme est affiché sur la sortie d'erreur.
+ *
+ * @see Main
+ * @since 5.0
+ */
+class Watcher {
+    /**
+     * Le temps sans modification attendu avant de recompiler, en millisecondes : un éditeur écrit souvent un fichier
+     * en plusieurs fois.
+     */
+    private static final long QUIET_DELAY = 100;
+
+    private final File jvsFile;
+    private final String proglet;
+    /**
+     * L'empreinte des fichiers JVS surveillés, null pour un fichier illisible.
+     */
+    private final Map<Path, String> digests = new HashMap<Path, String>();
+    /**
+     * La sortie standard, qui note la première écriture après chaque relance.
+     */
+    private final FirstOutput output;
+    private RunHandle run;
+
+    /**
+     * Crée une surveillance.
+     *
+     * @param jvsFile Le fichier JVS
+     * @param proglet La proglet du code
+     */
+    Watcher(File jvsFile, String proglet) {
+        this.jvsFile = jvsFile.getAbsoluteFile();
+        this.proglet = proglet;
+        output = new FirstOutput(System.out);
+        System.setOut(new PrintStream(output, true));
+    }
+
+    /**
+     * Compile, exécute puis surveille le fichier jusqu'à ce que le thread soit interrompu.
+     *
+     * @throws IOException          Si les répertoires ne peuvent pas être surveillés
+     * @throws InterruptedException Quand la surveillance est interrompue
+     */
+    void watch() throws IOException, InterruptedException {
+        WatchService service = FileSystems.getDefault().newWatchService();
+        try {
+            Set<File> directories = new LinkedHashSet<File>();
+            directories.add(jvsFile.getParentFile());
+            File[] includeDirectories = new ProgletCodeCompiler(proglet, jvsFile).prepareTranslator()
+                    .getIncludeDirectories();
+            if (includeDirectories != null)
+                directories.addAll(Arrays.asList(includeDirectories));
+            for (File directory : directories) {
+                if (!directory.isDirectory())
+                    continue;
+                directory.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (isWatched(file.toPath()))
+                            changed(file.toPath());
+                    }
+                }
+            }
+            changed(jvsFile.toPath());
+            rebuild(System.nanoTime());
+            Set<Path> pending = new LinkedHashSet<Path>();
+            while (!Thread.currentThread().isInterrupted()) {
+                collect(service.take(), pending);
+                long start = System.nanoTime();
+                WatchKey key;
+                while ((key = service.poll(QUIET_DELAY, TimeUnit.MILLISECONDS)) != null)
+                    collect(key, pending);
+                // Les empreintes sont lues une fois le fichier écrit : pas entre la troncature et l'écriture
+                boolean changed = false;
+                for (Path file : pending)
+                    changed |= changed(file);
+                pending.clear();
+                if (changed)
+                    rebuild(start);
+            }
+        } finally {
+            service.close();
+            if (run != null)
+                run.release();
+        }
+    }
+
+    /**
+     * Recompile le fichier et relance le programme.
+     *
+     * @param start Le moment de la modification (en nanosecondes)
+     */
+    private void rebuild(long start) {
+        output.disarm(); // Ce qu'écrit l'exécution arrêtée ne compte pas
+        if (run != null) {
+            run.release();
+            run = null;
+        }
+        System.err.println("-------------------\n[watch] Compilation de " + jvsFile.getName());
+        try {
+            ProgletCodeCompiler compiler = new ProgletCodeCompiler(proglet, jvsFile);
+            List<Diagnostic<? extends JavaFileObject>> errors = compiler.compile();
+            long compiled = System.nanoTime();
+            for (Diagnostic<? extends JavaFileObject> error : errors)
+                System.err.println("Erreur : " + error.toString());
+            System.err.println("[watch] Compilé en " + millis(start, compiled) + " ms");
+            if (!errors.isEmpty())
+                return;
+            output.arm(start);
+            run = compiler.start();
+        } catch (RuntimeException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Lit les événements d'un répertoire.
+     *
+     * @param pending Les fichiers surveillés touchés, à compléter
+     */
+    private void collect(WatchKey key, Set<Path> pending) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (!(event.context() instanceof Path))
+                continue;
+            Path file = directory.resolve((Path) event.context());
+            if (isWatched(file))
+                pending.add(file);
+        }
+        key.reset();
+    }
+
+    /**
+     * Seuls le fichier et les fichiers JVS, qui peuvent être inclus, comptent : pas les .java et .class produits.
+     */
+    private boolean isWatched(Path file) {
+        return file.toAbsolutePath().equals(jvsFile.toPath()) ||
+                file.getFileName().toString().endsWith("." + JVSTranslator.INCLUDE_FILE_EXTENTION);
+    }
+
+    /**
+     * Met à jour l'empreinte d'un fichier.
+     *
+     * @return Vrai si son contenu a changé
+     */
+    private boolean changed(Path file) {
+        file = file.toAbsolutePath();
+        String digest;
+        try {
+            digest = Arrays.toString(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file)));
+        } catch (IOException e) {
+            digest = null; // Effacé ou en cours d'écriture
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 n'est pas disponible", e);
+        }
+        boolean known = digests.containsKey(file);
+        String previous = digests.put(file, digest);
+        return !known || (previous == null ? digest != null : !previous.equals(digest));
+    }
+
+    private static long millis(long start, long end) {
+        return TimeUnit.NANOSECONDS.toMillis(end - start);
+    }
+
+    /**
+     * Sortie qui affiche le temps écoulé depuis la modification à la première écriture du programme.
+     */
+    private static class FirstOutput extends FilterOutputStream {
+        /**
+         * Valeur de {@link #armed} quand il n'y a rien à mesurer : {@link System#nanoTime()} peut être négatif.
+         */
+        private static final long DISARMED = Long.MIN_VALUE;
+        private final AtomicLong armed = new AtomicLong(DISARMED);
+
+        FirstOutput(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * Mesure la prochaine écriture depuis un moment donné (en nanosecondes).
+         */
+        void arm(long start) {
+            armed.set(start);
+        }
+
+        /**
+         * Ne mesure plus rien.
+         */
+        void disarm() {
+            armed.set(DISARMED);
+        }
+
+        private void first() {
+            long start = armed.get();
+            // Seul le thread qui désarme affiche la mesure, même si plusieurs écrivent en même temps
+            if (start != DISARMED && armed.compareAndSet(start, DISARMED)) {
+                System.err.println("[watch] Première sortie " + millis(start, System.nanoTime()) +
+                        " ms après la modification");
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first();
+            out.write(b, off, len);
+        }
+    }
+}
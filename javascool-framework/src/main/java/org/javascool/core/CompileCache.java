@@ -0,0 +1,759 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.core;
+
+import org.javascool.tools.FileManager;
+
+import javax.tools.Diagnostic;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache des compilations de code Jvs, indexé par le contenu du code. Dans une classe, des dizaines d'élèves envoient
+ * exactement le même programme de départ : il n'est compilé qu'une seule fois.
+ * <p>
+ * La clé est une empreinte SHA-256 du code Jvs normalisé, de la proglet, des options du compilateur, de la version
+ * des traducteurs et de l'environnement : version de Java, Jars du classpath et code de {@link Translator} (voir
+ * {@link #key(String, String, String, Class[])}). La valeur est le bytecode des classes produites et les erreurs de
+ * compilation.
+ * </p>
+ * <p>
+ * Les compilations sont gardées en mémoire et dans un fichier "pack" où elles sont ajoutées les unes à la suite des
+ * autres. Ce fichier est lu au travers d'une projection en mémoire ({@link FileChannel#map}). Les deux niveaux sont
+ * limités en taille, les compilations les moins récemment utilisées sont oubliées en premier. Les limites se règlent
+ * avec les propriétés système :
+ * <ul>
+ * <li><tt>javascool.cache.dir</tt> : le dossier du fichier pack (par défaut <tt>cache</tt> dans le dossier privé de
+ * l'utilisateur, voir {@link FileManager#getPrivateDir(String)}) ;</li>
+ * <li><tt>javascool.cache.disk</tt> : la taille maximale du fichier en octets (64 Mo par défaut, 0 pour ne rien
+ * écrire sur le disque) ;</li>
+ * <li><tt>javascool.cache.heap</tt> : la taille maximale en mémoire en octets (16 Mo par défaut).</li>
+ * </ul>
+ * </p>
+ *
+ * @author Philippe VIENNE (PhilippeGeek@gmail.com)
+ * @since 5.0
+ */
+public class CompileCache {
+    /**
+     * L'en-tête du fichier pack, changé à chaque évolution du format.
+     */
+    private static final byte[] MAGIC = "JVSPACK1".getBytes(Charset.forName("US-ASCII"));
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * La taille d'une empreinte SHA-256.
+     */
+    private static final int KEY_LENGTH = 32;
+
+    private static CompileCache instance;
+
+    /**
+     * Les versions des traducteurs déjà calculées. Les classes ne sont pas retenues : celles d'une proglet retirée
+     * peuvent être déchargées.
+     */
+    private static final Map<Class<?>, String> translatorVersions =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, String>());
+    /**
+     * L'empreinte de l'environnement, calculée une fois.
+     */
+    private static String environment;
+
+    /**
+     * Le dossier du fichier pack, ou null si le cache est uniquement en mémoire.
+     */
+    private File directory;
+    private final long diskBudget;
+    private final long heapBudget;
+    /**
+     * Les compilations décodées gardées en mémoire, de la moins récemment utilisée à la plus récente.
+     */
+    private final LinkedHashMap<Key, Entry> heap = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long heapSize = 0;
+    /**
+     * La position de chaque compilation dans le fichier pack, de la moins récemment utilisée à la plus récente.
+     */
+    private final LinkedHashMap<Key, Location> index = new LinkedHashMap<Key, Location>(16, 0.75f, true);
+    private long liveSize = 0;
+    /**
+     * Les compilations en cours, pour que deux demandes identiques simultanées ne compilent qu'une fois.
+     */
+    private final ConcurrentHashMap<Key, FutureTask<Entry>> inFlight = new ConcurrentHashMap<Key, FutureTask<Entry>>();
+
+    private RandomAccessFile packFile;
+    private FileChannel channel;
+    private FileLock lock;
+    private MappedByteBuffer mapped;
+
+    /**
+     * Donne le cache partagé, configuré par les propriétés système.
+     *
+     * @return Le cache de compilation
+     */
+    public static synchronized CompileCache getInstance() {
+        if (instance == null) {
+            File directory = null;
+            try {
+                String path = System.getProperty("javascool.cache.dir");
+                directory = path == null ? FileManager.getPrivateDir("cache") : new File(path);
+            } catch (IOException e) {
+                Logger.getAnonymousLogger().log(Level.WARNING,
+                        "Le cache de compilation n'a pas de dossier sûr, il reste en mémoire", e);
+            }
+            instance = new CompileCache(directory,
+                    Long.getLong("javascool.cache.disk", 64L * 1024 * 1024),
+                    Long.getLong("javascool.cache.heap", 16L * 1024 * 1024));
+        }
+        return instance;
+    }
+
+    /**
+     * Crée un cache de compilation. Si le fichier pack ne peut pas être ouvert (dossier en lecture seule, fichier
+     * utilisé par une autre application ...), le cache fonctionne uniquement en mémoire.
+     *
+     * @param directory  Le dossier où est rangé le fichier pack, ou null pour un cache uniquement en mémoire
+     * @param diskBudget La taille maximale du fichier pack en octets
+     * @param heapBudget La taille maximale des compilations gardées en mémoire en octets
+     */
+    public CompileCache(File directory, long diskBudget, long heapBudget) {
+        this.diskBudget = diskBudget;
+        this.heapBudget = heapBudget;
+        if (directory != null && diskBudget > 0) {
+            try {
+                open(directory);
+                this.directory = directory;
+            } catch (IOException e) {
+                Logger.getAnonymousLogger().log(Level.WARNING,
+                        "Le cache de compilation ne peut pas utiliser " + directory + ", il reste en mémoire", e);
+                close();
+            }
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions du cache
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Calcule la clé d'une compilation.
+     *
+     * @param jvsCode     Le code Jvs, il est normalisé (fins de lignes, espaces en fin de ligne) avant le calcul
+     * @param progletId   L'identifiant de la proglet, ou null pour la proglet native
+     * @param options     Les options du compilateur, qui changent le bytecode produit
+     * @param translators Les classes des traducteurs : leur nom et leur bytecode (ainsi que celui de leurs parents)
+     *                    entrent dans la clé, qui change donc avec les traducteurs
+     * @return La clé de la compilation
+     */
+    public static Key key(String jvsCode, String progletId, String options, Class<?>... translators) {
+        MessageDigest digest = newDigest();
+        digest.update(normalize(jvsCode).getBytes(UTF8));
+        digest.update((byte) 0);
+        digest.update(String.valueOf(progletId).getBytes(UTF8));
+        digest.update((byte) 0);
+        digest.update(String.valueOf(options).getBytes(UTF8));
+        digest.update((byte) 0);
+        digest.update(getEnvironment().getBytes(UTF8));
+        for (Class<?> translator : translators) {
+            digest.update((byte) 0);
+            digest.update(translatorVersion(translator).getBytes(UTF8));
+        }
+        return new Key(digest.digest());
+    }
+
+    /**
+     * Cherche une compilation dans le cache.
+     *
+     * @param key La clé de la compilation
+     * @return La compilation ou null si elle n'est pas dans le cache
+     */
+    public synchronized Entry get(Key key) {
+        Entry entry = heap.get(key);
+        if (entry != null)
+            return entry;
+        Location location = index.get(key);
+        if (location == null)
+            return null;
+        try {
+            entry = read(location);
+        } catch (Exception e) {
+            Logger.getAnonymousLogger().log(Level.WARNING, "Compilation illisible dans le cache de compilation", e);
+            index.remove(key);
+            liveSize -= location.length;
+            return null;
+        }
+        putInHeap(key, entry);
+        return entry;
+    }
+
+    /**
+     * Cherche une compilation dans le cache et la lance si elle n'y est pas. Si la même compilation est demandée en
+     * même temps par plusieurs threads, elle n'est faite qu'une fois.
+     *
+     * @param key         La clé de la compilation
+     * @param compilation La compilation à lancer si elle n'est pas dans le cache
+     * @return La compilation
+     * @throws IllegalStateException Si la compilation a échoué sur une exception
+     */
+    public Entry get(Key key, Callable<Entry> compilation) {
+        Entry entry = get(key);
+        if (entry != null)
+            return entry;
+        FutureTask<Entry> task = new FutureTask<Entry>(compilation);
+        FutureTask<Entry> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+                Entry result = task.get();
+                if (result != null)
+                    put(key, result);
+            } catch (Exception e) {
+                // L'erreur est rapportée ci-dessous
+            } finally {
+                inFlight.remove(key);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Compilation interrompue", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Erreur lors de la compilation : " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Ajoute une compilation au cache.
+     *
+     * @param key   La clé de la compilation
+     * @param entry La compilation
+     */
+    public synchronized void put(Key key, Entry entry) {
+        if (heap.containsKey(key) || index.containsKey(key))
+            return;
+        putInHeap(key, entry);
+        if (channel == null)
+            return;
+        try {
+            byte[] record = encode(key, entry);
+            if (record.length > diskBudget)
+                return;
+            long offset = channel.size();
+            channel.write(ByteBuffer.wrap(record), offset);
+            index.put(key, new Location(offset, record.length));
+            liveSize += record.length;
+            if (offset + record.length > diskBudget)
+                compact();
+        } catch (IOException e) {
+            Logger.getAnonymousLogger().log(Level.WARNING, "Impossible d'écrire dans le cache de compilation", e);
+        }
+    }
+
+    /**
+     * Vide complètement le cache, en mémoire et sur le disque.
+     */
+    public synchronized void clear() {
+        heap.clear();
+        heapSize = 0;
+        index.clear();
+        liveSize = 0;
+        if (channel != null) {
+            try {
+                compact();
+            } catch (IOException e) {
+                Logger.getAnonymousLogger().log(Level.WARNING, "Impossible de vider le cache de compilation", e);
+            }
+        }
+    }
+
+    /**
+     * Donne le nombre de compilations dans le cache.
+     *
+     * @return Le nombre de compilations en mémoire ou sur le disque
+     */
+    public synchronized int size() {
+        if (channel == null)
+            return heap.size();
+        int size = index.size();
+        for (Key key : heap.keySet()) {
+            if (!index.containsKey(key))
+                size++;
+        }
+        return size;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fichier pack
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Ouvre le fichier pack et reconstruit son index. Une fin de fichier incomplète (arrêt brutal pendant une
+     * écriture) est coupée.
+     */
+    private void open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Impossible de créer le dossier " + directory);
+        RandomAccessFile lockFile = new RandomAccessFile(new File(directory, "compile-cache.lock"), "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) { // Un autre cache de cette JVM utilise le même dossier
+            lockFile.close();
+            throw new IOException("Le cache est déjà utilisé dans cette application", e);
+        } catch (IOException e) {
+            lockFile.close();
+            throw e;
+        }
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("Le cache est utilisé par une autre application");
+        }
+        packFile = new RandomAccessFile(new File(directory, "compile-cache.pack"), "rw");
+        channel = packFile.getChannel();
+        if (channel.size() < MAGIC.length || !Arrays.equals(MAGIC, readBytes(0, MAGIC.length))) {
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(MAGIC), 0);
+        }
+        long offset = MAGIC.length;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(4 + KEY_LENGTH);
+        while (offset + header.capacity() <= size) {
+            // Appels par Buffer : compilé par un JDK 9 ou plus, ByteBuffer.flip() n'existerait pas en Java 7 et 8
+            ((Buffer) header).clear();
+            channel.read(header, offset);
+            ((Buffer) header).flip();
+            int length = header.getInt();
+            if (length < header.capacity() || offset + length > size)
+                break;
+            byte[] key = new byte[KEY_LENGTH];
+            header.get(key);
+            Location previous = index.put(new Key(key), new Location(offset, length));
+            if (previous != null)
+                liveSize -= previous.length;
+            liveSize += length;
+            offset += length;
+        }
+        if (offset < size)
+            channel.truncate(offset);
+        mapped = null;
+    }
+
+    /**
+     * Ferme le fichier pack.
+     */
+    private void close() {
+        try {
+            if (lock != null) {
+                lock.release();
+                lock.channel().close();
+            }
+            if (packFile != null)
+                packFile.close();
+        } catch (IOException e) {
+            Logger.getAnonymousLogger().log(Level.FINE, "Erreur à la fermeture du cache de compilation", e);
+        }
+        lock = null;
+        packFile = null;
+        channel = null;
+        mapped = null;
+    }
+
+    /**
+     * Oublie les compilations les moins récemment utilisées jusqu'à revenir aux trois quarts du budget disque, puis
+     * réécrit le fichier pack avec les seules compilations restantes.
+     */
+    private void compact() throws IOException {
+        try {
+            rewrite();
+        } catch (IOException e) { // Le fichier pack n'est plus fiable : on continue uniquement en mémoire
+            close();
+            index.clear();
+            liveSize = 0;
+            throw e;
+        }
+    }
+
+    private void rewrite() throws IOException {
+        for (Iterator<Location> it = index.values().iterator(); it.hasNext() && liveSize > diskBudget * 3 / 4; ) {
+            liveSize -= it.next().length;
+            it.remove();
+        }
+        File pack = new File(directory, "compile-cache.pack");
+        File tmp = new File(directory, "compile-cache.pack.tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        LinkedHashMap<Key, Location> moved = new LinkedHashMap<Key, Location>();
+        try {
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate(0);
+            outChannel.write(ByteBuffer.wrap(MAGIC), 0);
+            long offset = MAGIC.length;
+            for (Map.Entry<Key, Location> record : index.entrySet()) {
+                Location location = record.getValue();
+                outChannel.write(ByteBuffer.wrap(readBytes(location.offset, location.length)), offset);
+                moved.put(record.getKey(), new Location(offset, location.length));
+                offset += location.length;
+            }
+        } finally {
+            out.close();
+        }
+        packFile.close();
+        mapped = null;
+        Files.move(tmp.toPath(), pack.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        packFile = new RandomAccessFile(pack, "rw");
+        channel = packFile.getChannel();
+        index.clear();
+        index.putAll(moved);
+    }
+
+    /**
+     * Lit une zone du fichier pack au travers de la projection en mémoire. La projection est refaite lorsque le
+     * fichier a grandi.
+     */
+    private byte[] readBytes(long offset, int length) throws IOException {
+        if (mapped == null || offset + length > mapped.capacity())
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        byte[] bytes = new byte[length];
+        ByteBuffer view = ((ByteBuffer) mapped).duplicate();
+        ((Buffer) view).position((int) offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private Entry read(Location location) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(readBytes(location.offset, location.length));
+        ((Buffer) in).position(4 + KEY_LENGTH);
+        String className = readString(in);
+        int classCount = in.getInt();
+        Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < classCount; i++) {
+            String name = readString(in);
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            classes.put(name, bytes);
+        }
+        int diagnosticCount = in.getInt();
+        List<JVSDiagnostic> diagnostics = new ArrayList<JVSDiagnostic>(diagnosticCount);
+        for (int i = 0; i < diagnosticCount; i++) {
+            Diagnostic.Kind kind = Diagnostic.Kind.valueOf(readString(in));
+            String fileName = readString(in);
+            long line = in.getLong(), column = in.getLong(), start = in.getLong(), end = in.getLong();
+            diagnostics.add(new JVSDiagnostic(kind, fileName, line, column, start, end, readString(in),
+                    readString(in)));
+        }
+        return new Entry(className, classes, diagnostics);
+    }
+
+    private static byte[] encode(Key key, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // Longueur de l'enregistrement, écrite à la fin
+        out.write(key.digest);
+        writeString(out, entry.getClassName());
+        out.writeInt(entry.getClasses().size());
+        for (Map.Entry<String, byte[]> clazz : entry.getClasses().entrySet()) {
+            writeString(out, clazz.getKey());
+            out.writeInt(clazz.getValue().length);
+            out.write(clazz.getValue());
+        }
+        out.writeInt(entry.getDiagnostics().size());
+        for (JVSDiagnostic diagnostic : entry.getDiagnostics()) {
+            writeString(out, diagnostic.getKind().name());
+            writeString(out, diagnostic.getFileName());
+            out.writeLong(diagnostic.getLineNumber());
+            out.writeLong(diagnostic.getColumnNumber());
+            out.writeLong(diagnostic.getStartPosition());
+            out.writeLong(diagnostic.getEndPosition());
+            writeString(out, diagnostic.getCode());
+            writeString(out, diagnostic.getMessage(null));
+        }
+        out.close();
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(record.length);
+        return record;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = string.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void putInHeap(Key key, Entry entry) {
+        if (entry.size > heapBudget)
+            return;
+        if (heap.put(key, entry) == null)
+            heapSize += entry.size;
+        for (Iterator<Entry> it = heap.values().iterator(); it.hasNext() && heapSize > heapBudget; ) {
+            heapSize -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Normalise un code : fins de lignes Unix, espaces insécables remplacés et espaces en fin de ligne retirés. Les
+     * numéros de lignes ne changent pas.
+     */
+    private static String normalize(String code) {
+        String text = code.replace("\r\n", "\n").replace('\r', '\n').replace((char) 160, ' ');
+        StringBuilder normalized = new StringBuilder(text.length());
+        int end = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                normalized.setLength(end);
+                normalized.append('\n');
+                end = normalized.length();
+            } else {
+                normalized.append(c);
+                if (!Character.isWhitespace(c))
+                    end = normalized.length();
+            }
+        }
+        normalized.setLength(end);
+        return normalized.toString();
+    }
+
+    /**
+     * Calcule l'empreinte de l'environnement des compilations : la version de Java, le contenu des Jars du classpath
+     * (les dossiers par leur chemin) et le code de {@link Translator}, utilisé par tous les traducteurs. Le cache peut
+     * ainsi être partagé entre versions de Java's Cool ou de Java sans rendre des classes compilées ailleurs.
+     */
+    private static synchronized String getEnvironment() {
+        if (environment == null) {
+            MessageDigest digest = newDigest();
+            for (String property : new String[]{"java.version", "java.vendor", "java.class.path"}) {
+                digest.update(String.valueOf(System.getProperty(property)).getBytes(UTF8));
+                digest.update((byte) 0);
+            }
+            for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+                File file = new File(entry);
+                if (!file.isFile())
+                    continue;
+                try {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        byte[] buffer = new byte[65536];
+                        for (int n; (n = in.read(buffer)) != -1; )
+                            digest.update(buffer, 0, n);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    Logger.getAnonymousLogger().log(Level.FINE, "Impossible de lire " + file, e);
+                }
+                digest.update((byte) 0);
+            }
+            environment = translatorVersion(Translator.class) + "@" + new Key(digest.digest());
+        }
+        return environment;
+    }
+
+    /**
+     * Calcule la version d'un traducteur : son nom et l'empreinte du bytecode de sa classe et de ses parents.
+     */
+    private static String translatorVersion(Class<?> translator) {
+        if (translator == null)
+            return "";
+        String version = translatorVersions.get(translator);
+        if (version == null) {
+            MessageDigest digest = newDigest();
+            for (Class<?> c = translator; c != null && c != Object.class; c = c.getSuperclass()) {
+                digest.update(c.getName().getBytes(UTF8));
+                InputStream in = c.getResourceAsStream(c.getName().replaceFirst("^.*\\.", "") + ".class");
+                if (in == null)
+                    continue;
+                try {
+                    try {
+                        byte[] buffer = new byte[8192];
+                        for (int n; (n = in.read(buffer)) != -1; )
+                            digest.update(buffer, 0, n);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    Logger.getAnonymousLogger().log(Level.FINE, "Impossible de lire la classe " + c, e);
+                }
+            }
+            version = translator.getName() + "@" + new Key(digest.digest());
+            translatorVersions.put(translator, version);
+        }
+        return version;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 n'est pas disponible", e);
+        }
+    }
+
+    /**
+     * La position d'une compilation dans le fichier pack.
+     */
+    private static class Location {
+        final long offset;
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * La clé d'une compilation : une empreinte SHA-256.
+     *
+     * @see #key(String, String, String, Class[])
+     */
+    public static final class Key {
+        private final byte[] digest;
+
+        private Key(byte[] digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(digest);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        }
+    }
+
+    /**
+     * Une compilation gardée dans le cache : le bytecode des classes produites et les erreurs.
+     */
+    public static final class Entry {
+        private final String className;
+        private final Map<String, byte[]> classes;
+        private final List<JVSDiagnostic> diagnostics;
+        /**
+         * Taille approximative en mémoire.
+         */
+        private final long size;
+
+        /**
+         * Crée une compilation.
+         *
+         * @param className   Le nom complet de la classe principale
+         * @param classes     Le bytecode des classes indexé par leur nom complet
+         * @param diagnostics Les erreurs de compilation
+         */
+        public Entry(String className, Map<String, byte[]> classes, List<? extends JVSDiagnostic> diagnostics) {
+            this.className = className;
+            this.classes = Collections.unmodifiableMap(new LinkedHashMap<String, byte[]>(classes));
+            this.diagnostics = Collections.unmodifiableList(new ArrayList<JVSDiagnostic>(diagnostics));
+            long size = 64;
+            for (Map.Entry<String, byte[]> clazz : classes.entrySet())
+                size += 64 + clazz.getKey().length() * 2 + clazz.getValue().length;
+            for (JVSDiagnostic diagnostic : diagnostics)
+                size += 128 + 2 * String.valueOf(diagnostic.getMessage(null)).length();
+            this.size = size;
+        }
+
+        /**
+         * Donne le nom complet de la classe principale.
+         */
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * Donne le bytecode des classes, indexé par leur nom complet.
+         */
+        public Map<String, byte[]> getClasses() {
+            return classes;
+        }
+
+        /**
+         * Donne les erreurs de la compilation.
+         */
+        public List<JVSDiagnostic> getDiagnostics() {
+            return diagnostics;
+        }
+
+        /**
+         * Indique si la compilation a échoué.
+         *
+         * @return vrai s'il y a au moins une erreur
+         */
+        public boolean hasErrors() {
+            for (JVSDiagnostic diagnostic : diagnostics) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                    return true;
+            }
+            return false;
+        }
+    }
+}
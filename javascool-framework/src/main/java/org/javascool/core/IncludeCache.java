@@ -0,0 +1,384 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.core;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache des fichiers inclus par la directive <tt>include</tt> des codes Jvs. Les bibliothèques d'un cours sont
+ * incluses par toutes les copies des élèves : on ne les cherche, ne les lit et ne les traduit qu'une fois pour tout le
+ * processus.
+ * <p>
+ * Le cache retient :
+ * <ul>
+ * <li>où chaque nom d'include a été trouvé ({@link #resolve(String, File[], String)}) ;</li>
+ * <li>la traduction de chaque fichier inclus ({@link #get(File, String, Expander)}).</li>
+ * </ul>
+ * Chaque résultat retient les fichiers et répertoires dont il dépend, y compris ceux des includes imbriqués : c'est le
+ * graphe des dépendances. Un résultat est valable tant que la date et la taille de ses dépendances n'ont pas changé.
+ * Si elles ont changé mais que le contenu du fichier est le même (empreinte SHA-256), le résultat est gardé.
+ * </p>
+ * <p>
+ * Le cache peut être utilisé par plusieurs traductions en même temps.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class IncludeCache {
+    /**
+     * Le nombre de résultats gardés dans chacune des deux tables, les moins récemment utilisés sont oubliés.
+     */
+    private static final int MAX_ENTRIES = 512;
+
+    private static IncludeCache instance;
+
+    /**
+     * Les traductions en cours dans ce thread, pour leur ajouter les dépendances de leurs includes.
+     */
+    private static final ThreadLocal<List<Frame>> expanding = new ThreadLocal<List<Frame>>() {
+        @Override
+        protected List<Frame> initialValue() {
+            return new ArrayList<Frame>();
+        }
+    };
+
+    /**
+     * Les fichiers trouvés pour chaque nom d'include (null si aucun).
+     */
+    private final Map<String, Node> resolutions = lru();
+    /**
+     * Les traductions de chaque fichier inclus.
+     */
+    private final Map<String, Node> expansions = lru();
+
+    /**
+     * Donne le cache partagé par tout le processus.
+     */
+    public static synchronized IncludeCache getInstance() {
+        if (instance == null) {
+            instance = new IncludeCache();
+        }
+        return instance;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions du cache
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Cherche le fichier à inclure pour un nom. Le fichier est cherché dans chaque répertoire, avec puis sans
+     * extension, puis par rapport au répertoire courant. Le résultat est gardé tant qu'aucun des répertoires parcourus
+     * n'a changé.
+     *
+     * @param name        Le nom de l'include
+     * @param directories Les répertoires où chercher, dans l'ordre (peut être null)
+     * @param extension   L'extension ajoutée au nom si le fichier n'existe pas sans (peut être null)
+     * @return Le fichier trouvé
+     * @throws FileNotFoundException Si aucun fichier ne correspond
+     */
+    public File resolve(String name, File[] directories, String extension) throws FileNotFoundException {
+        String key = name + "\n" + extension + "\n" + Arrays.toString(directories);
+        Node node = lookup(resolutions, key);
+        if (node == null) {
+            List<File> candidates = new ArrayList<File>();
+            if (directories != null) {
+                for (File directory : directories) {
+                    candidates.add(new File(directory, name));
+                    if (extension != null) {
+                        candidates.add(new File(directory, name + "." + extension));
+                    }
+                }
+            }
+            candidates.add(new File(name));
+            if (extension != null) {
+                candidates.add(new File(name + "." + extension));
+            }
+            Map<File, Stamp> dependencies = new LinkedHashMap<File, Stamp>();
+            File found = null;
+            for (File candidate : candidates) {
+                // Un fichier ne peut apparaître ou disparaître sans changer la date de son répertoire
+                File directory = candidate.getAbsoluteFile().getParentFile();
+                if (directory != null && !dependencies.containsKey(directory)) {
+                    dependencies.put(directory, new Stamp(directory));
+                }
+                if (candidate.exists()) {
+                    found = candidate.getAbsoluteFile();
+                    break;
+                }
+            }
+            node = new Node(found, dependencies);
+            store(resolutions, key, node);
+        }
+        record(node.dependencies);
+        if (node.value == null) {
+            throw new FileNotFoundException("Impossible de trouver un fichier pour l'include : " + name);
+        }
+        return (File) node.value;
+    }
+
+    /**
+     * Donne la traduction d'un fichier inclus. Si elle n'est pas dans le cache ou si le fichier ou un de ses propres
+     * includes a changé, le fichier est lu et traduit.
+     * <p>
+     * Les includes cherchés et traduits par le traducteur pendant cette traduction deviennent des dépendances du
+     * fichier. Un fichier qui s'inclut lui-même, directement ou non, est une erreur.
+     * </p>
+     *
+     * @param file     Le fichier inclus
+     * @param flavour  Ce qui distingue les traductions d'un même fichier (ex. la classe du traducteur)
+     * @param expander Le traducteur, appelé sur le contenu du fichier lu avec l'encodage local
+     * @return La traduction du fichier
+     * @throws IOException           Si le fichier ne peut pas être lu
+     * @throws IllegalStateException Si le fichier s'inclut lui-même
+     * @throws Exception             Si le traducteur échoue, la traduction n'est alors pas gardée
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(File file, String flavour, Expander<T> expander) throws Exception {
+        file = file.getAbsoluteFile();
+        String key = file.getPath() + "\n" + flavour;
+        Node node = lookup(expansions, key);
+        if (node == null) {
+            List<Frame> stack = expanding.get();
+            for (Frame frame : stack) {
+                if (frame.file.equals(file)) {
+                    throw new IllegalStateException("Le fichier " + file + " s'inclut lui-même");
+                }
+            }
+            Stamp stamp = new Stamp(file);
+            byte[] content;
+            try {
+                content = Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                // Celui qui inclut ce fichier devra être retraduit quand il sera lisible
+                record(Collections.singletonMap(file, stamp));
+                throw e;
+            }
+            Frame frame = new Frame(file);
+            frame.dependencies.put(file, stamp.withDigest(content));
+            stack.add(frame);
+            T value;
+            try {
+                value = expander.expand(new String(content, Charset.defaultCharset()));
+            } finally {
+                stack.remove(stack.size() - 1);
+            }
+            node = new Node(value, frame.dependencies);
+            store(expansions, key, node);
+        }
+        record(node.dependencies);
+        return (T) node.value;
+    }
+
+    /**
+     * Oublie tout ce qui dépend d'un fichier ou d'un répertoire, par exemple quand l'éditeur vient de l'enregistrer.
+     *
+     * @param file Le fichier ou répertoire modifié
+     */
+    public void invalidate(File file) {
+        File key = file.getAbsoluteFile();
+        for (Map<String, Node> table : Arrays.asList(resolutions, expansions)) {
+            synchronized (table) {
+                for (Iterator<Node> it = table.values().iterator(); it.hasNext(); ) {
+                    if (it.next().dependencies.containsKey(key)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Vide le cache.
+     */
+    public void clear() {
+        synchronized (resolutions) {
+            resolutions.clear();
+        }
+        synchronized (expansions) {
+            expansions.clear();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static Map<String, Node> lru() {
+        return new LinkedHashMap<String, Node>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Cherche un résultat encore valable.
+     */
+    private static Node lookup(Map<String, Node> table, String key) {
+        Node node;
+        synchronized (table) {
+            node = table.get(key);
+        }
+        if (node == null || node.isUpToDate()) {
+            return node;
+        }
+        synchronized (table) {
+            if (table.get(key) == node) {
+                table.remove(key);
+            }
+        }
+        return null;
+    }
+
+    private static void store(Map<String, Node> table, String key, Node node) {
+        synchronized (table) {
+            table.put(key, node);
+        }
+    }
+
+    /**
+     * Ajoute des dépendances à la traduction en cours dans ce thread.
+     */
+    private static void record(Map<File, Stamp> dependencies) {
+        List<Frame> stack = expanding.get();
+        if (!stack.isEmpty()) {
+            stack.get(stack.size() - 1).dependencies.putAll(dependencies);
+        }
+    }
+
+    private static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 n'est pas disponible", e);
+        }
+    }
+
+    /**
+     * Interface pour traduire le contenu d'un fichier inclus.
+     *
+     * @param <T> Le type de la traduction
+     */
+    public interface Expander<T> {
+        /**
+         * Traduit le contenu d'un fichier inclus.
+         *
+         * @param content Le contenu du fichier
+         * @return La traduction, gardée dans le cache : elle ne doit pas être modifiée ensuite
+         * @throws Exception Si la traduction échoue
+         */
+        T expand(String content) throws Exception;
+    }
+
+    /**
+     * Un résultat en cache et ses dépendances.
+     */
+    private static class Node {
+        final Object value;
+        final Map<File, Stamp> dependencies;
+
+        Node(Object value, Map<File, Stamp> dependencies) {
+            this.value = value;
+            this.dependencies = new ConcurrentHashMap<File, Stamp>(dependencies);
+        }
+
+        boolean isUpToDate() {
+            for (Map.Entry<File, Stamp> dependency : dependencies.entrySet()) {
+                Stamp stamp = dependency.getValue().check(dependency.getKey());
+                if (stamp == null) {
+                    return false;
+                }
+                if (stamp != dependency.getValue()) { // Même contenu, nouvelle date
+                    dependency.setValue(stamp);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Une traduction en cours.
+     */
+    private static class Frame {
+        final File file;
+        final Map<File, Stamp> dependencies = new LinkedHashMap<File, Stamp>();
+
+        Frame(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * L'état d'un fichier ou d'un répertoire : sa date, sa taille et, pour un fichier lu, l'empreinte de son contenu.
+     */
+    private static class Stamp {
+        final long modified;
+        final long length;
+        final byte[] digest;
+
+        Stamp(File file) {
+            this(file.lastModified(), file.isFile() ? file.length() : 0, null);
+        }
+
+        private Stamp(long modified, long length, byte[] digest) {
+            this.modified = modified;
+            this.length = length;
+            this.digest = digest;
+        }
+
+        Stamp withDigest(byte[] content) {
+            return new Stamp(modified, length, digest(content));
+        }
+
+        /**
+         * Vérifie que le fichier n'a pas changé.
+         *
+         * @return Cet état si rien n'a changé, un nouvel état si seule la date a changé, null si le fichier a changé
+         */
+        Stamp check(File file) {
+            Stamp current = new Stamp(file);
+            if (current.modified == modified && current.length == length) {
+                return this;
+            }
+            if (digest == null || current.length != length) {
+                return null;
+            }
+            try {
+                byte[] content = Files.readAllBytes(file.toPath());
+                return Arrays.equals(digest, digest(content)) ? current.withDigest(content) : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
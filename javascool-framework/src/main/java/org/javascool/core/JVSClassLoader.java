@@ -15,30 +15,79 @@
 
 package org.javascool.core;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Chargeur de Classe pour Java's Cool. Il permet de charger une classe qui n'&eacute;tait pas dans le classpath
- * d'origine.
+ * d'origine. Les classes sont lues soit dans un dossier, soit directement depuis leur bytecode en mémoire.
+ * <p>
+ * Une classe est d'abord demandée au chargeur parent (les classes du JDK et du framework), puis cherchée chez nous.
+ * Les noms que le parent ne connaît pas sont retenus (pour tout le processus avec le parent par défaut) : la classe
+ * d'un élève n'est cherchée qu'une fois dans le classpath. Le chargeur peut charger plusieurs classes en même temps.
+ * </p>
+ * <p>
+ * Les chargeurs encore en mémoire et leurs classes sont comptés ({@link #getLiveLoaders()},
+ * {@link #getLiveClasses()}) : on peut ainsi vérifier que les classes des programmes terminés sont bien déchargées.
+ * </p>
  *
  * @author Philippe VIENNE (PhilippeGeek@gmail.com)
  * @version 5.0
  */
 public class JVSClassLoader extends ClassLoader {
+    /**
+     * Le nombre de noms inconnus du parent retenus, au-delà on repart de zéro.
+     */
+    private static final int MAX_MISSING = 4096;
+    /**
+     * Les noms de classes que le chargeur parent n'a pas trouvés. Le parent est le même pour tous les chargeurs et son
+     * classpath ne change pas : la liste est partagée.
+     */
+    private static final Set<String> missingFromParent =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Les chargeurs créés et pas encore ramassés par le ramasse-miettes.
+     */
+    private static final Set<Tracker> live = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    private static final ReferenceQueue<JVSClassLoader> collected = new ReferenceQueue<JVSClassLoader>();
+
+    static {
+        registerAsParallelCapable();
+    }
+
     /**
      * Le lieu où travail le ClassLoader
      */
     private File location = null;
     /**
-     * Petit cache pour les classes déjà chargés.
+     * Le bytecode des classes compilées en mémoire, indexé par le nom complet des classes.
+     */
+    private Map<String, byte[]> classBytes = null;
+    /**
+     * Les noms de classes qui ne sont pas chez nous.
+     */
+    private final Set<String> missing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * Les noms de classes que le chargeur parent n'a pas trouvés, lorsque ce n'est pas le parent par défaut.
+     */
+    private final Set<String> parentMisses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * Les classes définies par ce chargeur.
      */
-    private final Hashtable<String, Class<?>> classes = new Hashtable<String, Class<?>>();
+    private final List<Class<?>> defined = Collections.synchronizedList(new ArrayList<Class<?>>());
+    private final Tracker tracker = track(this);
 
     /**
      * Construit un chargeur de classe. Il prend comme ClassLoader parent son propre ClassLoader. Il vérifie aussi
@@ -47,7 +96,18 @@ public class JVSClassLoader extends ClassLoader {
      * @param location Le dossier où sont stocké les .class
      */
     public JVSClassLoader(File location) {
-        super(JVSClassLoader.class.getClassLoader());
+        this(location, JVSClassLoader.class.getClassLoader());
+    }
+
+    /**
+     * Construit un chargeur de classe sur un dossier avec un chargeur parent donné, par exemple celui du Jar d'une
+     * proglet.
+     *
+     * @param location Le dossier où sont stocké les .class
+     * @param parent   Le chargeur parent
+     */
+    public JVSClassLoader(File location, ClassLoader parent) {
+        super(parent);
         this.location = location;
         if (location.isFile())
             throw new IllegalArgumentException("Le chargeur de classe ne peut pas fonctionner dans un fichier," +
@@ -57,24 +117,64 @@ public class JVSClassLoader extends ClassLoader {
     }
 
     /**
-     * Charge une classe. Cette fonction prend soit la classe dans le cache local soit va tenter de la charger avec
-     * {@link #findClass(String)}.
+     * Construit un chargeur de classe sur des classes compilées en mémoire. Aucun fichier n'est lu : les classes sont
+     * définies à partir de leur bytecode.
+     *
+     * @param classBytes Le bytecode des classes indexé par leur nom complet (ex. org.javascool.Main)
+     */
+    public JVSClassLoader(Map<String, byte[]> classBytes) {
+        this(classBytes, JVSClassLoader.class.getClassLoader());
+    }
+
+    /**
+     * Construit un chargeur de classe sur des classes compilées en mémoire avec un chargeur parent donné.
+     *
+     * @param classBytes Le bytecode des classes indexé par leur nom complet (ex. org.javascool.Main)
+     * @param parent     Le chargeur parent
+     */
+    public JVSClassLoader(Map<String, byte[]> classBytes, ClassLoader parent) {
+        super(parent);
+        if (classBytes == null)
+            throw new IllegalArgumentException("Le chargeur de classe a besoin du bytecode des classes");
+        this.classBytes = classBytes;
+    }
+
+    /**
+     * Charge une classe : elle est prise parmi les classes déjà chargées, puis demandée au chargeur parent, puis
+     * cherchée avec {@link #findClass(String)}.
      *
      * @param className Le nom de la classe
+     * @param resolve   Vrai pour lier la classe
      * @return L'objet représentant une classe Java
      * @throws ClassNotFoundException Voir {@link #findClass(String)}
-     * @see #findClass(String)
      */
     @Override
-    public Class<?> loadClass(String className) throws ClassNotFoundException {
-        if (classes.get(className) != null) // Si on a déjà chargé cette classe, alors elle est dans le cache
-            return classes.get(className);
-        else // Sinon on tente de la charger
-            return findClass(className);
+    protected Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(className)) {
+            Class<?> result = findLoadedClass(className);
+            // Seul le parent par défaut partage sa liste de noms inconnus
+            Set<String> missingFromParent = getParent() == JVSClassLoader.class.getClassLoader() ?
+                    JVSClassLoader.missingFromParent : parentMisses;
+            if (result == null && !missingFromParent.contains(className)) {
+                try {
+                    ClassLoader parent = getParent();
+                    result = parent == null ? findSystemClass(className) : parent.loadClass(className);
+                } catch (ClassNotFoundException e) {
+                    if (missingFromParent.size() >= MAX_MISSING)
+                        missingFromParent.clear();
+                    missingFromParent.add(className);
+                }
+            }
+            if (result == null)
+                result = findClass(className);
+            if (resolve)
+                resolveClass(result);
+            return result;
+        }
     }
 
     /**
-     * Cherche une classe dans le classpath actuel et dans le répertoire fournit au classloader
+     * Cherche une classe dans le répertoire ou parmi le bytecode fournit au classloader.
      *
      * @param className La classe à charger
      * @return L'objet représentant une classe en Java
@@ -82,73 +182,103 @@ public class JVSClassLoader extends ClassLoader {
      */
     @Override
     public Class<?> findClass(String className) throws ClassNotFoundException {
-        byte classByte[];
-        Class<?> result;
-
-        result = classes.get(className); // On vérifie qu'elle n'est pas dans le cache
-        if (result != null) {
-            return result;
+        if (missing.contains(className))
+            throw new ClassNotFoundException(className);
+        byte[] classByte;
+        if (classBytes != null) { // On regarde dans les classes en mémoire
+            classByte = classBytes.get(className);
+            if (classByte == null) {
+                missing.add(className);
+                throw new ClassNotFoundException("La classe " + className + " n'a pas été compilée");
+            }
+        } else { // On regarde après si elle n'est pas chez nous.
+            File clazz = searchClassInto(location, className);
+            if (clazz == null) {
+                missing.add(className);
+                throw new ClassNotFoundException("Le fichier de la classe " + className + " n'existe pas");
+            }
+            try {
+                classByte = Files.readAllBytes(clazz.toPath());
+            } catch (IOException e) {
+                throw new ClassNotFoundException(e.getMessage(), e);
+            }
         }
+        Class<?> result = defineClass(className, classByte, 0, classByte.length, null);
+        defined.add(result);
+        tracker.classes.incrementAndGet();
+        return result;
+    }
 
-        try { // On cherche si c'est une classe système
-            return findSystemClass(className);
-        } catch (Exception e) {
-            Logger.getAnonymousLogger().log(Level.OFF, className + " n'est pas une classe système");
+    /**
+     * Donne les classes définies par ce chargeur (et non celles demandées au parent).
+     *
+     * @return Une copie de la liste des classes, dans l'ordre de leur chargement
+     */
+    public List<Class<?>> getDefinedClasses() {
+        synchronized (defined) {
+            return new ArrayList<Class<?>>(defined);
         }
+    }
 
-        try { // Ou qu'elle est dans le chargeur parent
-            return JVSClassLoader.class.getClassLoader().loadClass(className);
-        } catch (Exception e) {
-            Logger.getAnonymousLogger().log(Level.OFF, className + " n'est pas une classe du chargeur parent");
-        }
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Compteurs
+    //////////////////////////////////////////////////////////////////////////////////////////////////
 
-        try { // On regarde après si elle n'est pas chez nous.
-            FileInputStream in = new FileInputStream(searchClassInto(location, className));
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-            int nextValue = in.read();
-            while (-1 != nextValue) {
-                byteStream.write(nextValue);
-                nextValue = in.read();
-            }
-            in.close();
-            classByte = byteStream.toByteArray();
-            result = defineClass(className, classByte, 0, classByte.length, null);
-            classes.put(className, result);
-            return result;
-        } catch (Exception e) {
-            throw new ClassNotFoundException(e.getMessage(), e);
-        }
-        //
+    /**
+     * Donne le nombre de chargeurs pas encore ramassés par le ramasse-miettes.
+     */
+    public static int getLiveLoaders() {
+        expunge();
+        return live.size();
     }
 
     /**
-     * Décompose un nom de classe vers le chemin de la classe. Permet de passer de "org.javascool.compiler.Main" à
-     * ["org","javascool","compiler","Main.class"] qui une représentation du chemin de la classe sous la forme d'un
-     * tableau de chaines.
-     *
-     * @param className Le nom de la classe au format Java
-     * @return Le tableau représentant le chemin.
-     */
-    private static String[] decomposePathForAClass(String className) {
-        ArrayList<String> path = new ArrayList<String>();
-        for (String s : className.split("\\.")) {
-            if (className.endsWith(s))
-                path.add(s + ".class");
-            else
-                path.add(s);
+     * Donne le nombre de classes définies par les chargeurs pas encore ramassés.
+     */
+    public static int getLiveClasses() {
+        expunge();
+        int count = 0;
+        for (Tracker tracker : live)
+            count += tracker.classes.get();
+        return count;
+    }
+
+    private static Tracker track(JVSClassLoader loader) {
+        expunge();
+        Tracker tracker = new Tracker(loader);
+        live.add(tracker);
+        return tracker;
+    }
+
+    /**
+     * Oublie les chargeurs ramassés.
+     */
+    private static void expunge() {
+        Reference<? extends JVSClassLoader> reference;
+        while ((reference = collected.poll()) != null)
+            live.remove(reference);
+    }
+
+    /**
+     * Suit un chargeur sans l'empêcher d'être ramassé.
+     */
+    private static class Tracker extends PhantomReference<JVSClassLoader> {
+        final AtomicInteger classes = new AtomicInteger();
+
+        Tracker(JVSClassLoader loader) {
+            super(loader, collected);
         }
-        return path.toArray(new String[path.size()]);
     }
 
-    private File searchClassInto(final File location, final String clazz) {
-        final String[] decomposedPath = decomposePathForAClass(clazz);
+    /**
+     * Cherche le fichier d'une classe : "org.javascool.Main.class" ou "org/javascool/Main.class" dans le dossier.
+     *
+     * @return Le fichier ou null s'il n'existe pas
+     */
+    private static File searchClassInto(final File location, final String clazz) {
         File classFile = new File(location, clazz + ".class");
-        if (classFile.exists()) return classFile;
-        classFile = classFile.getParentFile();
-        for (String element : decomposedPath) {
-            classFile = new File(classFile, element);
-        }
-        classFile = new File(classFile.getParentFile(), decomposedPath[decomposedPath.length - 1] + ".class");
-        return classFile;
+        if (classFile.isFile()) return classFile;
+        classFile = new File(location, clazz.replace('.', File.separatorChar) + ".class");
+        return classFile.isFile() ? classFile : null;
     }
 }
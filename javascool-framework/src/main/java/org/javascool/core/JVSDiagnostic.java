@@ -0,0 +1,117 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.core;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.util.Locale;
+
+/**
+ * Une erreur (ou un avertissement) de compilation. Elle ne dépend d'aucun fichier : seuls le nom du source, la
+ * position et le message sont conservés, ce qui permet de la garder dans le {@link CompileCache}.
+ *
+ * @since 5.0
+ */
+public class JVSDiagnostic implements Diagnostic<JavaFileObject> {
+    private final Kind kind;
+    private final String fileName;
+    private final long line;
+    private final long column;
+    private final long start;
+    private final long end;
+    private final String code;
+    private final String message;
+
+    /**
+     * Crée un diagnostic.
+     *
+     * @param kind     Le type de diagnostic (erreur, avertissement ...)
+     * @param fileName Le nom du source concerné (ex. org/javascool/Main.java)
+     * @param line     Le numéro de la ligne, à partir de 1
+     * @param column   Le numéro de la colonne, à partir de 1
+     * @param start    La position du début de l'erreur dans le source
+     * @param end      La position de la fin de l'erreur dans le source
+     * @param code     Le code de l'erreur donné par le compilateur
+     * @param message  Le message du compilateur
+     */
+    public JVSDiagnostic(Kind kind, String fileName, long line, long column, long start, long end, String code,
+                         String message) {
+        this.kind = kind;
+        this.fileName = fileName;
+        this.line = line;
+        this.column = column;
+        this.start = start;
+        this.end = end;
+        this.code = code;
+        this.message = message;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Les sources compilés sont en mémoire : il n'y a pas de fichier.
+     *
+     * @return null
+     * @see #getFileName()
+     */
+    public JavaFileObject getSource() {
+        return null;
+    }
+
+    /**
+     * Donne le nom du source où se trouve l'erreur.
+     *
+     * @return Le nom du source (ex. org/javascool/Main.java)
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getPosition() {
+        return start;
+    }
+
+    public long getStartPosition() {
+        return start;
+    }
+
+    public long getEndPosition() {
+        return end;
+    }
+
+    public long getLineNumber() {
+        return line;
+    }
+
+    public long getColumnNumber() {
+        return column;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getMessage(Locale locale) {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return fileName + ":" + line + ": " + message;
+    }
+}
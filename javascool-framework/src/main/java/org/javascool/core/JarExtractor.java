@@ -0,0 +1,257 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.javascool.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Extraction d'un jar en parallèle.
+ * <p>
+ * Le jar est projeté en mémoire et son répertoire central n'est lu qu'une fois. Les répertoires sont créés d'abord,
+ * puis les entrées sont décompressées sur un pool partagé d'autant de threads que de processeurs, et écrites avec des
+ * canaux NIO. Une entrée déjà extraite, de même taille et de même CRC, n'est pas réécrite : extraire une deuxième
+ * fois le même jar ne fait que le relire.
+ * </p>
+ *
+ * @see JarManager#jarExtract(String, String, String)
+ * @since 5.0
+ */
+final class JarExtractor {
+    private static ExecutorService sharedPool;
+    /**
+     * Un décompresseur par thread du pool, remis à zéro à chaque entrée.
+     */
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private JarExtractor() {
+    }
+
+    private static synchronized ExecutorService getSharedPool() {
+        if (sharedPool == null)
+            sharedPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "javascool-jar-extractor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        return sharedPool;
+    }
+
+    /**
+     * Extrait les entrées d'un jar, sauf les répertoires et ce qui contient <tt>META-INF</tt>.
+     *
+     * @param jar      Le jar à extraire
+     * @param destDir  Le dossier où on déploie les fichiers
+     * @param jarEntry Le préfixe des entrées à extraire, vide pour tout extraire
+     * @return false si le jar ne peut pas être projeté en mémoire (plus de 2 Go, format ZIP64) : rien n'a alors été
+     *         extrait
+     * @throws IOException Si le jar est illisible, une entrée corrompue ou un fichier impossible à écrire
+     */
+    static boolean extract(File jar, File destDir, String jarEntry) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(jar, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                return false;
+            List<JarIndex.Item> items;
+            try {
+                items = JarIndex.read(jar, channel);
+            } catch (IllegalStateException e) {
+                return false;
+            }
+            List<JarIndex.Item> selected = new ArrayList<JarIndex.Item>();
+            for (JarIndex.Item item : items) {
+                if (item.name.startsWith(jarEntry) && !item.name.endsWith("/") && !item.name.contains("META-INF")) {
+                    if (item.size > Integer.MAX_VALUE)
+                        return false;
+                    selected.add(item);
+                }
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            // Les répertoires sont créés une fois, avant de lancer les extractions
+            Set<File> parents = new HashSet<File>();
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(selected.size());
+            ExecutorService pool = getSharedPool();
+            for (JarIndex.Item item : selected) {
+                File dest = new File(destDir + File.separator + item.name);
+                if (parents.add(dest.getParentFile()))
+                    dest.getParentFile().mkdirs();
+                futures.add(pool.submit(new Extraction(jar, mapped, item, dest)));
+            }
+            // Toutes les extractions sont attendues, même après une erreur, avant de fermer le jar
+            Throwable failure = null;
+            boolean interrupted = false;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    for (Future<Void> other : futures)
+                        other.cancel(false);
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Extraction de " + jar + " interrompue");
+            }
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure != null)
+                throw new IOException(failure);
+            return true;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * L'extraction d'une entrée.
+     */
+    private static final class Extraction implements Callable<Void> {
+        private final File jar;
+        private final ByteBuffer mapped;
+        private final JarIndex.Item item;
+        private final File dest;
+
+        private Extraction(File jar, ByteBuffer mapped, JarIndex.Item item, File dest) {
+            this.jar = jar;
+            this.mapped = mapped;
+            this.item = item;
+            this.dest = dest;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            byte[] content = new byte[(int) item.size];
+            if (dest.isFile() && dest.length() == item.size && crc(readFile(content)) == item.crc)
+                return null;
+            // Chaque extraction a sa propre vue du jar : les positions ne sont pas partagées
+            ByteBuffer data = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            if (data.getInt((int) item.offset) != JarIndex.LOCAL_HEADER)
+                throw new ZipException("L'entrée " + item.name + " de " + jar + " est invalide");
+            int start = (int) item.offset + 30 + (data.getShort((int) item.offset + 26) & 0xFFFF)
+                    + (data.getShort((int) item.offset + 28) & 0xFFFF);
+            if (start + item.compressedSize > data.capacity())
+                throw new ZipException("L'entrée " + item.name + " de " + jar + " est tronquée");
+            // Par Buffer : ByteBuffer.position(int) n'existe qu'à partir de Java 9
+            ((Buffer) data).position(start);
+            ((Buffer) data).limit(start + (int) item.compressedSize);
+            if (item.method == JarIndex.STORED) {
+                if (item.compressedSize != item.size)
+                    throw new ZipException("L'entrée " + item.name + " de " + jar + " est invalide");
+                data.get(content);
+            } else if (item.method == JarIndex.DEFLATED) {
+                inflate(data, content);
+            } else {
+                throw new ZipException("L'entrée " + item.name + " de " + jar + " utilise une compression non gérée ("
+                        + item.method + ")");
+            }
+            if (crc(content) != item.crc)
+                throw new ZipException("Le CRC de l'entrée " + item.name + " de " + jar + " est faux");
+            FileChannel out = new FileOutputStream(dest).getChannel();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+            } finally {
+                out.close();
+            }
+            return null;
+        }
+
+        private void inflate(ByteBuffer data, byte[] content) throws IOException {
+            // L'octet de plus, à zéro, est demandé par zlib sans en-tête
+            byte[] input = new byte[data.remaining() + 1];
+            data.get(input, 0, input.length - 1);
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(input);
+            try {
+                int length = 0;
+                while (length < content.length && !inflater.finished()) {
+                    int count = inflater.inflate(content, length, content.length - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    length += count;
+                }
+                if (length != content.length)
+                    throw new ZipException("L'entrée " + item.name + " de " + jar + " est tronquée");
+            } catch (DataFormatException e) {
+                throw new ZipException("L'entrée " + item.name + " de " + jar + " est corrompue : " + e.getMessage());
+            }
+        }
+
+        /**
+         * Lit le fichier déjà extrait, de la taille de l'entrée.
+         */
+        private byte[] readFile(byte[] content) throws IOException {
+            InputStream in = new FileInputStream(dest);
+            try {
+                for (int length = 0, count; length < content.length; length += count) {
+                    if ((count = in.read(content, length, content.length - length)) < 0)
+                        break;
+                }
+            } finally {
+                in.close();
+            }
+            return content;
+        }
+
+        private static int crc(byte[] content) {
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, content.length);
+            return (int) crc.getValue();
+        }
+    }
+}
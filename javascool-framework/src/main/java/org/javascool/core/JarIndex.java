@@ -0,0 +1,158 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.javascool.core;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lecture du répertoire central d'un jar : le nom, la méthode de compression, le CRC, les tailles et la position de
+ * chaque entrée, sans lire les entrées elles-mêmes. Les jar ZIP64 et les entrées chiffrées ne sont pas gérés.
+ *
+ * @see JarMerger
+ * @see JarExtractor
+ * @since 5.0
+ */
+final class JarIndex {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_HEADER = 0x06054b50;
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private JarIndex() {
+    }
+
+    /**
+     * Lit le répertoire central d'un jar.
+     *
+     * @param source  Le jar, pour les messages d'erreur
+     * @param channel Le jar ouvert
+     * @return Les entrées, dans l'ordre du répertoire
+     * @throws IOException           Si le jar est illisible
+     * @throws IllegalStateException Si le jar est au format ZIP64 ou a une entrée chiffrée
+     */
+    static List<Item> read(File source, FileChannel channel) throws IOException {
+        long size = channel.size();
+        int tail = (int) Math.min(size, 22 + 65535);
+        ByteBuffer end = read(channel, size - tail, tail);
+        int position = -1;
+        for (int i = tail - 22; i >= 0 && position == -1; i--) {
+            if (end.getInt(i) == END_HEADER)
+                position = i;
+        }
+        if (position == -1)
+            throw new IOException(source + " n'est pas un jar");
+        int count = end.getShort(position + 10) & 0xFFFF;
+        long directorySize = end.getInt(position + 12) & 0xFFFFFFFFL;
+        long directoryOffset = end.getInt(position + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL)
+            throw new IllegalStateException("Le jar " + source + " est au format ZIP64, qui n'est pas géré");
+        ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+        List<Item> items = new ArrayList<Item>(count);
+        for (int i = 0, offset = 0; i < count; i++) {
+            if (directory.getInt(offset) != CENTRAL_HEADER)
+                throw new IOException("Le répertoire central de " + source + " est invalide");
+            int nameLength = directory.getShort(offset + 28) & 0xFFFF;
+            int extraLength = directory.getShort(offset + 30) & 0xFFFF;
+            int commentLength = directory.getShort(offset + 32) & 0xFFFF;
+            byte[] name = new byte[nameLength];
+            // Par Buffer : ByteBuffer.position(int) n'existe qu'à partir de Java 9
+            ((Buffer) directory).position(offset + 46);
+            directory.get(name);
+            Item item = new Item(new String(name, UTF8), directory.getShort(offset + 8) & 0xFFFF,
+                    directory.getShort(offset + 10) & 0xFFFF, directory.getInt(offset + 12),
+                    directory.getInt(offset + 16), directory.getInt(offset + 20) & 0xFFFFFFFFL,
+                    directory.getInt(offset + 24) & 0xFFFFFFFFL, directory.getInt(offset + 42) & 0xFFFFFFFFL);
+            if ((item.flags & 1) != 0)
+                throw new IllegalStateException("L'entrée " + item.name + " de " + source + " est chiffrée");
+            if (item.compressedSize == 0xFFFFFFFFL || item.size == 0xFFFFFFFFL || item.offset == 0xFFFFFFFFL)
+                throw new IllegalStateException("Le jar " + source + " est au format ZIP64, qui n'est pas géré");
+            items.add(item);
+            offset += 46 + nameLength + extraLength + commentLength;
+        }
+        return items;
+    }
+
+    /**
+     * Donne la position des données (compressées) d'une entrée, qui suivent son en-tête local.
+     */
+    static long dataOffset(File source, FileChannel channel, Item item) throws IOException {
+        ByteBuffer local = read(channel, item.offset, 30);
+        if (local.getInt(0) != LOCAL_HEADER)
+            throw new IOException("L'entrée " + item.name + " de " + source + " est invalide");
+        return item.offset + 30 + (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF);
+    }
+
+    static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Lit une partie d'un fichier. Les lectures à une position donnée peuvent avoir lieu depuis plusieurs threads.
+     */
+    static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = buffer(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Fin de fichier inattendue");
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    /**
+     * Une entrée du répertoire central.
+     */
+    static final class Item {
+        final String name;
+        final int flags;
+        final int method;
+        /**
+         * La date MS-DOS : l'heure dans les 16 bits de poids faible, le jour dans les autres.
+         */
+        final int time;
+        final int crc;
+        final long compressedSize;
+        final long size;
+        /**
+         * La position de l'en-tête local de l'entrée.
+         */
+        final long offset;
+
+        private Item(String name, int flags, int method, int time, int crc, long compressedSize, long size,
+                     long offset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+}
@@ -16,8 +16,11 @@
 package org.javascool.core;
 
 import org.javascool.tools.FileManager;
+import org.javascool.tools.RemoteCache;
 
 import java.io.*;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.jar.*;
 
 /**
@@ -31,6 +34,12 @@ public class JarManager {
 
     /**
      * Extrait une arborescence d'un jar.
+     * <p>
+     * Le jar est projeté en mémoire et ses entrées sont décompressées en
+     * parallèle ; un fichier déjà extrait, de même taille et de même CRC,
+     * n'est pas réécrit. Un jar de plus de 2 Go ou au format ZIP64 est lu
+     * en flux, comme avant.
+     * </p>
      *
      * @param jarFile  Jarre dont on extrait les fichiers.
      * @param destDir  Dossier où on déploie les fichiers.
@@ -39,6 +48,25 @@ public class JarManager {
      */
     public static void jarExtract(String jarFile, String destDir,
                                   String jarEntry) {
+        if (jarEntry == null) {
+            jarEntry = "";
+        }
+        try {
+            if (!JarExtractor.extract(new File(jarFile), new File(destDir), jarEntry)) {
+                JarManager.jarStream(jarFile, destDir, jarEntry);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Extrait une arborescence d'un jar en le lisant en flux.
+     *
+     * @see #jarExtract(String, String, String)
+     */
+    private static void jarStream(String jarFile, String destDir,
+                                  String jarEntry) {
         try {
             JarInputStream jip = new JarInputStream(
                     new FileInputStream(jarFile));
@@ -69,6 +97,11 @@ public class JarManager {
 
     /**
      * Crée un jar à partir d'une arborescence.
+     * <p>
+     * Les fichiers sont compressés en parallèle puis écrits dans l'ordre
+     * alphabétique ; les images et les sons sont stockés sans être
+     * recompressés. Voir {@link JarMerger}.
+     * </p>
      *
      * @param jarFile    Jar à construire. Elle est détruite avant d'être crée.
      * @param manifest   Fichier de manifeste (obligatoire).
@@ -79,19 +112,13 @@ public class JarManager {
     public static void jarCreate(String jarFile, Manifest manifest,
                                  String srcDir, String[] jarEntries) {
         try {
-            File parent = new File(jarFile).getParentFile();
-            if (parent != null) {
-                parent.mkdirs();
-            }
-            new File(jarFile).delete();
-            srcDir = new File(srcDir).getCanonicalPath();
             manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION,
                     "1.0");
-            JarOutputStream target = new JarOutputStream(new FileOutputStream(
-                    jarFile), manifest);
-            JarManager.copyFileToJar(new File(srcDir), target,
-                    new File(srcDir), jarEntries);
-            target.close();
+            new JarMerger().setManifest(manifest)
+                    .setMetaInf(JarMerger.MetaInf.KEEP)
+                    .setEntries(jarEntries)
+                    .add(new File(srcDir).getCanonicalFile())
+                    .merge(new File(jarFile));
         } catch (Exception ex) {
             ex.printStackTrace();
             throw new RuntimeException(ex);
@@ -106,6 +133,58 @@ public class JarManager {
         JarManager.jarCreate(jarFile, manifest, srcDir, null);
     }
 
+    /**
+     * Crée un jar à partir de plusieurs arborescences.
+     * <p>
+     * Un fichier présent dans plusieurs arborescences est pris dans la
+     * première. Les entrées sont rangées dans l'ordre alphabétique. Le jar est
+     * écrit à côté puis renommé : un jar déjà là n'est jamais vu à moitié
+     * écrit, même si deux créations du même jar ont lieu en même temps.
+     * </p>
+     *
+     * @param jarFile  Jar à construire. Il est remplacé si il existe.
+     * @param manifest Fichier de manifeste (obligatoire).
+     * @param srcDirs  Dossiers sources avec les fichiers à mettre en jarre.
+     */
+    public static void jarCreate(String jarFile, Manifest manifest, File... srcDirs) {
+        JarMerger merger = new JarMerger().setManifest(manifest).setMetaInf(JarMerger.MetaInf.KEEP);
+        for (File srcDir : srcDirs) {
+            merger.add(srcDir);
+        }
+        try {
+            merger.merge(new File(jarFile));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Fusionne des jar en un seul, sans décompresser ni recompresser leurs
+     * entrées.
+     * <p>
+     * Une entrée présente dans plusieurs jar est prise dans le premier. Les
+     * signatures des jar sont enlevées, le reste de leur <tt>META-INF</tt>
+     * est gardé. Voir {@link JarMerger} pour d'autres règles.
+     * </p>
+     *
+     * @param jarFile  Jar à construire. Il est remplacé si il existe.
+     * @param manifest Fichier de manifeste, ou null pour un jar sans
+     *                 manifeste.
+     * @param jars     Les jar à fusionner (des répertoires peuvent aussi être
+     *                 donnés).
+     */
+    public static void jarMerge(String jarFile, Manifest manifest, String... jars) {
+        JarMerger merger = new JarMerger().setManifest(manifest);
+        for (String jar : jars) {
+            merger.add(new File(jar));
+        }
+        try {
+            merger.merge(new File(jarFile));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Copie un répertoire/fichier dans un autre en oubliant les .svn.
      *
@@ -184,13 +263,16 @@ public class JarManager {
      * @param target   Nom du fichier cible local. Par défaut un fichier temporaire.
      * @param listener Ecouteur du download. Par défaut null.
      * @return Le nom du fichier cible local.
+     * @see RemoteCache
      */
     public static String downloadFile(String location, String target,
                                       DownloadListener listener) throws IOException {
-        JarManager.copyStream(
-                FileManager.getResourceURL(location).openStream(),
+        // Une ressource distante n'est téléchargée que si la cache ne l'a pas
+        URL url = RemoteCache.toLocal(FileManager.getResourceURL(location));
+        URLConnection connection = url.openConnection();
+        JarManager.copyStream(connection.getInputStream(),
                 new FileOutputStream(target), listener,
-                (int) FileManager.getSize(location));
+                (int) connection.getContentLengthLong());
         return target;
     }
 
@@ -229,54 +311,6 @@ public class JarManager {
         public void progressPerformed(int currentSize, int totalSize);
     }
 
-    // Ajoute un stream a un jar
-    private static void copyFileToJar(File source, JarOutputStream target,
-                                      File root, String[] jarEntries) throws IOException {
-        // Teste si la source est dans les fichier à extraire
-        if (jarEntries != null) {
-            boolean skip = true;
-            for (String jarEntry : jarEntries) {
-                String entry = root.toString() + File.separator + jarEntry;
-                skip &= !(entry.startsWith(source.toString()) | source
-                        .toString().startsWith(entry));
-            }
-            if (skip) {
-                return;
-            }
-        }
-        try {
-            if (source.isDirectory()) {
-                String name = source.getPath()
-                        .replace(root.getAbsolutePath() + File.separator, "")
-                        .replace(File.separator, "/");
-                if (!name.isEmpty() && (!source.equals(root))) {
-                    if (!name.endsWith("/")) {
-                        name += "/";
-                    }
-                    JarEntry entry = new JarEntry(name);
-                    entry.setTime(source.lastModified());
-                    target.putNextEntry(entry);
-                    target.closeEntry();
-                }
-                for (File nestedFile : source.listFiles()) {
-                    JarManager.copyFileToJar(nestedFile, target, root,
-                            jarEntries);
-                }
-            } else {
-                JarEntry entry = new JarEntry(source.getPath()
-                        .replace(root.getAbsolutePath() + File.separator, "")
-                        .replace(File.separator, "/"));
-                entry.setTime(source.lastModified());
-                target.putNextEntry(entry);
-                JarManager.copyStream(new BufferedInputStream(
-                        new FileInputStream(source)), target);
-            }
-        } catch (Throwable e) {
-            e.printStackTrace(System.out);
-            throw new IllegalStateException(e);
-        }
-    }
-
     // Copy un stream dans un autre
     private static void copyStream(InputStream in, OutputStream out,
                                    DownloadListener listener, int size) throws IOException {
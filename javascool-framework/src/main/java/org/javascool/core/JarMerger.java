@@ -0,0 +1,583 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.javascool.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Fusionne des jar (et des répertoires) en un seul jar.
+ * <p>
+ * Les entrées des jar sources sont recopiées telles quelles, encore compressées : leur taille et leur CRC sont lus
+ * dans le répertoire central de chaque jar, sans rien décompresser ni recompresser. Fusionner des jar coûte alors
+ * une lecture et une écriture. Seuls les fichiers des répertoires sources sont compressés : ils le sont en parallèle,
+ * sur un {@link ForkJoinPool}, puis écrits un à un dans l'ordre alphabétique. Les images et les sons, déjà compressés,
+ * sont stockés tels quels.
+ * </p>
+ * <p>
+ * Une entrée présente dans plusieurs sources est prise selon {@link Duplicates}, et les entrées <tt>META-INF</tt>
+ * des sources selon {@link MetaInf}. Le manifeste du jar est celui donné par {@link #setManifest(Manifest)} : ceux
+ * des sources ne sont jamais repris.
+ * </p>
+ * <p>
+ * Les jar au format ZIP64 (plus de 65535 entrées ou plus de 4 Go) et les entrées chiffrées ne sont pas gérés.
+ * </p>
+ *
+ * @see JarManager#jarMerge(String, Manifest, String...)
+ * @since 5.0
+ */
+public class JarMerger {
+    /**
+     * Que faire d'une entrée présente dans plusieurs sources. Les répertoires en double sont toujours fusionnés.
+     */
+    public enum Duplicates {
+        /**
+         * Garder celle de la première source qui l'a.
+         */
+        FIRST,
+        /**
+         * Garder celle de la dernière source qui l'a.
+         */
+        LAST,
+        /**
+         * Refuser la fusion.
+         */
+        ERROR
+    }
+
+    /**
+     * Que faire des entrées <tt>META-INF</tt> des sources (hors manifeste, jamais repris).
+     */
+    public enum MetaInf {
+        /**
+         * Les enlever toutes.
+         */
+        DROP,
+        /**
+         * Enlever les signatures (<tt>.SF</tt>, <tt>.RSA</tt>, <tt>.DSA</tt>, <tt>.EC</tt>), qui ne seraient plus
+         * valides dans le jar fusionné, et garder le reste (ex. <tt>META-INF/services</tt>).
+         */
+        SIGNATURES,
+        /**
+         * Les garder toutes.
+         */
+        KEEP
+    }
+
+    private static final Charset UTF8 = JarIndex.UTF8;
+    private static final int LOCAL_HEADER = JarIndex.LOCAL_HEADER;
+    private static final int CENTRAL_HEADER = JarIndex.CENTRAL_HEADER;
+    private static final int END_HEADER = JarIndex.END_HEADER;
+    private static final int STORED = JarIndex.STORED;
+    private static final int DEFLATED = JarIndex.DEFLATED;
+    /**
+     * Les drapeaux d'entrée repris des sources : l'option de compression et le nom en UTF-8.
+     */
+    private static final int KEPT_FLAGS = 0x0806;
+    private static final int UTF8_FLAG = 0x0800;
+    /**
+     * Les extensions des fichiers déjà compressés, stockés sans les recompresser.
+     */
+    private static final String[] STORED_TYPES = {".png", ".jpg", ".jpeg", ".mp3", ".wav"};
+    /**
+     * La taille des fichiers compressés en même temps, avant d'être écrits : le jar n'est pas gardé en mémoire.
+     */
+    private static final long WINDOW = 32 * 1024 * 1024;
+    private static ForkJoinPool sharedPool;
+
+    private final List<File> sources = new ArrayList<File>();
+    private Manifest manifest;
+    private Prefixes prefixes;
+    private Duplicates duplicates = Duplicates.FIRST;
+    private MetaInf metaInf = MetaInf.SIGNATURES;
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions de la fusion
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Ajoute une source : un jar (ou zip), ou un répertoire dont l'arborescence est mise dans le jar.
+     */
+    public JarMerger add(File source) {
+        sources.add(source);
+        return this;
+    }
+
+    /**
+     * Définit le manifeste du jar, ou null pour un jar sans manifeste.
+     */
+    public JarMerger setManifest(Manifest manifest) {
+        this.manifest = manifest;
+        return this;
+    }
+
+    /**
+     * Définit que faire d'une entrée présente dans plusieurs sources (par défaut {@link Duplicates#FIRST}).
+     */
+    public JarMerger setDuplicates(Duplicates duplicates) {
+        this.duplicates = duplicates;
+        return this;
+    }
+
+    /**
+     * Définit que faire des entrées <tt>META-INF</tt> des sources (par défaut {@link MetaInf#SIGNATURES}).
+     */
+    public JarMerger setMetaInf(MetaInf metaInf) {
+        this.metaInf = metaInf;
+        return this;
+    }
+
+    /**
+     * Ne garde que les entrées sous certains préfixes (par défaut toutes). Une entrée est gardée si son nom commence
+     * par un des préfixes, ou si c'est un répertoire parent d'un des préfixes.
+     *
+     * @param prefixes Les préfixes (ex. <tt>org/javascool/</tt>), ou null pour garder toutes les entrées.
+     */
+    public JarMerger setEntries(String... prefixes) {
+        this.prefixes = prefixes == null ? null : new Prefixes(prefixes);
+        return this;
+    }
+
+    /**
+     * Écrit le jar fusionné. Il est écrit à côté puis renommé : un jar déjà là n'est jamais vu à moitié écrit.
+     *
+     * @param jarFile Le jar à construire. Il est remplacé si il existe.
+     * @throws IOException           Si une source ne peut être lue ou le jar écrit
+     * @throws IllegalStateException Si une entrée est en double avec {@link Duplicates#ERROR}, ou si une source
+     *                               est un jar ZIP64 ou chiffré
+     */
+    public void merge(File jarFile) throws IOException {
+        File target = jarFile.getAbsoluteFile();
+        target.getParentFile().mkdirs();
+        List<FileChannel> channels = new ArrayList<FileChannel>();
+        File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        try {
+            Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+            if (manifest != null) {
+                Entry directory = new Entry("META-INF/", null, null);
+                entries.put(directory.name, directory);
+                Entry entry = new Entry(JarFile.MANIFEST_NAME, null, null);
+                if (manifest.getMainAttributes().getValue(Attributes.Name.MANIFEST_VERSION) == null)
+                    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                manifest.write(bytes);
+                entry.content = bytes.toByteArray();
+                entries.put(entry.name, entry);
+            }
+            for (File source : sources) {
+                if (source.isDirectory()) {
+                    readDirectory(source, source, entries);
+                } else {
+                    FileChannel channel = new RandomAccessFile(source, "r").getChannel();
+                    channels.add(channel);
+                    readArchive(source, channel, entries);
+                }
+            }
+            FileChannel out = new RandomAccessFile(temp, "rw").getChannel();
+            try {
+                out.truncate(0);
+                write(entries.values(), out);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+            for (FileChannel channel : channels)
+                channel.close();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Lecture des sources
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Lit le répertoire central d'un jar.
+     */
+    private void readArchive(File source, FileChannel channel, Map<String, Entry> entries) throws IOException {
+        for (JarIndex.Item item : JarIndex.read(source, channel)) {
+            if (!accepts(item.name))
+                continue;
+            Entry entry = new Entry(item.name, source, channel);
+            // Les tailles sont écrites dans l'en-tête local : pas de descripteur de données après le contenu
+            entry.flags = item.flags & KEPT_FLAGS;
+            entry.method = item.method;
+            entry.time = item.time;
+            entry.crc = item.crc;
+            entry.compressedSize = item.compressedSize;
+            entry.size = item.size;
+            entry.item = item;
+            put(entries, entry);
+        }
+    }
+
+    /**
+     * Lit l'arborescence d'un répertoire, dans l'ordre alphabétique.
+     */
+    private void readDirectory(File file, File root, Map<String, Entry> entries) {
+        String name = root.toURI().relativize(file.toURI()).getPath();
+        if (!accepts(name))
+            return;
+        if (!name.isEmpty())
+            put(entries, new Entry(name, file, null));
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File nested : files)
+                    readDirectory(nested, root, entries);
+            }
+        }
+    }
+
+    private boolean accepts(String name) {
+        return prefixes == null || prefixes.accepts(name.endsWith("/") ? name.substring(0, name.length() - 1) : name);
+    }
+
+    /**
+     * Ajoute une entrée, selon les règles des doublons et de <tt>META-INF</tt>.
+     */
+    private void put(Map<String, Entry> entries, Entry entry) {
+        String name = entry.name.toUpperCase();
+        if (name.equals(JarFile.MANIFEST_NAME))
+            return;
+        if (name.startsWith("META-INF/") && metaInf != MetaInf.KEEP) {
+            if (metaInf == MetaInf.DROP)
+                return;
+            String file = name.substring("META-INF/".length());
+            if (file.indexOf('/') == -1 && (file.endsWith(".SF") || file.endsWith(".RSA") ||
+                    file.endsWith(".DSA") || file.endsWith(".EC") || file.startsWith("SIG-")))
+                return;
+        }
+        Entry previous = entries.get(entry.name);
+        if (previous == null || entry.name.endsWith("/")) {
+            if (previous == null)
+                entries.put(entry.name, entry);
+        } else if (duplicates == Duplicates.LAST) {
+            entries.put(entry.name, entry);
+        } else if (duplicates == Duplicates.ERROR) {
+            throw new IllegalStateException("L'entrée " + entry.name + " est à la fois dans " + previous.source +
+                    " et dans " + entry.source);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Écriture du jar
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static synchronized ForkJoinPool getSharedPool() {
+        if (sharedPool == null)
+            sharedPool = new ForkJoinPool();
+        return sharedPool;
+    }
+
+    /**
+     * Écrit les entrées, par fenêtres : les fichiers d'une fenêtre sont compressés en parallèle, et chacun est écrit
+     * dès que lui et ceux d'avant le sont.
+     */
+    private void write(Collection<Entry> entries, FileChannel out) throws IOException {
+        List<Entry> written = new ArrayList<Entry>();
+        List<Entry> pending = new ArrayList<Entry>(entries);
+        for (int from = 0; from < pending.size(); ) {
+            List<Future<Void>> compressions = new ArrayList<Future<Void>>();
+            int to = from;
+            for (long bytes = 0; to < pending.size() && (to == from || bytes < WINDOW); to++) {
+                Entry entry = pending.get(to);
+                if (entry.channel == null) {
+                    if (entry.source != null)
+                        bytes += entry.source.length();
+                    compressions.add(getSharedPool().submit(new Compression(entry)));
+                }
+            }
+            try {
+                for (int i = from, j = 0; i < to; i++) {
+                    Entry entry = pending.get(i);
+                    if (entry.channel == null)
+                        await(compressions.get(j++));
+                    write(entry, out, written);
+                }
+            } finally {
+                for (Future<Void> compression : compressions)
+                    compression.cancel(false);
+            }
+            from = to;
+        }
+        long directoryOffset = out.position();
+        for (Entry entry : written) {
+            byte[] name = entry.name.getBytes(UTF8);
+            ByteBuffer header = JarIndex.buffer(46 + name.length);
+            header.putInt(CENTRAL_HEADER).putShort((short) 20).putShort((short) 20).putShort((short) entry.flags)
+                    .putShort((short) entry.method).putInt(entry.time).putInt(entry.crc)
+                    .putInt((int) entry.compressedSize).putInt((int) entry.size)
+                    .putShort((short) name.length).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(entry.name.endsWith("/") ? 0x10 : 0)
+                    .putInt((int) entry.offset).put(name);
+            writeFully(out, header);
+        }
+        long directorySize = out.position() - directoryOffset;
+        ByteBuffer end = JarIndex.buffer(22);
+        end.putInt(END_HEADER).putShort((short) 0).putShort((short) 0).putShort((short) written.size())
+                .putShort((short) written.size()).putInt((int) directorySize).putInt((int) directoryOffset)
+                .putShort((short) 0);
+        writeFully(out, end);
+    }
+
+    /**
+     * Écrit une entrée : son en-tête local puis ses données compressées.
+     */
+    private static void write(Entry entry, FileChannel out, List<Entry> written) throws IOException {
+        entry.offset = out.position();
+        byte[] name = entry.name.getBytes(UTF8);
+        ByteBuffer header = JarIndex.buffer(30 + name.length);
+        header.putInt(LOCAL_HEADER).putShort((short) 20).putShort((short) entry.flags)
+                .putShort((short) entry.method).putInt(entry.time).putInt(entry.crc)
+                .putInt((int) entry.compressedSize).putInt((int) entry.size)
+                .putShort((short) name.length).putShort((short) 0).put(name);
+        writeFully(out, header);
+        if (entry.channel == null) {
+            writeFully(out, ByteBuffer.wrap(entry.content));
+            entry.content = null;
+        } else {
+            // Les données compressées sont recopiées octet pour octet
+            long start = JarIndex.dataOffset(entry.source, entry.channel, entry.item);
+            for (long done = 0; done < entry.compressedSize; ) {
+                long n = entry.channel.transferTo(start + done, entry.compressedSize - done, out);
+                if (n <= 0)
+                    throw new EOFException("L'entrée " + entry.name + " de " + entry.source + " est tronquée");
+                done += n;
+            }
+        }
+        if (out.position() > 0xFFFFFFFFL || written.size() == 0xFFFF)
+            throw new IllegalStateException("Le jar est trop grand pour le format ZIP sans ZIP64");
+        written.add(entry);
+    }
+
+    /**
+     * Attend la compression d'une entrée, et en relance l'erreur.
+     */
+    private static void await(Future<Void> compression) throws IOException {
+        try {
+            compression.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Écriture du jar interrompue");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Prépare une entrée qui ne vient pas d'un jar : un fichier est compressé, sauf si il l'est déjà (image, son) ou
+     * si il n'y gagne rien.
+     */
+    private static void compress(Entry entry) throws IOException {
+        long date = entry.source == null ? System.currentTimeMillis() : entry.source.lastModified();
+        entry.time = dosTime(date);
+        entry.flags = UTF8_FLAG;
+        entry.method = STORED;
+        byte[] data = entry.content;
+        if (data == null)
+            data = entry.name.endsWith("/") ? new byte[0] : Files.readAllBytes(entry.source.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.crc = (int) crc.getValue();
+        entry.size = data.length;
+        entry.content = data;
+        if (data.length > 0 && !isCompressed(entry.name)) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+                if (compressed.size() < data.length) {
+                    entry.method = DEFLATED;
+                    entry.content = compressed.toByteArray();
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        entry.compressedSize = entry.content.length;
+    }
+
+    private static boolean isCompressed(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String type : STORED_TYPES) {
+            if (lower.endsWith(type))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * La compression d'une entrée, faite sur le pool.
+     */
+    private static final class Compression implements Callable<Void> {
+        private final Entry entry;
+
+        private Compression(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            compress(entry);
+            return null;
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        if (buffer.position() > 0)
+            ((Buffer) buffer).flip(); // ByteBuffer.flip() n'existe qu'à partir de Java 9
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    /**
+     * Convertit une date en date MS-DOS : l'heure dans les 16 bits de poids faible, le jour dans les autres.
+     */
+    private static int dosTime(long date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(date);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 |
+                calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11 |
+                calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Un arbre des préfixes gardés, lettre par lettre : un nom est testé en une descente, quel que soit le nombre de
+     * préfixes.
+     */
+    private static final class Prefixes {
+        private final Map<Character, Prefixes> children = new HashMap<Character, Prefixes>();
+        private boolean end;
+
+        private Prefixes() {
+        }
+
+        private Prefixes(String[] prefixes) {
+            for (String prefix : prefixes) {
+                Prefixes node = this;
+                for (char c : prefix.replace(File.separatorChar, '/').toCharArray()) {
+                    Prefixes child = node.children.get(c);
+                    if (child == null) {
+                        child = new Prefixes();
+                        node.children.put(c, child);
+                    }
+                    node = child;
+                }
+                node.end = true;
+            }
+        }
+
+        /**
+         * Vrai si le nom commence par un préfixe, ou est le début d'un préfixe.
+         */
+        private boolean accepts(String name) {
+            Prefixes node = this;
+            for (int i = 0; i < name.length(); i++) {
+                if (node.end)
+                    return true;
+                node = node.children.get(name.charAt(i));
+                if (node == null)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Une entrée du jar fusionné : une entrée d'un jar source, un fichier ou répertoire, ou le manifeste.
+     */
+    private static final class Entry {
+        private final String name;
+        /**
+         * Le jar, le fichier ou le répertoire d'où vient l'entrée, null pour le manifeste.
+         */
+        private final File source;
+        /**
+         * Le jar source ouvert, ou null si l'entrée n'en vient pas.
+         */
+        private final FileChannel channel;
+        private int flags;
+        private int method;
+        private int time;
+        private int crc;
+        private long compressedSize;
+        private long size;
+        /**
+         * L'entrée du jar source, ou null si l'entrée n'en vient pas.
+         */
+        private JarIndex.Item item;
+        private long offset;
+        /**
+         * Le contenu (compressé ou non) d'une entrée qui ne vient pas d'un jar.
+         */
+        private byte[] content;
+
+        private Entry(String name, File source, FileChannel channel) {
+            this.name = name;
+            this.source = source;
+            this.channel = channel;
+        }
+    }
+}
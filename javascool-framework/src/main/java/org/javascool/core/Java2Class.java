@@ -3,18 +3,47 @@
  **************************************************************/
 package org.javascool.core;
 
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.lang.reflect.Method;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Définit le mécanisme de compilation en ligne d'un code Java et du chargement
  * de la classe obtenue.
  * <p>
- * Note: utilise un sous ensemble du <tt>tools.jar</tt> de la JDK1.6 de SUN de
- * la JDK appelé ici <tt>javac.jar</tt> qui doit être dans le CLASSPATH.
+ * Le compilateur <tt>javac</tt> est appelé dans la JVM par l'API
+ * <tt>javax.tools</tt> : il faut une JDK et non une simple JRE. Le
+ * compilateur et ses gestionnaires de fichiers, qui gardent les Jar du
+ * classpath ouverts, servent à toutes les compilations.
+ * </p>
+ * <p>
+ * Les erreurs sont reçues une par une du compilateur et les plus courantes
+ * sont reformulées en français d'après leur code (voir
+ * {@link #translate(String, String)}).
  * </p>
  *
  * @serial exclude
@@ -79,115 +108,411 @@ public class Java2Class {
         return Java2Class.compile(javaFiles, allErrors, null);
     }
 
+    /**
+     * @param path Les Jar et répertoires du classpath de la compilation, ou
+     *             null pour le classpath de l'application.
+     * @see #compile(String, boolean)
+     */
     public static boolean compile(String javaFiles[], boolean allErrors,
                                   String[] path) {
         if (javaFiles.length == 0) {
             return false;
         }
-        if (path == null) {
-            path = new String[0];
-        }
-        // Appel du compilateur SUN par sa méthode main
-        int options = path.length == 0 ? 2 : 4;
-        String args[] = new String[options + javaFiles.length];
-        args[0] = "-g";
-        args[1] = "-nowarn";
-        System.arraycopy(javaFiles, 0, args, options, javaFiles.length);
-        if (path != null) {
-            args[2] = "-cp";
-            StringBuilder fpath = new StringBuilder();
-            fpath.append(path[0]);
-            for (int x = 1; x < path.length; ++x) {
-                if (path[x] != null) {
-                    fpath.append(File.pathSeparator).append(path[x]);
-                }
+        StandardJavaFileManager fileManager = Java2Class.takeFileManager(path);
+        try {
+            Collector collector = new Collector(allErrors);
+            boolean success = Java2Class.run(fileManager,
+                    fileManager.getJavaFileObjects(javaFiles), collector, allErrors);
+            StringBuilder report = new StringBuilder();
+            for (JVSDiagnostic error : collector.errors) {
+                Java2Class.appendError(report, error, collector.sources.get(error.getFileName()),
+                        javaFiles.length > 1);
+            }
+            // Impression du message d'erreur si il existe et retour du statut
+            if (report.length() > 0) {
+                System.out.println(report.toString().trim());
             }
-            args[3] = fpath.toString();
+            return success && collector.errors.isEmpty();
+        } finally {
+            Java2Class.releaseFileManager(fileManager);
         }
-        StringWriter out = new StringWriter();
-        Method javac;
+    }
+
+    /**
+     * Compile en mémoire un code source Java.
+     * <p>
+     * Rien n'est écrit sur le disque : le bytecode des classes est renvoyé
+     * avec les erreurs, dont les messages sont reformulés en français.
+     * </p>
+     *
+     * @param className Le nom complet de la classe publique du code.
+     * @param javaCode  Le code source Java.
+     * @param path      Les Jar et répertoires du classpath de la compilation,
+     *                  ou null pour le classpath de l'application.
+     * @param allErrors Renvoie toutes les erreur si true, sinon uniquement la
+     *                  première erreur.
+     * @return La compilation : les classes, indexées par leur nom complet, et
+     *         les erreurs. Il n'y a pas de classe si il y a des erreurs.
+     * @see #getReport(List, String)
+     */
+    public static CompileCache.Entry compile(String className, String javaCode, String[] path,
+                                             boolean allErrors) {
+        final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        StandardJavaFileManager fileManager = Java2Class.takeFileManager(path);
         try {
-            javac = Class.forName("com.sun.tools.javac.Main")
-                    .getDeclaredMethod("compile",
-                            Class.forName("[Ljava.lang.String;"),
-                            Class.forName("java.io.PrintWriter"));
-        } catch (Exception e) {
-            throw new IllegalStateException(
-                    "Impossible d'accéder au compilateur javac : " + e);
+            Collector collector = new Collector(allErrors);
+            // Les classes produites sont gardées en mémoire
+            JavaFileManager memory = new ForwardingJavaFileManager<StandardJavaFileManager>(fileManager) {
+                @Override
+                public JavaFileObject getJavaFileForOutput(Location location, final String name,
+                                                           JavaFileObject.Kind kind, FileObject sibling)
+                        throws IOException {
+                    if (kind != JavaFileObject.Kind.CLASS) {
+                        return super.getJavaFileForOutput(location, name, kind, sibling);
+                    }
+                    return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + ".class"),
+                            JavaFileObject.Kind.CLASS) {
+                        @Override
+                        public OutputStream openOutputStream() {
+                            return new ByteArrayOutputStream() {
+                                @Override
+                                public void close() {
+                                    classes.put(name, toByteArray());
+                                }
+                            };
+                        }
+                    };
+                }
+            };
+            List<JavaFileObject> sources = Collections.<JavaFileObject>singletonList(
+                    new Source(className.replace('.', '/') + ".java", javaCode));
+            boolean success = Java2Class.run(memory, sources, collector, allErrors);
+            if (!success || !collector.errors.isEmpty()) {
+                classes.clear();
+            }
+            return new CompileCache.Entry(className, classes, collector.errors);
+        } finally {
+            Java2Class.releaseFileManager(fileManager);
         }
-        try {
-            javac.invoke(null, args, new PrintWriter(out));
-        } catch (Exception e) {
-            throw new IllegalStateException(
-                    "Erreur système lors du lancement du compilateur javac : "
-                            + e);
-        }
-        // Traitement du message de sortie
-        {
-            String sout = out.toString().trim();
-            // Coupure à la première erreur
-            if ((sout.indexOf("^") != -1) && !allErrors) {
-                sout = sout.substring(0, sout.indexOf("^") + 1);
+    }
+
+    /**
+     * Met en forme les erreurs d'une compilation en mémoire, comme elles sont
+     * affichées dans la console par {@link #compile(String[], boolean, String[])}.
+     *
+     * @param errors   Les erreurs de la compilation.
+     * @param javaCode Le code source Java compilé.
+     * @return Le message d'erreur, ou la chaîne vide si il n'y a pas d'erreur.
+     * @see #compile(String, String, String[], boolean)
+     */
+    public static String getReport(List<JVSDiagnostic> errors, String javaCode) {
+        StringBuilder report = new StringBuilder();
+        for (JVSDiagnostic error : errors) {
+            if (error.getKind() == Diagnostic.Kind.ERROR) {
+                Java2Class.appendError(report, error, javaCode, false);
             }
-            if (javaFiles.length > 1) {
-                // Remplacement des chemins des sources par leur simple nom
-                for (String javaFile : javaFiles) {
-                    sout = sout.replaceAll(
-                            Pattern.quote(new File(javaFile).getParent()
-                                    + File.separator), "\n");
+        }
+        return report.toString().trim();
+    }
+
+    //
+    // Passage en français des principaux diagnostics
+    //
+
+    /**
+     * Les reformulations, par code de diagnostic de <tt>javac</tt>. Un code
+     * peut avoir plusieurs formes de message selon la version du compilateur :
+     * la première qui correspond au message est prise.
+     */
+    private static final Map<String, Message[]> messages = new HashMap<String, Message[]>();
+
+    static {
+        Java2Class.addMessage(null,
+                "L'instruction n'est pas valide.\n (Il se peut qu'une variable indiquée n'existe pas)",
+                "compiler.err.not.stmt");
+        Java2Class.addMessage("'(.*)' expected",
+                "Un '$1' est attendu (il peut manquer, ou une parenthèse être incorrecte, ..)",
+                "compiler.err.expected");
+        Java2Class.addMessage("(?s)[^:]*symbol\\s*:\\s*([^\\n]*).*",
+                "Il y a un symbole non-défini à cette ligne : «$1» (utilisez-vous la bonne proglet ?)",
+                "compiler.err.cant.resolve", "compiler.err.cant.resolve.args",
+                "compiler.err.cant.resolve.location", "compiler.err.cant.resolve.location.args");
+        Java2Class.addMessage("(?s).+",
+                "($0) L'instruction (ou la précédente) est tronquée ou mal écrite",
+                "compiler.err.illegal.start.of.expr");
+        Java2Class.addMessage("(?s).+",
+                "($0) Il y a probablement une erreur dans les accolades (peut-être trop de '}')",
+                "compiler.err.expected3", "compiler.err.expected4");
+        Java2Class.addMessage("(?s).+",
+                "($0) Il manque des accolades ou des parenthèses pour définir l'instruction",
+                "compiler.err.dot.class.expected");
+        // Les formes des JDK 1.6, 1.7 et 1.8 et suivantes
+        Java2Class.addMessage("(?s)incompatible\\Wtypes\\W*found\\W*:\\W*([A-Za-z\\.\\[\\]]*)\\W*required\\W*:\\W*([A-Za-z\\.\\[\\]]*).*",
+                "Vous avez mis une valeur de type $1 alors qu'il faut une valeur de type $2",
+                "compiler.err.prob.found.req");
+        Java2Class.addMessage("(?s)incompatible\\Wtypes\\W*required\\W*:\\W*([A-Za-z\\.\\[\\]]*)\\W*found\\W*:\\W*([A-Za-z\\.\\[\\]]*).*",
+                "Vous avez mis une valeur de type $2 alors qu'il faut une valeur de type $1",
+                "compiler.err.prob.found.req");
+        Java2Class.addMessage("incompatible types: ([A-Za-z\\.\\[\\]]*) cannot be converted to ([A-Za-z\\.\\[\\]]*)",
+                "Vous avez mis une valeur de type $1 alors qu'il faut une valeur de type $2",
+                "compiler.err.prob.found.req");
+    }
+
+    /**
+     * Reformule en français un message de <tt>javac</tt>.
+     *
+     * @param code    Le code du diagnostic (ex. <tt>compiler.err.not.stmt</tt>).
+     * @param message Le message en anglais.
+     * @return Le message reformulé, ou le message en entrée si il n'y a pas
+     *         de reformulation pour ce code.
+     */
+    public static String translate(String code, String message) {
+        Message[] forms = code == null || message == null ? null : messages.get(code);
+        if (forms != null) {
+            for (Message form : forms) {
+                if (form.pattern == null) {
+                    return form.replacement;
                 }
-                // Explicitation du numéro de ligne
-                for (String javaFile : javaFiles) {
-                    sout = sout.replaceAll(
-                            "(" + Pattern.quote(new File(javaFile).getName())
-                                    + "):([0-9]+):",
-                            "$1 : erreur de syntaxe ligne $2 :\n ");
+                Matcher matcher = form.pattern.matcher(message);
+                if (matcher.matches()) {
+                    return matcher.replaceFirst(form.replacement);
                 }
+            }
+        }
+        return message;
+    }
+
+    private static void addMessage(String regex, String replacement, String... codes) {
+        Message message = new Message(regex == null ? null : Pattern.compile(regex), replacement);
+        for (String code : codes) {
+            Message[] forms = messages.get(code);
+            if (forms == null) {
+                forms = new Message[]{message};
             } else {
-                sout = sout.replaceAll(
-                        "(" + Pattern.quote(new File(javaFiles[0]).getPath())
-                                + "):([0-9]+):",
-                        "\n Erreur de syntaxe ligne $2 :\n ");
-                sout = sout.replaceAll(Pattern.quote(new File(javaFiles[0])
-                        .getName().replaceFirst("java$", "")), "");
+                forms = Arrays.copyOf(forms, forms.length + 1);
+                forms[forms.length - 1] = message;
             }
-            // Escape des constructions dérivée d' un Translator
-            sout = sout.replaceAll("/\\*(.*)@<nojavac.*@nojavac>\\*/", "$1");
-            // Passage en français des principaux diagnostics
-            sout = sout
-                    .replaceAll(
-                            "not a statement",
-                            "L'instruction n'est pas valide.\n (Il se peut qu'une variable indiquée n'existe pas)");
-            sout = sout
-                    .replaceAll("';' expected",
-                            "Un ';' est attendu (il peut manquer, ou une parenthèse être incorrecte, ..)");
-            sout = sout
-                    .replaceAll(
-                            "cannot find symbol\\s*symbol\\s*:\\s*([^\\n]*)[^:]*:\\s*(.*)",
-                            "Il y a un symbole non-défini à cette ligne : «$1» (utilisez-vous la bonne proglet ?)");
-            sout = sout
-                    .replaceAll("illegal start of expression",
-                            "($0) L'instruction (ou la précédente) est tronquée ou mal écrite");
-            sout = sout
-                    .replaceAll(
-                            "class, interface, or enum expected",
-                            "($0) Il y a probablement une erreur dans les accolades (peut-être trop de '}')");
-            sout = sout
-                    .replaceAll("'.class' expected",
-                            "($0) Il manque des accolades ou des parenthèses pour définir l'instruction");
-            sout = sout
-                    .replaceAll(
-                            "incompatible\\Wtypes\\W*found\\W*:\\W([A-Za-z\\.]*)\\Wrequired:\\W([A-Za-z\\.]*)",
-                            "Vous avez mis une valeur de type $1 alors qu'il faut une valeur de type $2");
-            // Elimination des notes de warning de fin de compilation
-            if (sout.indexOf("Note:") != -1) {
-                sout = sout.substring(0, sout.indexOf("Note:")).trim();
+            messages.put(code, forms);
+        }
+    }
+
+    /**
+     * Une reformulation : le message entier doit correspondre au motif, ses
+     * groupes sont repris dans le remplacement.
+     */
+    private static class Message {
+        private final Pattern pattern;
+        private final String replacement;
+
+        private Message(Pattern pattern, String replacement) {
+            this.pattern = pattern;
+            this.replacement = replacement;
+        }
+    }
+
+    //
+    // Utilitaires de compilation
+    //
+
+    private static volatile JavaCompiler compiler;
+    /**
+     * Les gestionnaires de fichiers libres. Chaque compilation en prend un
+     * (ils ne peuvent servir à deux compilations à la fois) et le rend.
+     */
+    private static final ConcurrentLinkedQueue<StandardJavaFileManager> fileManagers =
+            new ConcurrentLinkedQueue<StandardJavaFileManager>();
+
+    /**
+     * Les constructions dérivées d'un Translator, dont seul le code Jvs est
+     * affiché.
+     */
+    private static final Pattern NOJAVAC = Pattern.compile("/\\*(.*)@<nojavac.*@nojavac>\\*/");
+
+    private static JavaCompiler getCompiler() {
+        if (compiler == null) {
+            JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+            if (javac == null) {
+                throw new IllegalStateException(
+                        "Impossible d'accéder au compilateur javac : il faut une JDK et non une JRE");
             }
-            // Impression du message d'erreur si il existe et retour du statut
-            if (sout.length() > 0) {
-                System.out.println(sout);
+            compiler = javac;
+        }
+        return compiler;
+    }
+
+    private static StandardJavaFileManager takeFileManager(String[] path) {
+        StandardJavaFileManager fileManager = fileManagers.poll();
+        if (fileManager == null) {
+            fileManager = Java2Class.getCompiler().getStandardFileManager(null, null, null);
+        }
+        List<File> classPath = null;
+        if (path != null && path.length > 0) {
+            classPath = new ArrayList<File>();
+            for (String file : path) {
+                if (file != null) {
+                    classPath.add(new File(file));
+                }
+            }
+        }
+        try {
+            fileManager.setLocation(StandardLocation.CLASS_PATH, classPath);
+        } catch (IOException e) {
+            fileManagers.offer(fileManager);
+            throw new IllegalStateException("Le classpath de la compilation est invalide : " + e);
+        }
+        return fileManager;
+    }
+
+    private static void releaseFileManager(StandardJavaFileManager fileManager) {
+        try {
+            fileManager.flush();
+            fileManagers.offer(fileManager);
+        } catch (IOException e) {
+            // Le gestionnaire est abandonné
+        }
+    }
+
+    /**
+     * Renvoie les options passées à <tt>javac</tt>.
+     *
+     * @param allErrors Si false, javac s'arrête de signaler les erreurs après
+     *                  la première.
+     * @return Les options, dans l'ordre de la ligne de commande.
+     */
+    public static List<String> getOptions(boolean allErrors) {
+        List<String> options = new ArrayList<String>(Arrays.asList("-g", "-nowarn"));
+        if (!allErrors) {
+            options.addAll(Arrays.asList("-Xmaxerrs", "1"));
+        }
+        return options;
+    }
+
+    /**
+     * Lance <tt>javac</tt>.
+     *
+     * @return La valeur true si la compilation a réussi.
+     */
+    private static boolean run(JavaFileManager fileManager, Iterable<? extends JavaFileObject> sources,
+                               Collector collector, boolean allErrors) {
+        try {
+            return Java2Class.getCompiler().getTask(null, fileManager, collector, getOptions(allErrors), null,
+                    sources).call();
+        } catch (RuntimeException e) {
+            throw new IllegalStateException(
+                    "Erreur système lors du lancement du compilateur javac : " + e, e);
+        }
+    }
+
+    /**
+     * Ajoute une erreur au message affiché : sa ligne, son message, la ligne
+     * du source et la position de l'erreur.
+     *
+     * @param source Le code source, ou null si il n'est pas connu.
+     * @param named  Donne le nom du fichier, si il y a plusieurs fichiers.
+     */
+    private static void appendError(StringBuilder report, JVSDiagnostic error, CharSequence source,
+                                    boolean named) {
+        if (error.getLineNumber() == Diagnostic.NOPOS) {
+            report.append("\n Erreur : ");
+        } else if (named && error.getFileName() != null) {
+            report.append('\n').append(new File(error.getFileName()).getName())
+                    .append(" : erreur de syntaxe ligne ").append(error.getLineNumber()).append(" :\n ");
+        } else {
+            report.append("\n Erreur de syntaxe ligne ").append(error.getLineNumber()).append(" :\n ");
+        }
+        report.append(error.getMessage(null));
+        String line = Java2Class.getLine(source, error.getLineNumber());
+        if (line != null) {
+            report.append('\n').append(NOJAVAC.matcher(line).replaceAll("$1")).append('\n');
+            for (long column = 1; column < error.getColumnNumber(); column++) {
+                report.append(line.length() >= column && line.charAt((int) column - 1) == '\t' ? '\t' : ' ');
             }
-            return sout.length() == 0;
+            report.append('^');
+        }
+    }
+
+    /**
+     * Donne une ligne d'un code source, à partir de 1, ou null si il n'y en a
+     * pas.
+     */
+    private static String getLine(CharSequence source, long number) {
+        if (source == null || number < 1) {
+            return null;
+        }
+        int start = 0;
+        for (long line = 1; line < number; line++) {
+            while (start < source.length() && source.charAt(start) != '\n') {
+                start++;
+            }
+            if (start++ >= source.length()) {
+                return null;
+            }
+        }
+        int end = start;
+        while (end < source.length() && source.charAt(end) != '\n' && source.charAt(end) != '\r') {
+            end++;
+        }
+        return source.subSequence(start, end).toString();
+    }
+
+    /**
+     * Reçoit les erreurs du compilateur et les reformule.
+     */
+    private static class Collector implements DiagnosticListener<JavaFileObject> {
+        private final boolean allErrors;
+        private final List<JVSDiagnostic> errors = new ArrayList<JVSDiagnostic>();
+        /**
+         * Le contenu des sources où il y a des erreurs, par nom.
+         */
+        private final Map<String, CharSequence> sources = new HashMap<String, CharSequence>();
+
+        private Collector(boolean allErrors) {
+            this.allErrors = allErrors;
+        }
+
+        @Override
+        public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+            if (diagnostic.getKind() != Diagnostic.Kind.ERROR || (!allErrors && !errors.isEmpty())) {
+                return;
+            }
+            String fileName = null;
+            if (diagnostic.getSource() != null) {
+                fileName = diagnostic.getSource().getName();
+                if (!sources.containsKey(fileName)) {
+                    try {
+                        sources.put(fileName, diagnostic.getSource().getCharContent(true));
+                    } catch (IOException e) {
+                        sources.put(fileName, null);
+                    }
+                }
+            }
+            errors.add(new JVSDiagnostic(Diagnostic.Kind.ERROR, fileName, diagnostic.getLineNumber(),
+                    diagnostic.getColumnNumber(), diagnostic.getStartPosition(), diagnostic.getEndPosition(),
+                    diagnostic.getCode(), translate(diagnostic.getCode(), diagnostic.getMessage(Locale.ENGLISH))));
+        }
+    }
+
+    /**
+     * Un code source en mémoire.
+     */
+    private static class Source extends SimpleJavaFileObject {
+        private final String name;
+        private final String code;
+
+        private Source(String name, String code) {
+            super(URI.create("string:///" + name), JavaFileObject.Kind.SOURCE);
+            this.name = name;
+            this.code = code;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
         }
     }
 }
@@ -3,14 +3,43 @@
  **************************************************************/
 package org.javascool.core;
 
+import org.javascool.tools.FileManager;
+
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Définit le mécanisme de compilation en ligne d'un code Java et de création du
  * Jar obtenu.
+ * <p>
+ * Plusieurs exportations peuvent tourner en même temps : chacune compile dans
+ * son propre espace de travail, dans le répertoire privé de l'utilisateur
+ * (voir {@link FileManager#getPrivateDir(String)}) : un autre utilisateur de
+ * la machine ne peut y déposer des classes. Les classes compilées sont
+ * gardées d'après l'empreinte SHA-256 des sources et des Jar dont dépend
+ * l'export : exporter de nouveau les mêmes sources ne fait que reconstruire
+ * le Jar. Les Jar dépendants y sont recopiés sans être
+ * extraits (voir {@link JarMerger}). Les espaces de travail et les classes qui
+ * n'ont pas servi depuis un jour sont effacés en tâche de fond.
+ * </p>
  *
  * @serial exclude
  * @see <a href="Java2Jar.java.html">code source</a>
@@ -68,28 +97,51 @@ public class Java2Jar {
     public static boolean compile(String jarFile, String mainClass,
                                   String javaFiles[], String dependentsJar[], boolean allErrors) {
         try {
-            String buildDir = ".build";
-            JarManager.rmDir(new File(buildDir));
-            new File(buildDir).mkdirs();
+            // Ce qui est mis dans le Jar, le premier l'emporte : les classes compilées, puis les dépendances de la
+            // dernière à la première
+            List<File> content = new ArrayList<File>();
+            List<String> path = new ArrayList<String>(Arrays.asList(
+                    System.getProperty("java.class.path").split(File.pathSeparator)));
+            MessageDigest digest = Java2Jar.newDigest();
+            digest.update(System.getProperty("java.version").getBytes(UTF8));
+            // Les classes sont compilées contre le classpath : un Jar mis à jour donne une autre compilation
+            for (String entry : path) {
+                File file = new File(entry);
+                digest.update((byte) 0);
+                digest.update((file.isFile() ? Java2Jar.getDigest(file) : entry).getBytes(UTF8));
+            }
             if (dependentsJar != null) {
                 for (String depJar : dependentsJar) {
-                    JarManager.jarExtract(depJar, buildDir);
+                    String jarDigest = Java2Jar.getDigest(new File(depJar));
+                    content.add(0, new File(depJar));
+                    path.add(depJar);
+                    digest.update((byte) 0);
+                    digest.update(jarDigest.getBytes(UTF8));
                 }
             }
-            for (int i = 0; i < javaFiles.length; i++) {
-                String file = javaFiles[i];
-                javaFiles[i] = buildDir + File.separator + file;
-                JarManager.copyFiles(file, javaFiles[i]);
+            for (String file : javaFiles) {
+                digest.update((byte) 0);
+                digest.update(file.getBytes(UTF8));
+                digest.update((byte) 0);
+                digest.update(Files.readAllBytes(new File(file).toPath()));
             }
-            if (!Java2Class.compile(javaFiles, allErrors)) {
+            File classes = new File(Java2Jar.getDirectory("classes"), Java2Jar.toHex(digest.digest()));
+            if (!classes.isDirectory()
+                    && !Java2Jar.build(classes, javaFiles, path.toArray(new String[path.size()]), allErrors)) {
                 return false;
             }
+            classes.setLastModified(System.currentTimeMillis());
+            content.add(0, classes);
             Manifest man = new Manifest();
             man.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
             man.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VENDOR,
                     "Java's Cool");
-            JarManager.jarCreate(jarFile, man, buildDir);
-            JarManager.rmDir(new File(buildDir));
+            JarMerger merger = new JarMerger().setManifest(man).setMetaInf(JarMerger.MetaInf.DROP);
+            for (File file : content) {
+                merger.add(file);
+            }
+            merger.merge(new File(jarFile));
+            Java2Jar.scheduleCleanUp();
             return true;
         } catch (IOException e) {
             throw new RuntimeException(
@@ -112,4 +164,199 @@ public class Java2Jar {
                     true);
         }
     }
+
+    //
+    // Espaces de travail et caches des exportations
+    //
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * Le temps après lequel un espace de travail est abandonné, en
+     * millisecondes (une heure).
+     */
+    private static final long WORKSPACE_DELAY = 60 * 60 * 1000L;
+    /**
+     * Le temps après lequel une compilation qui n'a pas servi est effacée, en
+     * millisecondes (un jour).
+     */
+    private static final long CACHE_DELAY = 24 * 60 * 60 * 1000L;
+    /**
+     * Le répertoire des exportations, avec les sous-répertoires
+     * <tt>jobs</tt> (les espaces de travail) et <tt>classes</tt> (les
+     * compilations), choisi à la première exportation.
+     */
+    private static volatile File root;
+    /**
+     * Les empreintes des Jar déjà lus, par chemin, taille et date.
+     */
+    private static final ConcurrentHashMap<String, String> digests = new ConcurrentHashMap<String, String>();
+    /**
+     * Efface les fichiers en tâche de fond.
+     */
+    private static final ExecutorService cleaner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "javascool-export-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static volatile long lastCleanUp = 0;
+
+    /**
+     * Compile les sources dans un nouvel espace de travail, puis garde les
+     * classes dans un répertoire de la cache.
+     *
+     * @param classes Le répertoire des classes compilées dans la cache.
+     * @return La valeur false si il y a des erreurs de compilation.
+     */
+    private static boolean build(File classes, String javaFiles[], String[] path, boolean allErrors)
+            throws IOException {
+        File workspace = Files.createTempDirectory(Java2Jar.getDirectory("jobs").toPath(), "job").toFile();
+        try {
+            String buildDir = new File(workspace, "build").getPath();
+            String sources[] = new String[javaFiles.length];
+            for (int i = 0; i < javaFiles.length; i++) {
+                sources[i] = buildDir + File.separator + javaFiles[i];
+                JarManager.copyFiles(javaFiles[i], sources[i]);
+            }
+            if (!Java2Class.compile(sources, allErrors, path)) {
+                return false;
+            }
+            Java2Jar.publish(new File(buildDir), classes);
+            return true;
+        } finally {
+            Java2Jar.remove(workspace);
+        }
+    }
+
+    /**
+     * Met des classes compilées dans la cache, en un seul renommage : une
+     * exportation ne voit jamais un répertoire à moitié écrit.
+     *
+     * @param directory Le répertoire construit.
+     * @param target    Son nom dans la cache.
+     */
+    private static void publish(File directory, File target) throws IOException {
+        try {
+            Files.move(directory.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Une autre exportation a déjà mis le même contenu
+            if (!target.isDirectory()) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Calcule l'empreinte d'un Jar, ou la reprend si le fichier n'a pas
+     * changé.
+     */
+    private static String getDigest(File jar) throws IOException {
+        String key = jar.getCanonicalPath() + File.pathSeparator + jar.length() + File.pathSeparator
+                + jar.lastModified();
+        String digest = digests.get(key);
+        if (digest == null) {
+            MessageDigest md = Java2Jar.newDigest();
+            InputStream in = new FileInputStream(jar);
+            try {
+                byte[] buffer = new byte[65536];
+                for (int n; (n = in.read(buffer)) != -1; ) {
+                    md.update(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            digest = Java2Jar.toHex(md.digest());
+            digests.put(key, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Renvoie le répertoire des exportations : le répertoire privé de
+     * l'utilisateur, ou à défaut un répertoire temporaire propre à cette
+     * exécution.
+     */
+    private static File getRoot() throws IOException {
+        File directory = root;
+        if (directory == null) {
+            synchronized (Java2Jar.class) {
+                if (root == null) {
+                    try {
+                        root = FileManager.getPrivateDir("export");
+                    } catch (IOException e) {
+                        Logger.getAnonymousLogger().log(Level.WARNING,
+                                "Pas de répertoire sûr pour les exportations, un répertoire temporaire est utilisé", e);
+                        root = Files.createTempDirectory("javascool-export").toFile(); // Privé sous POSIX
+                    }
+                }
+                directory = root;
+            }
+        }
+        return directory;
+    }
+
+    private static File getDirectory(String name) throws IOException {
+        File directory = new File(Java2Jar.getRoot(), name);
+        directory.mkdirs();
+        return directory;
+    }
+
+    /**
+     * Efface un répertoire en tâche de fond.
+     */
+    private static void remove(final File directory) {
+        cleaner.execute(new Runnable() {
+            @Override
+            public void run() {
+                JarManager.rmDir(directory);
+            }
+        });
+    }
+
+    /**
+     * Efface, au plus une fois par heure, les espaces de travail abandonnés
+     * et les compilations qui n'ont pas servi depuis un jour.
+     */
+    private static void scheduleCleanUp() {
+        final long now = System.currentTimeMillis();
+        if (now - lastCleanUp < WORKSPACE_DELAY) {
+            return;
+        }
+        lastCleanUp = now;
+        final File directory = root;
+        cleaner.execute(new Runnable() {
+            @Override
+            public void run() {
+                Java2Jar.removeOlder(new File(directory, "jobs"), now - WORKSPACE_DELAY);
+                Java2Jar.removeOlder(new File(directory, "classes"), now - CACHE_DELAY);
+            }
+        });
+    }
+
+    private static void removeOlder(File directory, long date) {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.lastModified() < date) {
+                JarManager.rmDir(file);
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 n'est pas disponible", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
 }
@@ -5,7 +5,15 @@ package org.javascool.core;
 
 import org.javascool.tools.FileManager;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 // Used to report a throwable
 
@@ -96,15 +104,9 @@ public class Jvs2Java extends Translator {
                             "$1").trim();
                     body.append("/* include " + name + "; */ ");
                     try {
-                        String include = FileManager.load(name + ".jvs");
-                        for (String iline : include.split("\n")) {
-                            if (iline.matches("^\\s*import[^;]*;\\s*$")) {
-                                head.append(iline);
-                            } else if (!iline
-                                    .matches("^\\s*package[^;]*;\\s*$")) {
-                                body.append(iline);
-                            }
-                        }
+                        String[] include = include(name);
+                        head.append(include[0]);
+                        body.append(include[1]);
                     } catch (Exception e) {
                         body.append(" - Impossible de lire correctement le fichier  inclure !!");
                     }
@@ -128,6 +130,7 @@ public class Jvs2Java extends Translator {
             }
             // Declares the proglet's core as a Runnable in the Applet
             Jvs2Java.uid++;
+            className = "JvsToJavaTranslated" + Jvs2Java.uid;
             head.append("public class JvsToJavaTranslated")
                     .append(Jvs2Java.uid).append(" implements Runnable{");
             head.append("  private static final long serialVersionUID = ")
@@ -136,19 +139,160 @@ public class Jvs2Java extends Translator {
             head.append("   try{ main(); } catch(Throwable e) { org.javascool.core.Jvs2Java.report(e); }");
             head.append("  }");
         }
-        String finalBody = body.toString().replaceAll("(while.*\\{)",
-                "$1 sleep(1);");
+        // Les boucles s'arrêtent quand le programme est arrêté
+        String finalBody = Translator.addCheckpoints(body.toString());
         if (progletTranslator != null) {
             finalBody = progletTranslator.translate(finalBody);
         }
         return head.toString() + finalBody + "}";
     }
 
+    /**
+     * Lit et découpe un fichier inclus. Un fichier local est pris dans
+     * l'{@link IncludeCache} tant qu'il n'a pas changé.
+     *
+     * @param name Le nom de l'include, sans l'extension <tt>.jvs</tt>.
+     * @return Les imports du fichier et son code sur une ligne.
+     */
+    private static String[] include(String name) throws Exception {
+        URL url = FileManager.getResourceURL(name + ".jvs", true);
+        IncludeCache.Expander<String[]> expander = new IncludeCache.Expander<String[]>() {
+            @Override
+            public String[] expand(String include) {
+                StringBuilder head = new StringBuilder(), body = new StringBuilder();
+                for (String iline : include.split("\n")) {
+                    if (iline.matches("^\\s*import[^;]*;\\s*$")) {
+                        head.append(iline);
+                    } else if (!iline
+                            .matches("^\\s*package[^;]*;\\s*$")) {
+                        body.append(iline);
+                    }
+                }
+                return new String[]{head.toString(), body.toString()};
+            }
+        };
+        if ("file".equals(url.getProtocol())) {
+            File file;
+            try {
+                file = new File(url.toURI());
+            } catch (Exception e) { // Les URL construites par le FileManager ne sont pas encodées
+                file = new File(url.getPath());
+            }
+            return IncludeCache.getInstance().get(file, Jvs2Java.class.getName(), expander);
+        }
+        return expander.expand(FileManager.load(url.toString()));
+    }
+
     /**
      * Renvoie le nom de la dernière classe Java générée lors de la traduction.
+     * <p>
+     * Après un {@link #compile(String, String)} trouvé dans le cache, c'est le
+     * nom de la classe de la première compilation de ce code.
+     * </p>
      */
     public String getClassName() {
-        return "JvsToJavaTranslated" + Jvs2Java.uid;
+        return className != null ? className : "JvsToJavaTranslated" + Jvs2Java.uid;
+    }
+
+    private String className = null;
+
+    /**
+     * Traduit et compile un code Jvs dans un répertoire de construction.
+     * <p>
+     * La compilation passe par le {@link CompileCache} : si le même code a déjà
+     * été compilé avec la même proglet (mêmes traducteurs, même classe
+     * <tt>Functions</tt>), les classes sont simplement écrites dans le
+     * répertoire et {@link #getClassName()} donne le nom de la classe
+     * compilée ; le <tt>.java</tt> n'est alors pas écrit. Seules les
+     * compilations réussies sont gardées, les erreurs étant affichées dans la
+     * console par {@link Java2Class}. Les codes avec des <tt>include</tt> sont
+     * toujours recompilés.
+     * </p>
+     *
+     * @param jvsCode  Le code Jvs à compiler.
+     * @param buildDir Le répertoire où sont écrits les <tt>.class</tt>, et le
+     *                 <tt>.java</tt> quand le code est réellement compilé.
+     * @return La valeur true en cas de succès, false si il y a des erreurs de
+     *         compilation.
+     */
+    public boolean compile(final String jvsCode, final String buildDir) {
+        new File(buildDir).mkdirs();
+        try {
+            CompileCache.Entry entry;
+            if (hasInclude(jvsCode)) {
+                entry = translateAndCompile(jvsCode, buildDir);
+            } else {
+                CompileCache.Key key = CompileCache.key(jvsCode, progletPackageName,
+                        Java2Class.getOptions(false).toString(), getKeyClasses());
+                entry = CompileCache.getInstance().get(key,
+                        new Callable<CompileCache.Entry>() {
+                            @Override
+                            public CompileCache.Entry call() throws IOException {
+                                return translateAndCompile(jvsCode, buildDir);
+                            }
+                        });
+            }
+            if (entry == null) {
+                return false;
+            }
+            className = entry.getClassName();
+            for (Map.Entry<String, byte[]> clazz : entry.getClasses().entrySet()) {
+                Files.write(new File(buildDir, clazz.getKey() + ".class").toPath(), clazz.getValue());
+            }
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException("Erreur d'entrées-sorties à la compilation : " + e);
+        }
+    }
+
+    /**
+     * Renvoie les classes dont dépend le code compilé : les traducteurs, et
+     * les <tt>Functions</tt> de la proglet, qui changent avec elle.
+     */
+    private Class<?>[] getKeyClasses() {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        classes.add(getClass());
+        if (progletTranslator != null) {
+            classes.add(progletTranslator.getClass());
+        }
+        if (progletPackageName != null) {
+            try {
+                classes.add(Class.forName(progletPackageName + ".Functions", false,
+                        Thread.currentThread().getContextClassLoader()));
+            } catch (ClassNotFoundException e) {
+                // La proglet n'a pas de Functions
+            }
+        }
+        return classes.toArray(new Class<?>[classes.size()]);
+    }
+
+    /**
+     * Indique si un code Jvs contient une ligne <tt>include</tt>.
+     */
+    private static boolean hasInclude(String jvsCode) {
+        for (String line : jvsCode.split("\n")) {
+            if (line.matches("^\\s*include[^;]*;\\s*$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Traduit et compile en mémoire un code Jvs. Le <tt>.java</tt> est tout de
+     * même écrit dans le répertoire de construction.
+     *
+     * @return La compilation, ou null si il y a des erreurs de compilation.
+     */
+    private CompileCache.Entry translateAndCompile(String jvsCode, String buildDir) throws IOException {
+        String javaCode = translate(jvsCode);
+        FileManager.save(new File(buildDir, getClassName() + ".java").getPath(), javaCode);
+        CompileCache.Entry entry = Java2Class.compile(getClassName(), javaCode, null, false);
+        if (entry.hasErrors()) {
+            System.out.println(Java2Class.getReport(entry.getDiagnostics(), javaCode));
+            return null;
+        }
+        return entry;
     }
 
     // Counter used to increment the serialVersionUID in order to reload the
@@ -0,0 +1,223 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.core;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Une exécution d'un programme compilé. Le programme tourne dans son propre groupe de threads : les threads qu'il crée
+ * y sont aussi. Quand l'exécution est finie, {@link #release()} libère tout ce que le programme retenait :
+ * <ul>
+ * <li>ses threads, interrompus puis arrêtés s'ils ne s'arrêtent pas d'eux-mêmes ;</li>
+ * <li>les variables statiques de ses classes ;</li>
+ * <li>son chargeur de classes, qui peut alors être ramassé avec ses classes.</li>
+ * </ul>
+ * Un serveur qui exécute des milliers de programmes ne voit ainsi pas sa mémoire des classes (metaspace) grandir.
+ * Les compteurs de {@link JVSClassLoader} permettent de le vérifier.
+ *
+ * @since 5.0
+ */
+public class RunHandle {
+    /**
+     * Le temps laissé aux threads du programme pour s'arrêter après avoir été interrompus, en millisecondes.
+     */
+    private static final long STOP_DELAY = 1000;
+
+    private final String name;
+    /**
+     * Le groupe des threads du programme, créé à son lancement.
+     */
+    private ThreadGroup group;
+    private ClassLoader classLoader;
+    private Thread thread;
+    private boolean released = false;
+
+    /**
+     * Prépare une exécution.
+     *
+     * @param classLoader Le chargeur des classes du programme
+     * @param name        Le nom de l'exécution, donné au groupe et au thread du programme
+     */
+    public RunHandle(ClassLoader classLoader, String name) {
+        if (classLoader == null)
+            throw new IllegalArgumentException("Une exécution a besoin du chargeur des classes du programme");
+        this.classLoader = classLoader;
+        this.name = name;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions de l'exécution
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Lance le programme dans un nouveau thread d'un nouveau groupe. Le thread est créé par le thread appelant, dont il
+     * hérite les variables {@link InheritableThreadLocal}. Le groupe est un groupe démon : il disparaît de lui-même
+     * quand son dernier thread se termine, sans rester accroché à son groupe parent.
+     *
+     * @param program Le programme
+     * @return Le thread du programme
+     * @throws IllegalStateException Si le programme a déjà été lancé ou si l'exécution est libérée
+     */
+    @SuppressWarnings("deprecation")
+    public synchronized Thread start(Runnable program) {
+        if (released)
+            throw new IllegalStateException("L'exécution a été libérée");
+        if (thread != null)
+            throw new IllegalStateException("Le programme a déjà été lancé");
+        group = new ThreadGroup(name);
+        group.setDaemon(true);
+        thread = new Thread(group, program, name);
+        thread.setDaemon(true);
+        thread.setContextClassLoader(classLoader);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Attend la fin du thread du programme.
+     *
+     * @param millis Le temps maximum d'attente en millisecondes, 0 pour attendre sans limite
+     * @return Vrai si le programme est fini
+     * @throws InterruptedException Si l'attente est interrompue
+     */
+    public boolean join(long millis) throws InterruptedException {
+        Thread program = getThread();
+        if (program == null)
+            return true;
+        program.join(millis);
+        return !program.isAlive();
+    }
+
+    /**
+     * Vrai si un thread du programme tourne encore.
+     */
+    public boolean isAlive() {
+        ThreadGroup threads = getGroup();
+        return threads != null && threads.activeCount() > 0;
+    }
+
+    /**
+     * Interrompt tous les threads du programme.
+     */
+    public void interrupt() {
+        ThreadGroup threads = getGroup();
+        if (threads != null)
+            threads.interrupt();
+    }
+
+    /**
+     * Libère l'exécution : arrête les threads du programme, remet à zéro les variables statiques de ses classes et
+     * oublie son chargeur de classes. Ne fait rien si l'exécution est déjà libérée.
+     */
+    public void release() {
+        ClassLoader loader;
+        synchronized (this) {
+            if (released)
+                return;
+            released = true;
+            loader = classLoader;
+            classLoader = null;
+            thread = null;
+        }
+        stopThreads();
+        if (loader instanceof JVSClassLoader) {
+            for (Class<?> clazz : ((JVSClassLoader) loader).getDefinedClasses())
+                clearStatics(clazz);
+        }
+    }
+
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    public synchronized Thread getThread() {
+        return thread;
+    }
+
+    private synchronized ThreadGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * Donne les threads du programme qui tournent encore, le sien et ceux qu'il a créés.
+     */
+    public Thread[] getThreads() {
+        ThreadGroup running = getGroup();
+        if (running == null)
+            return new Thread[0];
+        Thread[] threads = new Thread[running.activeCount() + 16];
+        int count = running.enumerate(threads, true);
+        Thread[] result = new Thread[count];
+        System.arraycopy(threads, 0, result, 0, count);
+        return result;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Interrompt les threads du groupe, leur laisse {@link #STOP_DELAY} pour finir puis arrête ceux qui restent.
+     */
+    @SuppressWarnings("deprecation")
+    private void stopThreads() {
+        interrupt();
+        long end = System.currentTimeMillis() + STOP_DELAY;
+        for (Thread running : getThreads()) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0)
+                break;
+            try {
+                running.join(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Thread running : getThreads()) {
+            Logger.getAnonymousLogger().log(Level.WARNING, "Le thread " + running.getName() +
+                    " ne s'arrête pas, il est tué");
+            try {
+                running.stop();
+            } catch (UnsupportedOperationException e) {
+                Logger.getAnonymousLogger().log(Level.WARNING, "Impossible de tuer le thread " + running.getName());
+            }
+        }
+    }
+
+    /**
+     * Remet à null les variables statiques non finales d'une classe du programme, pour que les objets qu'elles
+     * retiennent puissent être ramassés même si une référence à la classe traîne encore.
+     */
+    private static void clearStatics(Class<?> clazz) {
+        try {
+            for (Field field : clazz.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers) && !field.getType().isPrimitive()) {
+                    field.setAccessible(true);
+                    field.set(null, null);
+                }
+            }
+        } catch (Exception e) {
+            Logger.getAnonymousLogger().log(Level.FINE, "Impossible de libérer les variables de " + clazz, e);
+        } catch (LinkageError e) {
+            Logger.getAnonymousLogger().log(Level.FINE, "Impossible de libérer les variables de " + clazz, e);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.core;
+
+/**
+ * Le résultat d'une exécution surveillée par un {@link RunSupervisor} : comment elle s'est terminée et ce qu'elle a
+ * consommé.
+ *
+ * @since 5.0
+ */
+public final class RunResult {
+    /**
+     * La façon dont une exécution s'est terminée.
+     */
+    public enum Status {
+        /**
+         * Le programme a fini de lui-même.
+         */
+        FINISHED,
+        /**
+         * Le programme a été arrêté : il tournait depuis trop longtemps.
+         */
+        DEADLINE_EXCEEDED,
+        /**
+         * Le programme a été arrêté : il a trop calculé.
+         */
+        CPU_EXCEEDED,
+        /**
+         * Le programme a été arrêté : il a alloué trop de mémoire.
+         */
+        ALLOCATION_EXCEEDED,
+        /**
+         * Le programme a été arrêté à la demande de l'utilisateur.
+         */
+        CANCELLED
+    }
+
+    private final Status status;
+    private final long wallTime;
+    private final long cpuTime;
+    private final long allocatedBytes;
+
+    RunResult(Status status, long wallTime, long cpuTime, long allocatedBytes) {
+        this.status = status;
+        this.wallTime = wallTime;
+        this.cpuTime = cpuTime;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Vrai si le programme a été arrêté parce qu'il a dépassé une limite.
+     */
+    public boolean isLimitExceeded() {
+        return status == Status.DEADLINE_EXCEEDED || status == Status.CPU_EXCEEDED ||
+                status == Status.ALLOCATION_EXCEEDED;
+    }
+
+    /**
+     * La durée de l'exécution, en millisecondes.
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * Le temps de calcul des threads du programme, en millisecondes, ou -1 si la JVM ne le mesure pas.
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * Le nombre d'octets alloués par les threads du programme, ou -1 si la JVM ne le mesure pas.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Donne le message à afficher à l'élève quand le programme a été arrêté.
+     *
+     * @return Le message, ou null si le programme a fini de lui-même
+     */
+    public String getMessage() {
+        switch (status) {
+            case DEADLINE_EXCEEDED:
+                return "Temps d'exécution dépassé (" + this + ")";
+            case CPU_EXCEEDED:
+                return "Temps de calcul dépassé (" + this + ")";
+            case ALLOCATION_EXCEEDED:
+                return "Mémoire utilisée dépassée (" + this + ")";
+            case CANCELLED:
+                return "Programme arrêté !";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Décrit les ressources consommées (ex. "durée : 1200 ms, calcul : 1150 ms, mémoire allouée : 12 Mo").
+     */
+    @Override
+    public String toString() {
+        StringBuilder usage = new StringBuilder("durée : ").append(wallTime).append(" ms");
+        if (cpuTime >= 0)
+            usage.append(", calcul : ").append(cpuTime).append(" ms");
+        if (allocatedBytes >= 0)
+            usage.append(", mémoire allouée : ").append(allocatedBytes / (1024 * 1024)).append(" Mo");
+        return usage.toString();
+    }
+}
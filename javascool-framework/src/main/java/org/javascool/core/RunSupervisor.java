@@ -0,0 +1,309 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Surveille l'exécution d'un programme d'élève et l'arrête s'il dépasse une de ses limites :
+ * <ul>
+ * <li>une durée maximale ({@link #setDeadline(long)}) ;</li>
+ * <li>un temps de calcul maximal, somme de celui de tous ses threads ({@link #setCpuBudget(long)}) ;</li>
+ * <li>un nombre maximal d'octets alloués par ses threads ({@link #setAllocationBudget(long)}).</li>
+ * </ul>
+ * Une boucle infinie ou une allocation sans fin ne prend ainsi pas un processeur ou la mémoire à tous les autres. Le
+ * temps de calcul et les allocations sont lus par le {@link ThreadMXBean} de la JVM, tous les {@link #POLL_DELAY}
+ * millisecondes : une limite peut être dépassée d'autant avant que le programme ne soit arrêté.
+ * <p/>
+ * Un programme arrêté est libéré avec {@link RunHandle#release()} : ses threads sont interrompus, puis tués s'ils ne
+ * s'arrêtent pas. Une limite à 0 n'est pas surveillée. Un superviseur peut surveiller plusieurs exécutions, y compris
+ * en même temps.
+ *
+ * @since 5.0
+ */
+public class RunSupervisor {
+    /**
+     * L'intervalle entre deux mesures des threads du programme, en millisecondes.
+     */
+    public static final long POLL_DELAY = 20;
+
+    private long deadline = 0;
+    private long cpuBudget = 0;
+    private long allocationBudget = 0;
+
+    /**
+     * Fixe la durée maximale de l'exécution.
+     *
+     * @param millis La durée en millisecondes, 0 pour ne pas la limiter
+     * @return Ce superviseur
+     */
+    public RunSupervisor setDeadline(long millis) {
+        deadline = checkLimit(millis);
+        return this;
+    }
+
+    /**
+     * Fixe le temps de calcul maximal de l'exécution.
+     *
+     * @param millis Le temps en millisecondes, 0 pour ne pas le limiter
+     * @return Ce superviseur
+     */
+    public RunSupervisor setCpuBudget(long millis) {
+        cpuBudget = checkLimit(millis);
+        return this;
+    }
+
+    /**
+     * Fixe le nombre maximal d'octets que l'exécution peut allouer. Ce sont toutes les allocations, pas la mémoire
+     * retenue : un programme qui crée beaucoup d'objets temporaires les compte tous.
+     *
+     * @param bytes Le nombre d'octets, 0 pour ne pas le limiter
+     * @return Ce superviseur
+     */
+    public RunSupervisor setAllocationBudget(long bytes) {
+        allocationBudget = checkLimit(bytes);
+        return this;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public long getCpuBudget() {
+        return cpuBudget;
+    }
+
+    public long getAllocationBudget() {
+        return allocationBudget;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions de surveillance
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Lance un programme dans une exécution et le surveille jusqu'à sa fin. Le thread du programme mesure lui-même ce
+     * qu'il a consommé quand il finit : même un programme très court a un résultat exact.
+     *
+     * @param run     L'exécution, pas encore lancée
+     * @param program Le programme
+     * @return Le résultat de l'exécution
+     * @see #supervise(RunHandle)
+     */
+    public RunResult run(RunHandle run, final Runnable program) {
+        final Usage usage = new Usage();
+        run.start(new Runnable() {
+            public void run() {
+                try {
+                    program.run();
+                } finally {
+                    usage.measure(Thread.currentThread());
+                }
+            }
+        });
+        return supervise(run, usage);
+    }
+
+    /**
+     * Surveille une exécution déjà lancée jusqu'à sa fin, ou l'arrête si elle dépasse une limite, si elle est annulée
+     * ({@link #isCancelled()}) ou si le thread qui la surveille est interrompu. Ce qu'un thread du programme consomme
+     * entre sa dernière mesure et sa fin n'est pas compté.
+     *
+     * @param run L'exécution
+     * @return Le résultat de l'exécution
+     */
+    public RunResult supervise(RunHandle run) {
+        return supervise(run, new Usage());
+    }
+
+    /**
+     * Permet d'arrêter une exécution de l'extérieur, par exemple quand celui qui attend son résultat est parti. La
+     * méthode est appelée à chaque mesure.
+     *
+     * @return Vrai pour arrêter l'exécution
+     */
+    protected boolean isCancelled() {
+        return false;
+    }
+
+    private RunResult supervise(RunHandle run, Usage usage) {
+        long start = System.nanoTime();
+        RunResult.Status status = RunResult.Status.FINISHED;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                // Le thread principal peut être fini alors que ceux qu'il a créés tournent encore
+                if (run.join(POLL_DELAY) && run.isAlive())
+                    Thread.sleep(POLL_DELAY);
+                for (Thread thread : run.getThreads())
+                    usage.measure(thread);
+                if (!run.isAlive())
+                    break;
+                if (isCancelled()) {
+                    status = RunResult.Status.CANCELLED;
+                    break;
+                }
+                if (deadline > 0 && elapsed(start) >= deadline) {
+                    status = RunResult.Status.DEADLINE_EXCEEDED;
+                    break;
+                }
+                if (cpuBudget > 0 && usage.cpu >= 0 && TimeUnit.NANOSECONDS.toMillis(usage.cpu) >= cpuBudget) {
+                    status = RunResult.Status.CPU_EXCEEDED;
+                    break;
+                }
+                if (allocationBudget > 0 && usage.allocated >= allocationBudget) {
+                    status = RunResult.Status.ALLOCATION_EXCEEDED;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            status = RunResult.Status.CANCELLED;
+            interrupted = true;
+        }
+        if (status != RunResult.Status.FINISHED)
+            run.release(); // Interrompt le programme, lui laisse le temps de finir puis le tue
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return new RunResult(status, elapsed(start), usage.cpu < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(usage.cpu),
+                usage.allocated);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static long checkLimit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Une limite ne peut pas être négative");
+        return limit;
+    }
+
+    private static long elapsed(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Ce qu'ont consommé les threads d'une exécution. Les compteurs de la JVM disparaissent avec leur thread : on
+     * garde la dernière mesure de chacun.
+     */
+    private static class Usage {
+        private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private static final boolean cpuSupported, allocationSupported;
+
+        static {
+            cpuSupported = enable("le temps de calcul", threads.isThreadCpuTimeSupported(), new Runnable() {
+                public void run() {
+                    if (!threads.isThreadCpuTimeEnabled())
+                        threads.setThreadCpuTimeEnabled(true);
+                }
+            });
+            allocationSupported = enable("les allocations", hasAllocations(), new Runnable() {
+                public void run() {
+                    Allocations.enable(threads);
+                }
+            });
+        }
+
+        /**
+         * Les dernières mesures de chaque thread : temps de calcul en nanosecondes et octets alloués.
+         */
+        private final Map<Long, long[]> measures = new HashMap<Long, long[]>();
+        /**
+         * Les totaux, -1 quand la JVM ne les mesure pas.
+         */
+        private volatile long cpu = cpuSupported ? 0 : -1, allocated = allocationSupported ? 0 : -1;
+
+        /**
+         * Mesure un thread vivant. Les mesures ne font que croître : celle faite par le thread lui-même à sa fin
+         * n'est pas remplacée par une plus ancienne.
+         */
+        synchronized void measure(Thread thread) {
+            long id = thread.getId();
+            long time = cpuSupported ? threads.getThreadCpuTime(id) : -1;
+            long bytes = allocationSupported ? Allocations.getBytes(threads, id) : -1;
+            if (time < 0 && bytes < 0)
+                return; // Le thread est déjà fini
+            long[] last = measures.get(id);
+            if (last == null)
+                measures.put(id, last = new long[2]);
+            if (cpuSupported && time > last[0]) {
+                cpu += time - last[0];
+                last[0] = time;
+            }
+            if (allocationSupported && bytes > last[1]) {
+                allocated += bytes - last[1];
+                last[1] = bytes;
+            }
+        }
+
+        private static boolean enable(String counter, boolean supported, Runnable enabler) {
+            if (supported) {
+                try {
+                    enabler.run();
+                    return true;
+                } catch (UnsupportedOperationException e) {
+                    supported = false;
+                } catch (SecurityException e) {
+                    supported = false;
+                }
+            }
+            Logger.getAnonymousLogger().log(Level.WARNING, "La JVM ne mesure pas " + counter +
+                    " des threads, cette limite ne sera pas surveillée");
+            return false;
+        }
+
+        /**
+         * Vrai si la JVM a l'extension <tt>com.sun.management.ThreadMXBean</tt> et sait compter les allocations. Elle
+         * est cherchée par son nom : sur une JVM qui ne l'a pas, {@link Allocations} n'est jamais chargée.
+         */
+        private static boolean hasAllocations() {
+            try {
+                return Class.forName("com.sun.management.ThreadMXBean").isInstance(threads)
+                        && Allocations.isSupported(threads);
+            } catch (ClassNotFoundException e) {
+                return false;
+            } catch (LinkageError e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Les compteurs d'allocation de l'extension <tt>com.sun.management.ThreadMXBean</tt> (HotSpot, OpenJDK). Cette
+     * classe ne doit être utilisée qu'après {@link Usage#hasAllocations()}.
+     */
+    private static class Allocations {
+        static boolean isSupported(ThreadMXBean threads) {
+            return ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+        }
+
+        static void enable(ThreadMXBean threads) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+            if (!bean.isThreadAllocatedMemoryEnabled())
+                bean.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        static long getBytes(ThreadMXBean threads, long id) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(id);
+        }
+    }
+}
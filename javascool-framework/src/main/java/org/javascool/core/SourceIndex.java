@@ -0,0 +1,284 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.javascool.core;
+
+/**
+ * L'index d'un code source, calculé une fois pour répondre aux fonctions de scan de {@link Translator} sans relire le
+ * code.
+ * <p>
+ * L'index lit le code comme {@link Translator#scanComments(String, int, boolean)} : il passe par dessus les espaces,
+ * les commentaires <tt>/* . . *</tt><tt>/</tt> et <tt>// . . /n</tt> et les chaînes <tt>" . . "</tt>. Il garde :
+ * <ul>
+ * <li>pour chaque index, la fin des espaces, commentaires et chaînes qui y commencent ;</li>
+ * <li>pour chaque parenthèse, accolade ou crochet ouvrant, celui qui le ferme ;</li>
+ * <li>pour chaque index, le prochain point-virgule qui finit une instruction.</li>
+ * </ul>
+ * Chaque question est alors répondue en temps constant, sans allocation. Un index ne change pas et peut être partagé
+ * entre threads.
+ * </p>
+ * <p>
+ * Les réponses sont celles des fonctions de scan d'origine, même pour un index pris au milieu d'un commentaire ou
+ * d'une chaîne : le code est alors relu depuis cet index, comme avant.
+ * </p>
+ *
+ * @see Translator#scanInstruction(String, int)
+ * @since 5.0
+ */
+public final class SourceIndex {
+    private final String source;
+    /**
+     * Pour chaque index, l'index qui suit les espaces, commentaires et chaînes qui y commencent.
+     */
+    private final int[] blank;
+    /**
+     * Les index où s'arrête la lecture du code depuis le début du texte.
+     */
+    private final boolean[] read;
+    /**
+     * Pour chaque parenthèse, accolade ou crochet ouvrant lu, l'index de sa fermeture, ou -1.
+     */
+    private final int[] closing;
+    /**
+     * Pour chaque index, l'index du prochain point-virgule lu, ou -1.
+     */
+    private final int[] semicolon;
+
+    /**
+     * Indexe un code source.
+     *
+     * @param source Le contenu du texte à analyser
+     */
+    public SourceIndex(String source) {
+        this.source = source;
+        int length = source.length();
+        blank = new int[length + 1];
+        read = new boolean[length];
+        closing = new int[length];
+        semicolon = new int[length + 1];
+        indexBlanks();
+        // La lecture du code depuis le début : chaque index lu mène au suivant
+        for (int i = 0; i < length; i = step(i)) {
+            read[i] = true;
+        }
+        indexBrackets();
+        semicolon[length] = -1;
+        for (int i = length - 1; i >= 0; i--) {
+            semicolon[i] = read[i] && source.charAt(i) == ';' ? i : semicolon[i + 1];
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions de scan
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Passe par dessus espaces, commentaires et chaines de caratères.
+     *
+     * @param offset L'index de départ
+     * @return L'index qui suit le texte éliminé, donc l'offset si il n'y en a pas
+     * @see Translator#scanComments(String, int, boolean)
+     */
+    public int skipComments(int offset) {
+        if (offset < 0) {
+            throw new StringIndexOutOfBoundsException(offset);
+        }
+        return offset < source.length() ? blank[offset] : offset;
+    }
+
+    /**
+     * Vrai si le caractère à un index est du code : ni un espace, ni dans un commentaire ou une chaîne.
+     */
+    public boolean isCode(int offset) {
+        return 0 <= offset && offset < source.length() && read[offset] && blank[offset] == offset;
+    }
+
+    /**
+     * Trouve la parenthèse, l'accolade ou le crochet qui ferme celui à un index donné. Les autres sortes de
+     * parenthèses ne comptent pas : <tt>closing</tt> d'une accolade ne regarde que les accolades.
+     *
+     * @param open L'index de la parenthèse, l'accolade ou le crochet ouvrant
+     * @return L'index de la fermeture, ou -1 si il n'y en a pas
+     * @throws IllegalArgumentException Si il n'y a pas de parenthèse, d'accolade ou de crochet ouvrant à cet index
+     */
+    public int closing(int open) {
+        char close = 0 <= open && open < source.length() ? closerOf(source.charAt(open)) : 0;
+        if (close == 0) {
+            throw new IllegalArgumentException("Pas de parenthèse ouvrante à l'index " + open);
+        }
+        if (read[open]) {
+            return closing[open];
+        }
+        // Un index que la lecture depuis le début saute : le code est relu depuis là
+        char start = source.charAt(open);
+        int depth = 0;
+        for (int i = open + 1; i < source.length(); ) {
+            char c = source.charAt(i);
+            if (c == close) {
+                if (depth == 0) {
+                    return i;
+                }
+                depth--;
+                i++;
+            } else if (c == start) {
+                if (read[i]) {
+                    if (closing[i] == -1) {
+                        return -1;
+                    }
+                    i = closing[i] + 1;
+                } else {
+                    depth++;
+                    i++;
+                }
+            } else {
+                i = step(i);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Trouve le point-virgule qui finit l'instruction commençant à un index, en passant par dessus espaces,
+     * commentaires et chaînes.
+     *
+     * @param offset L'index de départ
+     * @return L'index du point-virgule, ou -1 si il n'y en a pas
+     */
+    public int semicolon(int offset) {
+        for (int i = skipComments(offset); i < source.length(); i = step(i)) {
+            if (read[i]) {
+                return semicolon[i];
+            }
+            if (source.charAt(i) == ';') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Trouve la fin d'une instruction Java, de la forme <tt>{ ../..}</tt> ou <tt>../..;</tt>.
+     *
+     * @param offset L'index de départ
+     * @return Un plus l'index du dernier caractère de l'instruction, ou -1 si il n'y en a pas
+     * @see Translator#scanInstruction(String, int)
+     */
+    public int instructionEnd(int offset) {
+        int begin = skipComments(offset);
+        if (begin < source.length() && source.charAt(begin) == '{') {
+            int end = closing(begin);
+            if (end != -1) {
+                return end + 1;
+            }
+        }
+        int end = semicolon(begin);
+        return end == -1 ? -1 : end + 1;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Le prochain index lu : après les espaces, commentaires et chaînes qui commencent à cet index, ou le caractère
+     * suivant.
+     */
+    private int step(int offset) {
+        return blank[offset] > offset ? blank[offset] : offset + 1;
+    }
+
+    /**
+     * Calcule {@link #blank} de la fin vers le début, en suivant les fins de commentaire et de chaîne à venir.
+     */
+    private void indexBlanks() {
+        int length = source.length();
+        blank[length] = length;
+        // Le prochain '\n' à partir de i + 2, "*" + "/" à partir de i + 2 et '"' non échappé à partir de i + 1
+        int newline = -1, commentEnd = -1, quote = -1;
+        for (int i = length - 1; i >= 0; i--) {
+            char c = source.charAt(i);
+            if (i + 2 < length) {
+                if (source.charAt(i + 2) == '\n') {
+                    newline = i + 2;
+                }
+                if (source.startsWith("*/", i + 2)) {
+                    commentEnd = i + 2;
+                }
+            }
+            if (i + 1 < length && source.charAt(i + 1) == '"' && c != '\\') {
+                quote = i + 1;
+            }
+            int end = i;
+            if (Character.isWhitespace(c)) {
+                end = i + 1;
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '*') {
+                end = commentEnd == -1 ? i : commentEnd + 2;
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '/') {
+                end = newline == -1 ? i : newline + 1;
+            } else if (c == '"') {
+                end = quote == -1 ? i : quote + 1;
+            }
+            blank[i] = end > i ? blank[end] : i;
+        }
+    }
+
+    /**
+     * Calcule {@link #closing} sur les index lus, avec une pile par sorte de parenthèse.
+     */
+    private void indexBrackets() {
+        // Les trois piles sont rangées dans le même tableau : les parenthèses, puis les accolades, puis les crochets
+        int[] count = new int[3];
+        for (int i = 0; i < source.length(); i = step(i)) {
+            closing[i] = -1;
+            int kind = "({[".indexOf(source.charAt(i));
+            if (kind != -1) {
+                count[kind]++;
+            }
+        }
+        int[] stack = new int[count[0] + count[1] + count[2]];
+        int[] bottom = {0, count[0], count[0] + count[1]};
+        int[] top = bottom.clone();
+        for (int i = 0; i < source.length(); i = step(i)) {
+            char c = source.charAt(i);
+            int kind = "({[".indexOf(c);
+            if (kind != -1) {
+                stack[top[kind]++] = i;
+            } else if ((kind = ")}]".indexOf(c)) != -1 && top[kind] > bottom[kind]) {
+                closing[stack[--top[kind]]] = i;
+            }
+        }
+    }
+
+    /**
+     * La fermeture d'une parenthèse, d'une accolade ou d'un crochet ouvrant, ou 0 pour un autre caractère.
+     */
+    private static char closerOf(char c) {
+        switch (c) {
+            case '(':
+                return ')';
+            case '{':
+                return '}';
+            case '[':
+                return ']';
+            default:
+                return 0;
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package org.javascool.core;
 
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
 /**
  * Définit une traduction d'un code Jvs en code Java standard.
  * <p>
@@ -101,9 +106,31 @@ public class Translator {
      */
     public static int[] scanConstruct(String string, int offset, String start,
                                       String stop, String escape, boolean recurse, boolean code) {
+        SourceIndex source = code && escape == null ? Translator.getIndex(string) : null;
+        if (source != null && (0 <= offset) && (offset < string.length()) && (stop != null)) {
+            int begin = source.skipComments(offset);
+            int end = -1;
+            if (start == null && ";".equals(stop)) {
+                end = source.semicolon(begin);
+            } else if (recurse && start != null && isBrackets(start, stop)) {
+                end = begin < string.length() && string.startsWith(start, begin) ? source.closing(begin) : -1;
+            } else {
+                return Translator.scan(string, offset, start, stop, escape, recurse, code);
+            }
+            return end == -1 ? new int[]{-1, offset} : new int[]{begin, end + 1};
+        }
+        return Translator.scan(string, offset, start, stop, escape, recurse, code);
+    }
+
+    /**
+     * Le scan d'origine de {@link #scanConstruct(String, int, String, String, String, boolean, boolean)}, qui relit
+     * le texte.
+     */
+    private static int[] scan(String string, int offset, String start,
+                              String stop, String escape, boolean recurse, boolean code) {
         int index[] = {-1, offset};
         if ((0 <= offset) && (offset < string.length()) && (stop != null)) {
-            index[0] = code ? Translator.scanComments(string, offset, false)
+            index[0] = code ? Translator.skip(string, offset, false)
                     : Translator.scanSpaces(string, offset);
             if (!((index[0] < string.length()) && ((start == null) || string
                     .startsWith(start, index[0])))) {
@@ -116,7 +143,7 @@ public class Translator {
                     index[1] += escape.length();
                 } else if (recurse && (start != null && index[1] > index[0])
                         && string.startsWith(start, index[1])) {
-                    int next[] = Translator.scanConstruct(string, index[1],
+                    int next[] = Translator.scan(string, index[1],
                             start, stop, escape, recurse, code);
                     if (next[0] == -1) {
                         return new int[]{-1, offset};
@@ -124,7 +151,7 @@ public class Translator {
                         index[1] = next[1];
                     }
                 } else if (code) {
-                    index[1] = Translator.scanComments(string, index[1], true);
+                    index[1] = Translator.skip(string, index[1], true);
                 } else {
                     index[1]++;
                 }
@@ -165,6 +192,11 @@ public class Translator {
      *         </p>
      */
     public static int[] scanInstruction(String string, int offset) {
+        SourceIndex source = Translator.getIndex(string);
+        if (source != null && (0 <= offset) && (offset < string.length())) {
+            int end = source.instructionEnd(offset);
+            return end == -1 ? new int[]{-1, offset} : new int[]{source.skipComments(offset), end};
+        }
         int index[] = Translator.scanConstruct(string, offset, "{", "}", null,
                 true, true);
         if (index[0] == -1) {
@@ -191,15 +223,27 @@ public class Translator {
      *         offset plus un si incémente) si il n'y en a pas.
      */
     public static int scanComments(String string, int offset, boolean next) {
+        SourceIndex source = Translator.getIndex(string);
+        if (source != null) {
+            int end = source.skipComments(offset);
+            return next && end == offset ? offset + 1 : end;
+        }
+        return Translator.skip(string, offset, next);
+    }
+
+    /**
+     * Le scan d'origine de {@link #scanComments(String, int, boolean)}, qui relit le texte.
+     */
+    private static int skip(String string, int offset, boolean next) {
         int offset0 = offset;
         for (boolean loop = true; loop; ) {
             int offset1 = offset;
             offset = Translator.scanSpaces(string, offset);
-            offset = Translator.scanConstruct(string, offset, "/*", "*/", null,
+            offset = Translator.scan(string, offset, "/*", "*/", null,
                     false, false)[1];
-            offset = Translator.scanConstruct(string, offset, "//", "\n", null,
+            offset = Translator.scan(string, offset, "//", "\n", null,
                     false, false)[1];
-            offset = Translator.scanConstruct(string, offset, "\"", "\"",
+            offset = Translator.scan(string, offset, "\"", "\"",
                     "\\\"", false, false)[1];
             loop = offset > offset1;
         }
@@ -221,4 +265,342 @@ public class Translator {
         }
         return offset;
     }
+
+    /**
+     * Pour chaque thread, l'index du dernier texte scanné plusieurs fois, et
+     * le dernier texte scanné : des traductions en parallèle ne se prennent
+     * pas leur index.
+     */
+    private static final ThreadLocal<IndexSlot> lastIndex = new ThreadLocal<IndexSlot>() {
+        @Override
+        protected IndexSlot initialValue() {
+            return new IndexSlot();
+        }
+    };
+
+    private static final class IndexSlot {
+        private SourceIndex index;
+        private String string;
+    }
+
+    /**
+     * Donne l'index d'un texte pour les fonctions de scan.
+     * <p>
+     * Un Translator scanne souvent le même texte à plusieurs index : dès le
+     * deuxième scan d'un texte, il est indexé une fois pour toutes (voir
+     * {@link SourceIndex}) et chaque scan répond sans relire le texte. Un
+     * texte scanné une seule fois n'est pas indexé, ce qui coûterait plus que
+     * le scan lui-même.
+     * </p>
+     * <p>
+     * Un seul texte est gardé par thread : un Translator qui réécrit son
+     * texte entre deux scans fait indexer chaque nouvelle version dès son
+     * deuxième scan, ce qui coûte une lecture complète par réécriture.
+     * Alterner entre deux textes dans le même thread revient au scan sans
+     * index.
+     * </p>
+     *
+     * @param string Le texte à analyser.
+     * @return L'index du texte, ou null si c'est son premier scan.
+     */
+    private static SourceIndex getIndex(String string) {
+        IndexSlot slot = lastIndex.get();
+        if (slot.index != null && slot.index.getSource() == string) {
+            return slot.index;
+        }
+        if (slot.string != string) {
+            slot.string = string;
+            return null;
+        }
+        slot.index = new SourceIndex(string);
+        return slot.index;
+    }
+
+    /**
+     * Vrai si les symboles sont une parenthèse, une accolade ou un crochet
+     * ouvrant et sa fermeture.
+     */
+    private static boolean isBrackets(String start, String stop) {
+        return start.length() == 1 && stop.length() == 1 && "({[".indexOf(start.charAt(0)) != -1
+                && "({[".indexOf(start.charAt(0)) == ")}]".indexOf(stop.charAt(0));
+    }
+
+    /**
+     * L'appel inséré dans les boucles par {@link #addCheckpoints(String)}.
+     */
+    private static final String CHECKPOINT = "org.javascool.macros.Macros.checkpoint()";
+
+    /**
+     * Insère un point d'arrêt au début de chaque tour de boucle d'un code
+     * Java.
+     * <p>
+     * Chaque boucle <tt>while</tt>, <tt>for</tt> et <tt>do</tt> appelle
+     * {@link org.javascool.macros.Macros#checkpoint()} à chaque tour : un
+     * programme arrêté par l'utilisateur s'arrête alors même dans une boucle
+     * sans fin, pour le prix d'une lecture de variable par tour.
+     * </p>
+     * <p>
+     * L'appel est mis au début du bloc de la boucle. Une boucle sans bloc
+     * reçoit un bloc autour de son instruction : <tt>while (x &lt; 10) x++;</tt>
+     * devient <tt>while (x &lt; 10) { checkpoint(); x++; }</tt>. La condition
+     * n'est jamais touchée : <tt>while (true)</tt> et <tt>for (;;)</tt> restent
+     * constantes, et le compilateur sait toujours qu'une telle boucle ne finit
+     * que par <tt>return</tt> ou <tt>break</tt>. Aucune ligne n'est ajoutée :
+     * les numéros de ligne des erreurs ne changent pas.
+     * </p>
+     *
+     * @param code Le code Java à modifier.
+     * @return Le code avec ses points d'arrêt.
+     */
+    public static String addCheckpoints(String code) {
+        // Les insertions, par position dans le code d'origine
+        TreeMap<Integer, StringBuilder> inserts = new TreeMap<Integer, StringBuilder>();
+        // Les positions des "while" qui finissent une boucle "do {..}" déjà traitée
+        Set<Integer> doTails = new HashSet<Integer>();
+        for (int i = 0; i < code.length(); ) {
+            char c = code.charAt(i);
+            if (c == '/' || c == '"' || c == '\'') {
+                int next = skipLiteral(code, i);
+                i = next > i ? next : i + 1;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int end = i;
+                while (end < code.length() && Character.isJavaIdentifierPart(code.charAt(end))) {
+                    end++;
+                }
+                String word = code.substring(i, end);
+                if ("do".equals(word)) {
+                    int tail = skipBlank(code, addBodyCheckpoint(code, skipBlank(code, end), inserts));
+                    if (code.startsWith("while", tail)) {
+                        doTails.add(tail);
+                    }
+                } else if (("while".equals(word) && !doTails.contains(i)) || "for".equals(word)) {
+                    int open = skipBlank(code, end);
+                    int close = open < code.length() && code.charAt(open) == '(' ? matching(code, open)
+                            : code.length();
+                    if (close < code.length()) {
+                        addBodyCheckpoint(code, skipBlank(code, close + 1), inserts);
+                    }
+                }
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        if (inserts.isEmpty()) {
+            return code;
+        }
+        StringBuilder result = new StringBuilder(code.length() + 48 * inserts.size());
+        int last = 0;
+        for (Map.Entry<Integer, StringBuilder> insert : inserts.entrySet()) {
+            result.append(code, last, insert.getKey()).append(insert.getValue());
+            last = insert.getKey();
+        }
+        return result.append(code, last, code.length()).toString();
+    }
+
+    /**
+     * Met le point d'arrêt au début du corps d'une boucle : dans son bloc, ou
+     * dans un bloc ajouté autour de son instruction si elle n'en a pas.
+     *
+     * @return L'index qui suit le corps de la boucle.
+     */
+    private static int addBodyCheckpoint(String code, int body, Map<Integer, StringBuilder> inserts) {
+        if (body >= code.length()) {
+            return code.length();
+        }
+        if (code.charAt(body) == '{') {
+            insert(inserts, body + 1, " " + CHECKPOINT + ";");
+            return Math.min(matching(code, body) + 1, code.length());
+        }
+        int end = statementEnd(code, body);
+        insert(inserts, body, "{ " + CHECKPOINT + "; ");
+        insert(inserts, end, " }");
+        return end;
+    }
+
+    /**
+     * Trouve la fin de l'instruction qui commence à un index donné, en suivant
+     * les instructions imbriquées : <tt>if .. else</tt>, boucles, <tt>try</tt>,
+     * <tt>switch</tt>, <tt>synchronized</tt> et étiquettes.
+     *
+     * @return L'index qui suit l'instruction, ou la fin du code si elle n'est
+     *         pas finie.
+     */
+    private static int statementEnd(String code, int start) {
+        int i = skipBlank(code, start);
+        if (i >= code.length()) {
+            return code.length();
+        }
+        if (code.charAt(i) == '{') {
+            return Math.min(matching(code, i) + 1, code.length());
+        }
+        String word = wordAt(code, i);
+        int after = i + word.length();
+        if ("if".equals(word) || "while".equals(word) || "for".equals(word)) {
+            int end = statementEnd(code, afterBrackets(code, after));
+            if ("if".equals(word)) {
+                int next = skipBlank(code, end);
+                if ("else".equals(wordAt(code, next))) {
+                    end = statementEnd(code, next + "else".length());
+                }
+            }
+            return end;
+        }
+        if ("do".equals(word)) {
+            return simpleStatementEnd(code, statementEnd(code, after));
+        }
+        if ("switch".equals(word) || "synchronized".equals(word)) {
+            return afterBrackets(code, afterBrackets(code, after));
+        }
+        if ("try".equals(word)) {
+            int end = afterBrackets(code, afterBrackets(code, after)); // Ressources éventuelles, puis le bloc
+            while (true) {
+                int next = skipBlank(code, end);
+                String clause = wordAt(code, next);
+                if ("catch".equals(clause)) {
+                    end = afterBrackets(code, afterBrackets(code, next + clause.length()));
+                } else if ("finally".equals(clause)) {
+                    return afterBrackets(code, next + clause.length());
+                } else {
+                    return end;
+                }
+            }
+        }
+        int colon = skipBlank(code, after);
+        if (!word.isEmpty() && colon < code.length() && code.charAt(colon) == ':'
+                && !code.startsWith("::", colon)) {
+            return statementEnd(code, colon + 1); // Une étiquette
+        }
+        return simpleStatementEnd(code, i);
+    }
+
+    /**
+     * Trouve la fin d'une instruction simple : son point-virgule, hors des
+     * parenthèses, accolades et crochets.
+     */
+    private static int simpleStatementEnd(String code, int start) {
+        for (int i = start; i < code.length(); ) {
+            char c = code.charAt(i);
+            if (c == '(' || c == '{' || c == '[') {
+                i = matching(code, i) + 1;
+            } else if (c == '/' || c == '"' || c == '\'') {
+                int next = skipLiteral(code, i);
+                i = next > i ? next : i + 1;
+            } else if (c == ';') {
+                return i + 1;
+            } else if (c == ')' || c == '}' || c == ']') {
+                return i; // Instruction non finie
+            } else {
+                i++;
+            }
+        }
+        return code.length();
+    }
+
+    /**
+     * Passe par dessus les espaces puis les parenthèses, l'accolade ou le
+     * crochet qui suivent un index.
+     *
+     * @return L'index qui suit la fermeture, ou celui du premier symbole s'il
+     *         n'ouvre rien.
+     */
+    private static int afterBrackets(String code, int offset) {
+        int open = skipBlank(code, offset);
+        if (open >= code.length() || "({[".indexOf(code.charAt(open)) == -1) {
+            return open;
+        }
+        return Math.min(matching(code, open) + 1, code.length());
+    }
+
+    /**
+     * Donne l'identifiant qui commence à un index, ou une chaîne vide.
+     */
+    private static String wordAt(String code, int offset) {
+        int end = offset;
+        if (end < code.length() && Character.isJavaIdentifierStart(code.charAt(end))) {
+            while (end < code.length() && Character.isJavaIdentifierPart(code.charAt(end))) {
+                end++;
+            }
+        }
+        return code.substring(offset, end);
+    }
+
+    private static void insert(Map<Integer, StringBuilder> inserts, int offset, String text) {
+        StringBuilder insert = inserts.get(offset);
+        if (insert == null) {
+            inserts.put(offset, new StringBuilder(text));
+        } else {
+            insert.append(text);
+        }
+    }
+
+    /**
+     * Passe par dessus un commentaire, une chaîne ou un caractère.
+     *
+     * @return L'index qui le suit, ou l'offset si il n'y en a pas.
+     */
+    private static int skipLiteral(String code, int offset) {
+        if (code.startsWith("//", offset)) {
+            int end = code.indexOf('\n', offset);
+            return end == -1 ? code.length() : end + 1;
+        }
+        if (code.startsWith("/*", offset)) {
+            int end = code.indexOf("*/", offset + 2);
+            return end == -1 ? code.length() : end + 2;
+        }
+        char quote = code.charAt(offset);
+        if (quote != '"' && quote != '\'') {
+            return offset;
+        }
+        int i = offset + 1;
+        while (i < code.length() && code.charAt(i) != quote && code.charAt(i) != '\n') {
+            i += code.charAt(i) == '\\' ? 2 : 1;
+        }
+        return Math.min(i + 1, code.length());
+    }
+
+    /**
+     * Passe par dessus les espaces et les commentaires.
+     */
+    private static int skipBlank(String code, int offset) {
+        while (true) {
+            offset = scanSpaces(code, offset);
+            if (offset >= code.length() || code.charAt(offset) != '/') {
+                return offset;
+            }
+            int next = skipLiteral(code, offset);
+            if (next == offset) {
+                return offset;
+            }
+            offset = next;
+        }
+    }
+
+    /**
+     * Trouve la parenthèse, l'accolade ou le crochet qui ferme celui à un
+     * index donné.
+     *
+     * @return L'index de la fermeture, ou la fin du code si il n'y en a pas.
+     */
+    private static int matching(String code, int open) {
+        int depth = 0;
+        for (int i = open; i < code.length(); ) {
+            char c = code.charAt(i);
+            if (c == '(' || c == '{' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return i;
+                }
+            } else if (c == '/' || c == '"' || c == '\'') {
+                int next = skipLiteral(code, i);
+                if (next > i) {
+                    i = next;
+                    continue;
+                }
+            }
+            i++;
+        }
+        return code.length();
+    }
 }
@@ -101,6 +101,54 @@ public class Macros {
         }
     }
 
+    /**
+     * Point d'arrêt d'une boucle, appelé au début de chaque tour par le code
+     * traduit (voir {@link org.javascool.core.Translator#addCheckpoints(String)}).
+     * <p>
+     * Si le programme a été arrêté, son thread est interrompu et une exception
+     * l'arrête. Sinon la fonction ne coûte qu'une lecture de variable, sauf si
+     * les boucles sont ralenties par {@link #setLoopPace(int)}.
+     * </p>
+     *
+     * @return La valeur true, pour pouvoir être appelée dans la condition
+     *         d'une boucle.
+     * @throws RuntimeException Si le programme a été arrêté.
+     */
+    public static boolean checkpoint() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new RuntimeException("Programme arrêté !");
+        }
+        if (loopPace > 0) {
+            Macros.sleep(loopPace);
+        }
+        return true;
+    }
+
+    /**
+     * Ralentit les boucles des programmes, pour voir une animation se
+     * dérouler.
+     *
+     * @param delay Durée d'attente à chaque tour de boucle en milli-secondes,
+     *              0 (par défaut) pour ne pas ralentir.
+     */
+    public static void setLoopPace(int delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("La durée d'attente ne peut pas être négative");
+        }
+        Macros.loopPace = delay;
+    }
+
+    /**
+     * Renvoie la durée d'attente à chaque tour de boucle en milli-secondes.
+     *
+     * @see #setLoopPace(int)
+     */
+    public static int getLoopPace() {
+        return Macros.loopPace;
+    }
+
+    private static volatile int loopPace = 0;
+
     /**
      * Excécute une routine à un intervalle régulier.
      * Exemple d'usage (impression de 10 messages à interval d'1 sec. puis
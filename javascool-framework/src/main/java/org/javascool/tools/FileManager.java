@@ -21,6 +21,16 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
@@ -88,8 +98,8 @@ public class FileManager {
             public String run() {
                 try {
                     BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(FileManager.getResourceURL(location,
-                                    true).openStream(), utf8 ? Charset.forName("utf-8")
+                            new InputStreamReader(RemoteCache.toLocal(FileManager.getResourceURL(location,
+                                    true)).openStream(), utf8 ? Charset.forName("utf-8")
                                     : Charset.defaultCharset()), 10240);
                     StringBuilder buffer = new StringBuilder();
                     char chars[] = new char[10240];
@@ -289,12 +299,7 @@ public class FileManager {
 
             @Override
             public Boolean run() {
-                try {
-                    location.openStream().close();
-                    return true;
-                } catch (IOException e) {
-                    return false;
-                }
+                return RemoteCache.exists(location);
             }
         });
 
@@ -313,7 +318,7 @@ public class FileManager {
                 String location = FileManager.getResourceURL(url).toString();
                 if (location.matches("(ftp|http|https|jar):.*")) {
                     try {
-                        return new URL(location).openConnection()
+                        return RemoteCache.toLocal(new URL(location)).openConnection()
                                 .getContentLengthLong();
                     } catch (IOException e) {
                         System.err.println("getSize(" + location + ") error : " + e);
@@ -460,6 +465,55 @@ public class FileManager {
         });
     }
 
+    /**
+     * Renvoie un répertoire de travail propre à l'utilisateur, dans le
+     * répertoire temporaire de la machine.
+     * <p>
+     * Les répertoires sont rangés dans <tt>javascool-&lt;utilisateur&gt;</tt>,
+     * créé accessible au seul utilisateur. Le répertoire temporaire est
+     * partagé : s'il existe déjà, il doit appartenir à l'utilisateur, ne pas
+     * être un lien symbolique et n'être ouvert ni au groupe ni aux autres.
+     * Sinon un autre utilisateur pourrait y lire ou y déposer des fichiers,
+     * et le répertoire est refusé.
+     * </p>
+     *
+     * @param name Nom du répertoire.
+     * @return Le répertoire, créé au besoin.
+     * @throws IOException Si le répertoire ne peut pas être créé, ou n'est pas
+     *                     sûr.
+     */
+    public static File getPrivateDir(String name) throws IOException {
+        String user = System.getProperty("user.name", "");
+        Path base = Paths.get(System.getProperty("java.io.tmpdir"), "javascool-" + user.replaceAll("[^\\w.-]", "_"));
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            try {
+                Files.createDirectory(base, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")));
+            } catch (FileAlreadyExistsException e) {
+                // Vérifié ci-dessous
+            }
+            PosixFileAttributes attributes = Files.readAttributes(base, PosixFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            UserPrincipal owner = base.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(user);
+            if (!attributes.isDirectory() || !attributes.owner().equals(owner)) {
+                throw new IOException("Le répertoire " + base + " n'appartient pas à " + user);
+            }
+            for (PosixFilePermission permission : attributes.permissions()) {
+                if (!permission.name().startsWith("OWNER_")) {
+                    throw new IOException("Le répertoire " + base + " est accessible à d'autres utilisateurs");
+                }
+            }
+        } else {
+            // Hors POSIX (Windows), le répertoire temporaire est déjà propre à l'utilisateur
+            Files.createDirectories(base);
+        }
+        File directory = new File(base.toFile(), name);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Impossible de créer le répertoire " + directory);
+        }
+        return directory;
+    }
+
     /**
      * Renvoie une URL (Universal Resource Location) normalisée, dans le cas du
      * système de fichier local ou d'une ressource.
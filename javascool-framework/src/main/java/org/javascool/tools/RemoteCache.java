@@ -0,0 +1,714 @@
+/*
+ * $file.name
+ * Copyright (C) 2012 Philippe VIENNE
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.javascool.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache locale des ressources distantes (<tt>http:</tt>, <tt>https:</tt>, <tt>ftp:</tt>).
+ * <p>
+ * Les contenus sont rangés sous le nom de leur empreinte SHA-256 : deux URL de même contenu n'en gardent qu'une
+ * copie. Pour chaque URL sont notés l'empreinte, la taille et les validateurs HTTP (<tt>ETag</tt>,
+ * <tt>Last-Modified</tt>) de la dernière réponse. Une ressource vue depuis moins de {@link #setFreshness(long)} est
+ * servie sans requête ; sinon elle est redemandée avec <tt>If-None-Match</tt> / <tt>If-Modified-Since</tt>, et une
+ * réponse 304 ne transfère rien.
+ * </p>
+ * <p>
+ * Un téléchargement interrompu reprend là où il s'était arrêté (<tt>Range</tt> / <tt>If-Range</tt>). Le contenu reçu
+ * est vérifié : sa taille, et son empreinte si le serveur la donne (<tt>Digest: SHA-256=</tt> ou
+ * <tt>X-Checksum-Sha256</tt>). Plusieurs demandes simultanées de la même URL ne font qu'un téléchargement. Si le
+ * réseau ne répond pas, la dernière version en cache est servie ; en mode hors ligne, seule la cache est lue.
+ * </p>
+ * <p>
+ * La cache est dans le répertoire privé de l'utilisateur (voir {@link FileManager#getPrivateDir(String)}) : un autre
+ * utilisateur de la machine ne peut y déposer un contenu. Un contenu est de plus vérifié contre l'empreinte qui lui
+ * sert de nom avant d'être servi, une fois par exécution et après chaque réécriture ; s'il ne correspond pas, il est
+ * effacé et retéléchargé. Les fichiers de la cache ne doivent pas être modifiés : ils sont partagés entre les URL.
+ * </p>
+ *
+ * @see FileManager
+ * @since 5.0
+ */
+public final class RemoteCache {
+    // @factory
+    private RemoteCache() {
+    }
+
+    /**
+     * Le temps après lequel un contenu qui n'a pas servi est effacé, en millisecondes (un mois).
+     */
+    private static final long CACHE_DELAY = 30L * 24 * 60 * 60 * 1000;
+    /**
+     * Le temps entre deux nettoyages de la cache, et après lequel un téléchargement interrompu est abandonné, en
+     * millisecondes (une heure).
+     */
+    private static final long CLEANUP_DELAY = 60 * 60 * 1000L;
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+    /**
+     * Le répertoire de la cache, choisi à la première utilisation.
+     */
+    private static volatile File root;
+    private static volatile boolean offline = Boolean.getBoolean("javascool.offline");
+    private static volatile long freshness = 5 * 60 * 1000L;
+    /**
+     * Les téléchargements en cours, par URL.
+     */
+    private static final ConcurrentMap<String, FutureTask<File>> downloads =
+            new ConcurrentHashMap<String, FutureTask<File>>();
+    /**
+     * Efface les vieux fichiers en tâche de fond.
+     */
+    private static final ExecutorService cleaner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "javascool-cache-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static volatile long lastCleanUp = 0;
+    /**
+     * Les versions de contenus dont l'empreinte a été vérifiée.
+     */
+    private static final ConcurrentMap<String, Boolean> verified = new ConcurrentHashMap<String, Boolean>();
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Réglages
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Définit le répertoire de la cache (par défaut <tt>cache</tt> dans le répertoire privé de l'utilisateur, voir
+     * {@link FileManager#getPrivateDir(String)}).
+     */
+    public static void setDirectory(File directory) {
+        if (directory == null)
+            throw new IllegalArgumentException("Le répertoire de la cache ne peut être null");
+        root = directory;
+    }
+
+    /**
+     * Renvoie le répertoire de la cache.
+     */
+    public static File getDirectory() {
+        File directory = root;
+        if (directory == null) {
+            synchronized (RemoteCache.class) {
+                if (root == null)
+                    root = getDefaultDirectory();
+                directory = root;
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Choisit le répertoire privé de l'utilisateur, ou à défaut un répertoire temporaire propre à cette exécution.
+     */
+    private static File getDefaultDirectory() {
+        try {
+            return FileManager.getPrivateDir("cache");
+        } catch (IOException e) {
+            Logger.getAnonymousLogger().log(Level.WARNING,
+                    "La cache n'a pas de répertoire sûr, un répertoire temporaire est utilisé", e);
+        }
+        try {
+            return Files.createTempDirectory("javascool-cache").toFile(); // Privé sous POSIX
+        } catch (IOException e) {
+            throw new IllegalStateException("Impossible de créer un répertoire pour la cache", e);
+        }
+    }
+
+    /**
+     * Passe en mode hors ligne : aucune requête n'est faite, seule la cache est lue. Par défaut la propriété système
+     * <tt>javascool.offline</tt>.
+     */
+    public static void setOffline(boolean offline) {
+        RemoteCache.offline = offline;
+    }
+
+    /**
+     * Renvoie true en mode hors ligne.
+     */
+    public static boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * Définit le temps pendant lequel une ressource est servie sans redemander au serveur si elle a changé.
+     *
+     * @param freshness Le temps en millisecondes (par défaut cinq minutes), 0 pour toujours redemander.
+     */
+    public static void setFreshness(long freshness) {
+        if (freshness < 0)
+            throw new IllegalArgumentException("Le temps de fraîcheur ne peut être négatif : " + freshness);
+        RemoteCache.freshness = freshness;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Fonctions de la cache
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Renvoie true si l'URL est servie par la cache.
+     */
+    public static boolean isRemote(URL url) {
+        String protocol = url.getProtocol();
+        return "http".equals(protocol) || "https".equals(protocol) || "ftp".equals(protocol);
+    }
+
+    /**
+     * Renvoie l'URL locale d'une ressource : le fichier en cache d'une URL distante, ou pour
+     * <tt>jar:http://..!/entry</tt> la même entrée du jar en cache. Les autres URL sont renvoyées telles quelles.
+     *
+     * @param url L'URL à lire.
+     * @return Une URL <tt>file:</tt> ou <tt>jar:file:</tt>, ou l'URL donnée.
+     * @throws IOException Si la ressource ne peut être téléchargée, ou n'est pas en cache en mode hors ligne.
+     */
+    public static URL toLocal(URL url) throws IOException {
+        if (isRemote(url))
+            return get(url).toURI().toURL();
+        if ("jar".equals(url.getProtocol())) {
+            String location = url.getPath();
+            int separator = location.indexOf("!/");
+            if (separator != -1) {
+                URL jar = new URL(location.substring(0, separator));
+                if (isRemote(jar))
+                    return new URL("jar:" + get(jar).toURI().toURL() + location.substring(separator));
+            }
+        }
+        return url;
+    }
+
+    /**
+     * Renvoie le fichier en cache d'une URL distante, après l'avoir téléchargé ou revalidé si besoin.
+     *
+     * @param url L'URL (<tt>http:</tt>, <tt>https:</tt>, <tt>ftp:</tt>).
+     * @return Le fichier en cache, à ne pas modifier.
+     * @throws FileNotFoundException Si la ressource n'existe pas, ou n'est pas en cache en mode hors ligne.
+     * @throws IOException           Si la ressource ne peut être téléchargée.
+     */
+    public static File get(final URL url) throws IOException {
+        if (!isRemote(url))
+            throw new IllegalArgumentException("L'URL " + url + " n'est pas une URL distante");
+        String key = url.toString();
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return fetch(url);
+            }
+        });
+        FutureTask<File> running = downloads.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                downloads.remove(key, task);
+            }
+            running = task;
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Téléchargement de " + url + " interrompu");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Sert une URL depuis la cache, ou la redemande.
+     */
+    private static File fetch(URL url) throws IOException {
+        scheduleCleanUp();
+        String key = getKey(url);
+        File entryFile = getEntryFile(key);
+        Properties entry = readEntry(entryFile);
+        File object = entry == null ? null : getObject(entry.getProperty("sha256"));
+        long now = System.currentTimeMillis();
+        if (object != null && (offline || isFresh(entry, now))) {
+            object.setLastModified(now);
+            return object;
+        }
+        if (offline)
+            throw new FileNotFoundException(url + " n'est pas dans la cache et le mode hors ligne est actif");
+        try {
+            return download(url, key, entry, entryFile);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            if (object == null)
+                throw e;
+            Logger.getAnonymousLogger().log(Level.WARNING,
+                    "Le téléchargement de " + url + " a échoué, la version en cache est utilisée", e);
+            object.setLastModified(now);
+            return object;
+        }
+    }
+
+    /**
+     * Indique si une ressource existe, sans la télécharger : une ressource en cache et vue récemment existe, sinon
+     * le serveur est interrogé par une requête <tt>HEAD</tt> (conditionnelle si la ressource est en cache). Seul un
+     * serveur qui refuse <tt>HEAD</tt>, ou une URL <tt>ftp:</tt>, fait télécharger la ressource. En mode hors ligne,
+     * seules les ressources en cache existent.
+     *
+     * @param url L'URL à tester.
+     * @return true si la ressource existe et est lisible.
+     */
+    public static boolean exists(URL url) {
+        try {
+            if (!isRemote(url)) {
+                toLocal(url).openStream().close();
+                return true;
+            }
+            File entryFile = getEntryFile(getKey(url));
+            Properties entry = readEntry(entryFile);
+            long now = System.currentTimeMillis();
+            if (entry != null && (offline || isFresh(entry, now)))
+                return true;
+            if (offline)
+                return false;
+            URLConnection connection = url.openConnection();
+            if (!(connection instanceof HttpURLConnection)) {
+                get(url);
+                return true;
+            }
+            HttpURLConnection http = (HttpURLConnection) connection;
+            http.setConnectTimeout(CONNECT_TIMEOUT);
+            http.setReadTimeout(READ_TIMEOUT);
+            http.setUseCaches(false);
+            http.setRequestMethod("HEAD");
+            if (entry != null) {
+                if (entry.getProperty("etag") != null)
+                    http.setRequestProperty("If-None-Match", entry.getProperty("etag"));
+                if (entry.getProperty("lastModified") != null)
+                    http.setRequestProperty("If-Modified-Since", entry.getProperty("lastModified"));
+            }
+            int status;
+            try {
+                status = http.getResponseCode();
+            } catch (IOException e) {
+                if (entry == null)
+                    return false;
+                Logger.getAnonymousLogger().log(Level.WARNING,
+                        "Le serveur de " + url + " ne répond pas, la version en cache est utilisée", e);
+                return true;
+            } finally {
+                http.disconnect();
+            }
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                entry.setProperty("checked", Long.toString(now));
+                write(entryFile, entry);
+                return true;
+            }
+            if (status >= 200 && status < 300)
+                return true;
+            if (status == HttpURLConnection.HTTP_BAD_METHOD || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                get(url);
+                return true;
+            }
+            return status != HttpURLConnection.HTTP_NOT_FOUND && status != HttpURLConnection.HTTP_GONE &&
+                    entry != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String getKey(URL url) throws IOException {
+        return toHex(digest("SHA-256").digest(url.toString().getBytes("UTF-8")));
+    }
+
+    private static File getEntryFile(String key) {
+        return new File(new File(getDirectory(), "urls"), key + ".properties");
+    }
+
+    /**
+     * Lit ce qui est noté d'une URL, ou null si elle n'est pas en cache, si son contenu a été effacé ou s'il n'a pas
+     * l'empreinte notée.
+     */
+    private static Properties readEntry(File entryFile) {
+        Properties entry = read(entryFile);
+        File object = entry == null ? null : getObject(entry.getProperty("sha256"));
+        if (object == null || !object.isFile() || !entry.getProperty("checked", "").matches("\\d+") ||
+                !Long.toString(object.length()).equals(entry.getProperty("size")) || !isIntact(object))
+            return null;
+        return entry;
+    }
+
+    private static boolean isFresh(Properties entry, long now) {
+        return now - Long.parseLong(entry.getProperty("checked")) < freshness;
+    }
+
+    /**
+     * Télécharge une URL, ou la revalide si elle est en cache. Le téléchargement est fait dans un fichier partiel
+     * propre à l'URL, verrouillé, qui sert à reprendre un téléchargement interrompu ; si un autre processus le
+     * télécharge déjà, un fichier temporaire est utilisé.
+     */
+    private static File download(URL url, String key, Properties entry, File entryFile) throws IOException {
+        File partials = new File(getDirectory(), "partial");
+        partials.mkdirs();
+        File partial = new File(partials, key);
+        File partialInfo = new File(partials, key + ".properties");
+        RandomAccessFile file = new RandomAccessFile(partial, "rw");
+        FileLock lock = file.getChannel().tryLock();
+        if (lock == null || !partial.exists()) {
+            file.close();
+            partial = File.createTempFile(key, ".tmp", partials);
+            partialInfo = null;
+            file = new RandomAccessFile(partial, "rw");
+        }
+        try {
+            Properties resume = partialInfo == null ? null : read(partialInfo);
+            String validator = resume == null ? null : resume.getProperty("etag", resume.getProperty("lastModified"));
+            long offset = validator == null ? 0 : file.length();
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setUseCaches(false);
+            long total = -1;
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                http.setRequestProperty("Accept-Encoding", "identity");
+                if (entry != null) {
+                    if (entry.getProperty("etag") != null)
+                        http.setRequestProperty("If-None-Match", entry.getProperty("etag"));
+                    if (entry.getProperty("lastModified") != null)
+                        http.setRequestProperty("If-Modified-Since", entry.getProperty("lastModified"));
+                }
+                if (offset > 0) {
+                    http.setRequestProperty("Range", "bytes=" + offset + "-");
+                    http.setRequestProperty("If-Range", validator);
+                }
+                int status = http.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                    http.disconnect();
+                    entry.setProperty("checked", Long.toString(System.currentTimeMillis()));
+                    write(entryFile, entry);
+                    File object = getObject(entry.getProperty("sha256"));
+                    object.setLastModified(System.currentTimeMillis());
+                    return object;
+                }
+                if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE)
+                    throw new FileNotFoundException(url.toString());
+                if (status == HttpURLConnection.HTTP_PARTIAL && offset > 0 &&
+                        (total = getRangeTotal(http.getHeaderField("Content-Range"), offset)) >= 0) {
+                    // La suite du fichier partiel est envoyée
+                } else if (status == HttpURLConnection.HTTP_PARTIAL) {
+                    // Une reprise mal comprise : elle repartira du début
+                    if (partialInfo != null)
+                        partialInfo.delete();
+                    throw new IOException("Le serveur a mal repris le téléchargement de " + url);
+                } else if (status == HttpURLConnection.HTTP_OK) {
+                    offset = 0;
+                    total = http.getContentLengthLong();
+                } else {
+                    throw new IOException("Le serveur a répondu " + status + " pour " + url);
+                }
+            } else {
+                offset = 0;
+                total = connection.getContentLengthLong();
+            }
+            Properties info = new Properties();
+            setProperty(info, "etag", connection.getHeaderField("ETag"));
+            setProperty(info, "lastModified", connection.getHeaderField("Last-Modified"));
+            file.setLength(offset);
+            if (partialInfo != null)
+                write(partialInfo, info);
+            copy(connection.getInputStream(), file, offset);
+            if (total >= 0 && file.length() != total)
+                throw new IOException("Le téléchargement de " + url + " est incomplet : " + file.length() + " octets sur " + total);
+            String sha256 = hash(partial);
+            String expected = getExpectedDigest(connection);
+            if (expected != null && !expected.equalsIgnoreCase(sha256)) {
+                file.setLength(0);
+                if (partialInfo != null)
+                    partialInfo.delete();
+                throw new IOException("L'empreinte du contenu de " + url + " est fausse");
+            }
+            File object = getObject(sha256);
+            publish(partial, object);
+            verified.put(getVersion(object), Boolean.TRUE);
+            if (partialInfo != null)
+                partialInfo.delete();
+            info.setProperty("url", url.toString());
+            info.setProperty("sha256", sha256);
+            info.setProperty("size", Long.toString(object.length()));
+            info.setProperty("checked", Long.toString(System.currentTimeMillis()));
+            write(entryFile, info);
+            return object;
+        } finally {
+            boolean empty = file.length() == 0;
+            file.close();
+            if (partialInfo == null || empty) {
+                partial.delete();
+                if (partialInfo != null)
+                    partialInfo.delete();
+            }
+        }
+    }
+
+    /**
+     * Range le fichier téléchargé sous son empreinte, si ce contenu n'y est pas déjà.
+     */
+    private static void publish(File partial, File object) throws IOException {
+        if (object.isFile() && isIntact(object)) {
+            partial.delete();
+            object.setLastModified(System.currentTimeMillis());
+            return;
+        }
+        object.getParentFile().mkdirs();
+        try {
+            Files.move(partial.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Un fichier ouvert ne peut être déplacé sous Windows : il est copié
+            File temp = File.createTempFile(object.getName(), ".tmp", object.getParentFile());
+            Files.copy(partial.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static File getObject(String sha256) {
+        if (sha256 == null || !sha256.matches("[0-9a-f]{64}"))
+            return null;
+        return new File(new File(new File(getDirectory(), "objects"), sha256.substring(0, 2)), sha256);
+    }
+
+    /**
+     * Vérifie qu'un contenu a l'empreinte qui lui sert de nom. Un contenu abîmé ou remplacé est effacé.
+     */
+    private static boolean isIntact(File object) {
+        String id = getVersion(object);
+        if (verified.containsKey(id))
+            return true;
+        try {
+            if (hash(object).equals(object.getName())) {
+                verified.put(id, Boolean.TRUE);
+                return true;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        Logger.getAnonymousLogger().log(Level.WARNING,
+                "Le contenu " + object + " n'a pas l'empreinte de son nom, il est effacé");
+        object.delete();
+        return false;
+    }
+
+    /**
+     * Identifie une version d'un contenu par son chemin, sa taille et sa date : une réécriture change la date.
+     */
+    private static String getVersion(File object) {
+        return object.getPath() + File.pathSeparator + object.length() + File.pathSeparator + object.lastModified();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+    /////   Utilitaires
+    //////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static void copy(InputStream in, RandomAccessFile file, long offset) throws IOException {
+        try {
+            file.seek(offset);
+            byte[] buffer = new byte[65536];
+            for (int count; (count = in.read(buffer)) != -1; )
+                file.write(buffer, 0, count);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Lit la taille totale d'une réponse partielle (<tt>bytes offset-end/total</tt>), ou -1 si elle ne commence pas
+     * à la position demandée.
+     */
+    private static long getRangeTotal(String range, long offset) {
+        if (range == null || !range.matches("bytes \\d+-\\d+/\\d+"))
+            return -1;
+        String[] parts = range.substring("bytes ".length()).split("[-/]");
+        return Long.parseLong(parts[0]) == offset ? Long.parseLong(parts[2]) : -1;
+    }
+
+    /**
+     * Lit l'empreinte SHA-256 donnée par le serveur, en hexadécimal, ou null.
+     */
+    private static String getExpectedDigest(URLConnection connection) {
+        String checksum = connection.getHeaderField("X-Checksum-Sha256");
+        if (checksum != null && checksum.trim().matches("[0-9a-fA-F]{64}"))
+            return checksum.trim();
+        String digests = connection.getHeaderField("Digest");
+        if (digests != null) {
+            for (String digest : digests.split(",")) {
+                digest = digest.trim();
+                if (digest.regionMatches(true, 0, "SHA-256=", 0, 8))
+                    return toHex(fromBase64(digest.substring(8)));
+            }
+        }
+        return null;
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest md = digest("SHA-256");
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            for (int count; (count = in.read(buffer)) != -1; )
+                md.update(buffer, 0, count);
+        } finally {
+            in.close();
+        }
+        return toHex(md.digest());
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    private static byte[] fromBase64(String text) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int bits = 0, count = 0;
+        for (char c : text.toCharArray()) {
+            int value = alphabet.indexOf(c);
+            if (value == -1)
+                continue;
+            bits = (bits << 6) | value;
+            if ((count += 6) >= 8) {
+                count -= 8;
+                bytes.write(bits >> count);
+                bits &= (1 << count) - 1;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void setProperty(Properties properties, String name, String value) {
+        if (value != null)
+            properties.setProperty(name, value);
+    }
+
+    /**
+     * Lit un fichier de propriétés, ou null si il n'existe pas ou est illisible.
+     */
+    private static Properties read(File file) {
+        if (!file.isFile())
+            return null;
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return properties;
+    }
+
+    /**
+     * Écrit un fichier de propriétés à côté puis le renomme : il n'est jamais lu à moitié écrit.
+     */
+    private static void write(File file, Properties properties) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Efface, au plus une fois par heure, les contenus qui n'ont pas servi depuis un mois et les téléchargements
+     * abandonnés depuis une heure. Une URL dont le contenu a été effacé est simplement retéléchargée.
+     */
+    private static void scheduleCleanUp() {
+        final long now = System.currentTimeMillis();
+        if (now - lastCleanUp < CLEANUP_DELAY)
+            return;
+        lastCleanUp = now;
+        final File directory = getDirectory();
+        cleaner.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] prefixes = new File(directory, "objects").listFiles();
+                for (File prefix : prefixes == null ? new File[0] : prefixes)
+                    removeOlder(prefix, now - CACHE_DELAY);
+                removeOlder(new File(directory, "partial"), now - CLEANUP_DELAY);
+            }
+        });
+    }
+
+    private static void removeOlder(File directory, long date) {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isFile() && file.lastModified() < date)
+                file.delete();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package org.javascool.widgets;
 
+import org.javascool.core.Jvs2Java;
+import org.javascool.core.RunHandle;
+import org.javascool.core.RunResult;
+import org.javascool.core.RunSupervisor;
 import org.javascool.macros.Macros;
 
 import javax.swing.*;
@@ -65,9 +69,13 @@ public abstract class StartStopButton extends JPanel {
             @Override
             public void run() {
                 try {
-                    start();
+                    if (supervisor == null) {
+                        start();
+                    } else {
+                        startSupervised();
+                    }
                 } catch (Throwable e) {
-                    org.javascool.core.Jvs2Java.report(e);
+                    Jvs2Java.report(e);
                 }
                 doStop();
             }
@@ -121,6 +129,56 @@ public abstract class StartStopButton extends JPanel {
                 .getIcon("org/javascool/widgets/icons/play.png"));
     }
 
+    /**
+     * Lance le programme dans sa propre exécution, sous la surveillance du superviseur, qui l'arrête s'il dépasse une
+     * limite ou si l'utilisateur l'arrête.
+     */
+    private void startSupervised() {
+        RunHandle run = new RunHandle(getClass().getClassLoader(), "jvs-run");
+        try {
+            lastResult = supervisor.run(run, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start();
+                    } catch (Throwable e) {
+                        Jvs2Java.report(e);
+                    }
+                }
+            });
+        } finally {
+            run.release();
+        }
+        if (lastResult.isLimitExceeded()) {
+            System.out.println("\n-------------------\n" + lastResult.getMessage() + "\n-------------------\n");
+        }
+    }
+
+    /**
+     * Limite les programmes lancés par ce bouton. Sans superviseur, le programme n'a aucune limite.
+     *
+     * @param supervisor Le superviseur des exécutions, ou null pour ne pas les limiter.
+     */
+    public void setSupervisor(RunSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    public RunSupervisor getSupervisor() {
+        return supervisor;
+    }
+
+    /**
+     * Renvoie le résultat de la dernière exécution surveillée, avec les ressources qu'elle a consommées.
+     *
+     * @return Le résultat ou null si aucune exécution n'a été surveillée.
+     */
+    public RunResult getLastResult() {
+        return lastResult;
+    }
+
+    private RunSupervisor supervisor = null;
+    private volatile RunResult lastResult = null;
+
     /**
      * Renvoie l'état du processus, actif ou non.
      */